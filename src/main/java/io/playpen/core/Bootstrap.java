@@ -17,7 +17,7 @@ import java.nio.file.Paths;
 @Log4j2
 public class Bootstrap {
     @Getter
-    private static final int protocolVersion = 5; // update ONLY on breaking protocol changes
+    private static final int protocolVersion = 14; // update ONLY on breaking protocol changes
 
     @Getter
     private static File homeDir;
@@ -2,6 +2,7 @@ package io.playpen.core;
 
 import io.playpen.core.coordinator.network.Network;
 import io.playpen.core.coordinator.network.authenticator.DeprovisionAuthenticator;
+import io.playpen.core.coordinator.network.placement.*;
 import io.playpen.core.p3.PackageManager;
 import io.playpen.core.p3.resolver.InMemoryCacheResolver;
 import io.playpen.core.p3.resolver.LocalRepositoryResolver;
@@ -20,10 +21,12 @@ public class Initialization {
         pm.addPackageResolver(new InMemoryCacheResolver());
 
         // Main package repository
-        pm.addPackageResolver(new LocalRepositoryResolver(Paths.get(Bootstrap.getHomeDir().getPath(), "packages").toFile()));
+        pm.addPackageResolver(new LocalRepositoryResolver(Paths.get(Bootstrap.getHomeDir().getPath(), "packages").toFile(),
+                Paths.get(Bootstrap.getHomeDir().getPath(), "packages.index.json").toFile()));
 
         // Package cache
-        pm.addPackageResolver(new LocalRepositoryResolver(Paths.get(Bootstrap.getHomeDir().getPath(), "cache", "packages").toFile()));
+        pm.addPackageResolver(new LocalRepositoryResolver(Paths.get(Bootstrap.getHomeDir().getPath(), "cache", "packages").toFile(),
+                Paths.get(Bootstrap.getHomeDir().getPath(), "cache", "packages.index.json").toFile()));
 
         pm.addPackageStep(new ExpandStep());
         pm.addPackageStep(new StringTemplateStep());
@@ -35,6 +38,12 @@ public class Initialization {
 
     public static void networkCoordinator(Network net) {
         net.addAuthenticator(new DeprovisionAuthenticator());
+
+        net.addPlacementStrategy(new SpreadPlacementStrategy());
+        net.addPlacementStrategy(new BestFitPlacementStrategy());
+        net.addPlacementStrategy(new WeightedPlacementStrategy());
+        net.addPlacementStrategy(new AntiAffinityPlacementStrategy());
+        net.addPlacementStrategy(new TwoChoicesPlacementStrategy());
     }
 
     private Initialization() {}
@@ -2,14 +2,18 @@ package io.playpen.core.coordinator;
 
 
 import io.netty.channel.Channel;
+import io.playpen.core.networking.MessageDispatcher;
 import io.playpen.core.networking.TransactionInfo;
+import io.playpen.core.networking.netty.AuthenticatedMessage;
 import io.playpen.core.p3.PackageManager;
 import io.playpen.core.plugin.PluginManager;
 import io.playpen.core.protocol.Commands;
 import io.playpen.core.protocol.Protocol;
+import io.playpen.core.utils.CryptoSession;
 
-import java.util.UUID;
 import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicLong;
 
 public abstract class PlayPen {
     private static PlayPen instance = null;
@@ -23,8 +27,23 @@ public abstract class PlayPen {
         instance = null;
     }
 
+    /**
+     * Transaction ids are this node's random prefix in the upper 32 bits and a sequence number in the lower 32 bits.
+     * The prefix is picked again on every start, so ids from a previous run of this node aren't reused either.
+     */
+    private final long idPrefix;
+
+    private final AtomicLong idSequence = new AtomicLong();
+
     public PlayPen() {
         instance = this;
+
+        int prefix;
+        do {
+            prefix = ThreadLocalRandom.current().nextInt();
+        } while(prefix == 0);
+
+        idPrefix = (long) prefix << 32;
     }
 
     public abstract String getServerId();
@@ -37,13 +56,29 @@ public abstract class PlayPen {
 
     public abstract ScheduledExecutorService getScheduler();
 
-    public String generateId() {
-        return getServerId() + "-" + UUID.randomUUID().toString();
+    /**
+     * Returns the dispatcher that received messages are run on, or null to run them directly on the netty event loop.
+     */
+    public MessageDispatcher getDispatcher() {
+        return null;
+    }
+
+    /**
+     * Returns a new transaction id. Never 0, which is reserved for messages sent with TransactionManager.sendSingle().
+     */
+    public long generateId() {
+        return idPrefix | (idSequence.incrementAndGet() & 0xFFFFFFFFL);
     }
 
     public abstract boolean send(Protocol.Transaction message, String target);
 
-    public abstract boolean receive(Protocol.AuthenticatedMessage auth, Channel from);
+    public abstract boolean receive(AuthenticatedMessage auth, Channel from);
+
+    /**
+     * Returns the crypto session used to protect messages for the specified coordinator, or null if the coordinator
+     * is unknown.
+     */
+    public abstract CryptoSession getCryptoSession(String uuid);
 
     public abstract boolean process(Commands.BaseCommand command, TransactionInfo info, String from);
 
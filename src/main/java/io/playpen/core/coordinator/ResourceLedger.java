@@ -0,0 +1,144 @@
+package io.playpen.core.coordinator;
+
+import io.playpen.core.p3.ResourceIndex;
+import io.playpen.core.p3.ResourceVector;
+
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * The resources of a coordinator and how much of each is still available, kept in arrays indexed by
+ * {@link ResourceIndex}. Allocating or releasing a server's resources returns a new ledger, so a ledger can be shared
+ * between threads and swapped atomically along with the servers it accounts for. Queries don't allocate.
+ */
+public final class ResourceLedger {
+    public static final ResourceLedger EMPTY = of(new HashMap<>());
+
+    /**
+     * Resources this ledger has, with their total amounts.
+     */
+    private final ResourceVector resources;
+
+    private final boolean[] present;
+
+    private final int[] capacity;
+
+    private final int[] available;
+
+    private ResourceLedger(ResourceVector resources, boolean[] present, int[] capacity, int[] available) {
+        this.resources = resources;
+        this.present = present;
+        this.capacity = capacity;
+        this.available = available;
+    }
+
+    public static ResourceLedger of(Map<String, Integer> resources) {
+        ResourceVector vector = ResourceVector.of(resources);
+        int length = 0;
+        for(int i = 0; i < vector.size(); ++i) {
+            length = Math.max(length, vector.getIndex(i) + 1);
+        }
+
+        boolean[] present = new boolean[length];
+        int[] capacity = new int[length];
+        for(int i = 0; i < vector.size(); ++i) {
+            present[vector.getIndex(i)] = true;
+            capacity[vector.getIndex(i)] = vector.getAmount(i);
+        }
+
+        return new ResourceLedger(vector, present, capacity, capacity.clone());
+    }
+
+    /**
+     * Returns a ledger with the resources of a server taken out. Resources this ledger doesn't have are ignored.
+     */
+    public ResourceLedger allocate(ResourceVector vector) {
+        return adjust(vector, -1);
+    }
+
+    /**
+     * Returns a ledger with the resources of a server given back.
+     */
+    public ResourceLedger release(ResourceVector vector) {
+        return adjust(vector, 1);
+    }
+
+    private ResourceLedger adjust(ResourceVector vector, int sign) {
+        if(vector.size() == 0)
+            return this;
+
+        int[] newAvailable = available.clone();
+        for(int i = 0; i < vector.size(); ++i) {
+            int index = vector.getIndex(i);
+            if(hasResource(index))
+                newAvailable[index] += sign * vector.getAmount(i);
+        }
+
+        return new ResourceLedger(resources, present, capacity, newAvailable);
+    }
+
+    public boolean hasResource(int index) {
+        return index < present.length && present[index];
+    }
+
+    /**
+     * Returns the total amount of a resource, or 0 if this ledger doesn't have it.
+     */
+    public int getCapacity(int index) {
+        return hasResource(index) ? capacity[index] : 0;
+    }
+
+    /**
+     * Returns how much of a resource is available, which is negative if the resource is overcommitted.
+     */
+    public int getAvailable(int index) {
+        return hasResource(index) ? available[index] : 0;
+    }
+
+    /**
+     * Returns the first resource index in the vector that this ledger doesn't have or doesn't have enough of, or -1 if
+     * everything in the vector fits.
+     */
+    public int findShortfall(ResourceVector vector) {
+        for(int i = 0; i < vector.size(); ++i) {
+            int index = vector.getIndex(i);
+            if(!hasResource(index) || available[index] - vector.getAmount(i) < 0)
+                return index;
+        }
+
+        return -1;
+    }
+
+    public boolean fits(ResourceVector vector) {
+        return findShortfall(vector) < 0;
+    }
+
+    /**
+     * Sum of (available / capacity) over every resource with a capacity above 0.
+     */
+    public double getNormalizedUsage() {
+        double result = 0.0;
+        for(int i = 0; i < resources.size(); ++i) {
+            int index = resources.getIndex(i);
+            if(capacity[index] <= 0)
+                continue;
+
+            result += (double) available[index] / (double) capacity[index];
+        }
+
+        return result;
+    }
+
+    /**
+     * Returns the available amount of every resource by name.
+     */
+    public Map<String, Integer> getAvailableResources() {
+        Map<String, Integer> result = new HashMap<>();
+        for(int i = 0; i < resources.size(); ++i) {
+            int index = resources.getIndex(i);
+            result.put(ResourceIndex.nameOf(index), available[index]);
+        }
+
+        return result;
+    }
+}
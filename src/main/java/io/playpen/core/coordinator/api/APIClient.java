@@ -1,7 +1,5 @@
 package io.playpen.core.coordinator.api;
 
-import com.google.protobuf.ByteString;
-import com.google.protobuf.InvalidProtocolBufferException;
 import io.netty.bootstrap.Bootstrap;
 import io.netty.channel.Channel;
 import io.netty.channel.ChannelFuture;
@@ -13,12 +11,13 @@ import io.playpen.core.coordinator.CoordinatorMode;
 import io.playpen.core.coordinator.PlayPen;
 import io.playpen.core.networking.TransactionInfo;
 import io.playpen.core.networking.TransactionManager;
+import io.playpen.core.networking.netty.AuthenticatedMessage;
 import io.playpen.core.networking.netty.AuthenticatedMessageInitializer;
 import io.playpen.core.p3.PackageManager;
 import io.playpen.core.plugin.PluginManager;
 import io.playpen.core.protocol.Commands;
 import io.playpen.core.protocol.Protocol;
-import io.playpen.core.utils.AuthUtils;
+import io.playpen.core.utils.CryptoSession;
 import lombok.Getter;
 import lombok.extern.log4j.Log4j2;
 
@@ -33,6 +32,8 @@ public abstract class APIClient extends PlayPen {
     @Getter
     private Channel channel = null;
 
+    private CryptoSession cryptoSession = null;
+
     protected APIClient() {
         super();
     }
@@ -42,6 +43,7 @@ public abstract class APIClient extends PlayPen {
         EventLoopGroup group = new NioEventLoopGroup();
         try {
             scheduler = Executors.newScheduledThreadPool(1);
+            cryptoSession = new CryptoSession(getUUID(), getKey());
 
             Bootstrap b = new Bootstrap();
             b.group(group)
@@ -142,47 +144,23 @@ public abstract class APIClient extends PlayPen {
             return false;
         }
 
-        ByteString messageBytes = message.toByteString();
-        byte[] encBytes = AuthUtils.encrypt(messageBytes.toByteArray(), getKey());
-        String hash = AuthUtils.createHash(getKey(), encBytes);
-        messageBytes = ByteString.copyFrom(encBytes);
-
-        Protocol.AuthenticatedMessage auth = Protocol.AuthenticatedMessage.newBuilder()
-                .setUuid(getUUID())
-                .setVersion(io.playpen.core.Bootstrap.getProtocolVersion())
-                .setHash(hash)
-                .setPayload(messageBytes)
-                .build();
-
-        if (!auth.isInitialized()) {
-            log.error("Message is not initialized (protobuf)");
-            return false;
-        }
-
-        channel.writeAndFlush(auth);
+        channel.writeAndFlush(new AuthenticatedMessage(getUUID(), message));
         return true;
     }
 
     @Override
-    public boolean receive(Protocol.AuthenticatedMessage auth, Channel from) {
-        if (!auth.getUuid().equalsIgnoreCase(getUUID()) || !AuthUtils.validateHash(auth, getKey())) {
-            log.error("Invalid hash on message");
-            return false;
-        }
-
-        ByteString payload = auth.getPayload();
-        byte[] payloadBytes = AuthUtils.decrypt(payload.toByteArray(), getKey());
-        payload = ByteString.copyFrom(payloadBytes);
+    public CryptoSession getCryptoSession(String uuid) {
+        return getUUID().equalsIgnoreCase(uuid) ? cryptoSession : null;
+    }
 
-        Protocol.Transaction transaction = null;
-        try {
-            transaction = Protocol.Transaction.parseFrom(payload);
-        } catch (InvalidProtocolBufferException e) {
-            log.error("Unable to read transaction from message", e);
+    @Override
+    public boolean receive(AuthenticatedMessage auth, Channel from) {
+        if (!auth.getUuid().equalsIgnoreCase(getUUID())) {
+            log.error("Received a message for an unknown coordinator (" + auth.getUuid() + ")");
             return false;
         }
 
-        TransactionManager.get().receive(transaction, null);
+        TransactionManager.get().receive(auth.getTransaction(), null);
         return true;
     }
 
@@ -199,12 +177,18 @@ public abstract class APIClient extends PlayPen {
             case C_PROVISION_RESPONSE:
                 return processProvisionResponse(command.getCProvisionResponse(), info);
 
+            case C_PROVISION_BATCH_RESPONSE:
+                return processProvisionBatchResponse(command.getCProvisionBatchResponse(), info);
+
             case C_COORDINATOR_CREATED:
                 return processCoordinatorCreated(command.getCCoordinatorCreated(), info);
 
             case C_CONSOLE_MESSAGE:
                 return processConsoleMessage(command.getCConsoleMessage(), info);
 
+            case C_CONSOLE_MESSAGE_BATCH:
+                return processConsoleMessageBatch(command.getCConsoleMessageBatch(), info);
+
             case C_CONSOLE_ATTACHED:
                 return processConsoleAttached(command.getCConsoleAttached(), info);
 
@@ -235,4 +219,29 @@ public abstract class APIClient extends PlayPen {
     public abstract boolean processPackageList(Commands.C_PackageList message, TransactionInfo info);
     public abstract boolean processAccessDenied(Commands.C_AccessDenied message, TransactionInfo info);
     public abstract boolean processPackageResponse(Commands.PackageResponse response, TransactionInfo info);
+
+    /**
+     * Called with the results of a C_PROVISION_BATCH. Not abstract so existing clients don't have to implement it.
+     */
+    public boolean processProvisionBatchResponse(Commands.C_ProvisionBatchResponse response, TransactionInfo info) {
+        log.warn("Unhandled C_PROVISION_BATCH_RESPONSE with " + response.getResultsCount() + " results");
+        return false;
+    }
+
+    /**
+     * Called with a batch of console output. By default each line is passed to processConsoleMessage.
+     */
+    public boolean processConsoleMessageBatch(Commands.ConsoleMessageBatch batch, TransactionInfo info) {
+        boolean result = true;
+        for (String value : batch.getValuesList()) {
+            Commands.C_ConsoleMessage message = Commands.C_ConsoleMessage.newBuilder()
+                    .setConsoleId(batch.getConsoleId())
+                    .setValue(value)
+                    .build();
+
+            result &= processConsoleMessage(message, info);
+        }
+
+        return result;
+    }
 }
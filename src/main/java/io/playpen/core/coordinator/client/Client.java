@@ -1,7 +1,6 @@
 package io.playpen.core.coordinator.client;
 
 import com.google.protobuf.ByteString;
-import com.google.protobuf.InvalidProtocolBufferException;
 import io.netty.channel.Channel;
 import io.netty.channel.ChannelFuture;
 import io.netty.channel.ChannelOption;
@@ -14,7 +13,9 @@ import io.playpen.core.coordinator.CoordinatorMode;
 import io.playpen.core.coordinator.PlayPen;
 import io.playpen.core.networking.TransactionInfo;
 import io.playpen.core.networking.TransactionManager;
+import io.playpen.core.networking.netty.AuthenticatedMessage;
 import io.playpen.core.networking.netty.AuthenticatedMessageInitializer;
+import io.playpen.core.networking.netty.FileChunkInput;
 import io.playpen.core.p3.P3Package;
 import io.playpen.core.p3.PackageException;
 import io.playpen.core.p3.PackageManager;
@@ -24,7 +25,7 @@ import io.playpen.core.protocol.Coordinator;
 import io.playpen.core.protocol.P3;
 import io.playpen.core.protocol.Protocol;
 import io.playpen.core.utils.AbortableCountDownLatch;
-import io.playpen.core.utils.AuthUtils;
+import io.playpen.core.utils.CryptoSession;
 import lombok.Getter;
 import lombok.Setter;
 import lombok.extern.log4j.Log4j2;
@@ -32,7 +33,6 @@ import org.apache.logging.log4j.Level;
 import org.json.JSONObject;
 
 import java.io.File;
-import java.io.FileInputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.net.InetAddress;
@@ -42,6 +42,7 @@ import java.util.*;
 import java.util.concurrent.CountDownLatch;
 import java.util.concurrent.Executors;
 import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
 import java.util.regex.Pattern;
 
 /**
@@ -69,6 +70,8 @@ public class Client extends PlayPen {
     @Getter
     private String key;
 
+    private CryptoSession cryptoSession = null;
+
     @Getter
     private Channel channel = null;
 
@@ -81,6 +84,10 @@ public class Client extends PlayPen {
 
     private AbortableCountDownLatch latch = null;
 
+    private volatile Commands.C_UploadStatus uploadStatus = null;
+
+    private CountDownLatch uploadStatusLatch = null;
+
     private int acks = 0;
 
     private Client() {
@@ -89,7 +96,7 @@ public class Client extends PlayPen {
 
     protected void printHelpText() {
         System.err.println("playpen cli <command> [arguments...]");
-        System.err.println("Commands: list, provision, deprovision, shutdown, promote, generate-keypair, send, attach, " +
+        System.err.println("Commands: list, provision, provision-batch, deprovision, shutdown, promote, generate-keypair, send, attach, " +
                 "freeze, upload");
     }
 
@@ -132,6 +139,8 @@ public class Client extends PlayPen {
             return;
         }
 
+        cryptoSession = new CryptoSession(uuid, key);
+
         if(coordName == null) {
             log.warn("No coordinator name specified in local.json"); // not fatal
         }
@@ -156,6 +165,14 @@ public class Client extends PlayPen {
             }
 
             channel = f.channel();
+            channel.closeFuture().addListener(future -> {
+                // the network coordinator closes the connection if it can't authenticate our messages
+                if (latch != null && latch.getCount() > 0) {
+                    System.err.println("The network coordinator closed the connection.");
+                    System.err.println("This is likely due to us having an invalid UUID or secret key. Please check your local.json!");
+                    latch.abort();
+                }
+            });
 
             log.info("Connected to network coordinator at " + coordIp + " port " + coordPort);
 
@@ -242,53 +259,19 @@ public class Client extends PlayPen {
             return false;
         }
 
-        ByteString messageBytes = message.toByteString();
-        byte[] encBytes = AuthUtils.encrypt(messageBytes.toByteArray(), getKey());
-        String hash = AuthUtils.createHash(getKey(), encBytes);
-        messageBytes = ByteString.copyFrom(encBytes);
-
-        Protocol.AuthenticatedMessage auth = Protocol.AuthenticatedMessage.newBuilder()
-                .setUuid(getUuid())
-                .setVersion(Bootstrap.getProtocolVersion())
-                .setHash(hash)
-                .setPayload(messageBytes)
-                .build();
-
-        if(!auth.isInitialized()) {
-            log.error("Message is not initialized (protobuf)");
-            return false;
-        }
-
-        channel.writeAndFlush(auth);
+        channel.writeAndFlush(new AuthenticatedMessage(getUuid(), message));
         return true;
     }
 
     @Override
-    public boolean receive(Protocol.AuthenticatedMessage auth, Channel from) {
-        if(!auth.getUuid().equals(uuid) || !AuthUtils.validateHash(auth, key)) {
-            log.error("Invalid hash on message");
-            System.err.println("Received an invalid hash on a message from the network coordinator.");
-            System.err.println("This is likely due to us having an invalid UUID or secret key. Please check your local.json!");
-            from.close();
-
-            if (latch != null)
-                latch.abort();
-
-            return false;
-        }
-
-        ByteString payload = auth.getPayload();
-        byte[] payloadBytes = AuthUtils.decrypt(payload.toByteArray(), key);
-        payload = ByteString.copyFrom(payloadBytes);
+    public CryptoSession getCryptoSession(String uuid) {
+        return this.uuid.equals(uuid) ? cryptoSession : null;
+    }
 
-        Protocol.Transaction transaction = null;
-        try {
-            transaction = Protocol.Transaction.parseFrom(payload);
-        }
-        catch(InvalidProtocolBufferException e) {
-            log.error("Unable to read transaction from message", e);
-            System.err.println("Received an unreadable message from the network coordinator.");
-            System.err.println("This is likely due to us having an invalid UUID or secret key. Please check your local.json!");
+    @Override
+    public boolean receive(AuthenticatedMessage auth, Channel from) {
+        if(!auth.getUuid().equals(uuid)) {
+            log.error("Received a message for an unknown coordinator (" + auth.getUuid() + ")");
             from.close();
 
             if (latch != null)
@@ -297,7 +280,7 @@ public class Client extends PlayPen {
             return false;
         }
 
-        TransactionManager.get().receive(transaction, null);
+        TransactionManager.get().receive(auth.getTransaction(), null);
         return true;
     }
 
@@ -314,17 +297,26 @@ public class Client extends PlayPen {
             case C_PROVISION_RESPONSE:
                 return processProvisionResponse(command.getCProvisionResponse(), info);
 
+            case C_PROVISION_BATCH_RESPONSE:
+                return processProvisionBatchResponse(command.getCProvisionBatchResponse(), info);
+
             case C_COORDINATOR_CREATED:
                 return processCoordinatorCreated(command.getCCoordinatorCreated(), info);
 
             case C_CONSOLE_MESSAGE:
                 return processConsoleMessage(command.getCConsoleMessage(), info);
 
+            case C_CONSOLE_MESSAGE_BATCH:
+                return processConsoleMessageBatch(command.getCConsoleMessageBatch(), info);
+
             case C_DETACH_CONSOLE:
                 return processDetachConsole(info);
 
             case C_ACK:
                 return processAck(command.getCAck(), info);
+
+            case C_UPLOAD_STATUS:
+                return processUploadStatus(command.getCUploadStatus(), info);
         }
     }
 
@@ -350,6 +342,10 @@ public class Client extends PlayPen {
                 runProvisionCommand(arguments);
                 break;
 
+            case "provision-batch":
+                runProvisionBatchCommand(arguments);
+                break;
+
             case "deprovision":
                 runDeprovisionCommand(arguments);
                 break;
@@ -467,6 +463,78 @@ public class Client extends PlayPen {
         System.out.println("Waiting for provision response...");
     }
 
+    protected void runProvisionBatchCommand(String[] arguments) {
+        if(arguments.length < 4) {
+            System.err.println("provision-batch <package-id> <count|name,name,...> [properties...]");
+            System.err.println("Provisions several servers of the same package on the network in one request.");
+            System.err.println("Either a number of servers or a comma separated list of server names may be given.");
+            System.err.println("The property 'version' will specify the version of the package (default: promoted)");
+            System.err.println("The property 'coordinator' will specify which coordinator to provision on.");
+            System.err.println("All other properties are given to every server.");
+            channel.close();
+            return;
+        }
+
+        clientMode = ClientMode.PROVISION_BATCH;
+
+        String id = arguments[2];
+        String version = "promoted";
+        String coordinator = null;
+        int count = 0;
+        List<String> serverNames = new ArrayList<>();
+        Map<String, String> properties = new HashMap<>();
+
+        try {
+            count = Integer.parseInt(arguments[3]);
+            if(count <= 0) {
+                System.err.println("Count must be greater than 0");
+                channel.close();
+                return;
+            }
+        }
+        catch(NumberFormatException e) {
+            for(String name : arguments[3].split(",")) {
+                if(!name.trim().isEmpty())
+                    serverNames.add(name.trim());
+            }
+        }
+
+        for(int i = 4; i < arguments.length; i += 2) {
+            if(i + 1 >= arguments.length) {
+                System.err.println("Properties must be in the form <key> <value>");
+                channel.close();
+                return;
+            }
+
+            String key = arguments[i];
+            String value = arguments[i+1];
+
+            String lowerKey = key.trim().toLowerCase();
+            switch(lowerKey) {
+                case "version":
+                    version = value;
+                    break;
+
+                case "coordinator":
+                    coordinator = value;
+                    break;
+
+                default:
+                    properties.put(key, value);
+                    break;
+            }
+        }
+
+        if(!sendProvisionBatch(id, version, coordinator, count, serverNames, properties)) {
+            log.error("Unable to send provision batch to network");
+            System.err.println("Unable to send provision batch to network");
+            channel.close();
+            return;
+        }
+
+        System.out.println("Waiting for provision batch response...");
+    }
+
     protected void runDeprovisionCommand(String[] arguments) {
         if(arguments.length != 4 && arguments.length != 5) {
             System.err.println("deprovision <coordinator> <server> [force=false]");
@@ -827,18 +895,8 @@ public class Client extends PlayPen {
                 .setSync(sync)
                 .build();
 
-        TransactionInfo info = TransactionManager.get().begin();
-
-        Protocol.Transaction message = TransactionManager.get()
-                .build(info.getId(), Protocol.Transaction.Mode.SINGLE, command);
-        if(message == null) {
-            log.error("Unable to build message for sync");
-            TransactionManager.get().cancel(info.getId());
-            return false;
-        }
-
         log.info("Sending SYNC to network coordinator");
-        return TransactionManager.get().send(info.getId(), message, null);
+        return TransactionManager.get().sendSingle(command, null);
     }
 
     protected boolean sendListRequest() {
@@ -919,6 +977,78 @@ public class Client extends PlayPen {
         return TransactionManager.get().send(info.getId(), message, null);
     }
 
+    protected boolean sendProvisionBatch(String id, String version, String coordinator, int count, List<String> serverNames,
+                                         Map<String, String> properties) {
+        P3.P3Meta meta = P3.P3Meta.newBuilder()
+                .setId(id)
+                .setVersion(version)
+                .build();
+
+        Commands.C_ProvisionBatch.Builder batchBuilder = Commands.C_ProvisionBatch.newBuilder()
+                .setP3(meta)
+                .setCount(count);
+
+        if(coordinator != null) {
+            batchBuilder.setCoordinator(coordinator);
+        }
+
+        for(String serverName : serverNames) {
+            batchBuilder.addInstances(Commands.C_ProvisionInstance.newBuilder().setServerName(serverName).build());
+        }
+
+        for(Map.Entry<String, String> prop : properties.entrySet()) {
+            batchBuilder.addProperties(Coordinator.Property.newBuilder().setName(prop.getKey()).setValue(prop.getValue()).build());
+        }
+
+        Commands.BaseCommand command = Commands.BaseCommand.newBuilder()
+                .setType(Commands.BaseCommand.CommandType.C_PROVISION_BATCH)
+                .setCProvisionBatch(batchBuilder.build())
+                .build();
+
+        TransactionInfo info = TransactionManager.get().begin();
+
+        Protocol.Transaction message = TransactionManager.get()
+                .build(info.getId(), Protocol.Transaction.Mode.CREATE, command);
+        if(message == null) {
+            log.error("Unable to build message for provision batch");
+            TransactionManager.get().cancel(info.getId());
+            return false;
+        }
+
+        log.info("Sending C_PROVISION_BATCH to network coordinator");
+        return TransactionManager.get().send(info.getId(), message, null);
+    }
+
+    protected boolean processProvisionBatchResponse(Commands.C_ProvisionBatchResponse response, TransactionInfo info) {
+        switch(clientMode) {
+            case PROVISION_BATCH:
+                if(response.hasError()) {
+                    System.err.println("Provision batch rejected: " + response.getError());
+                    channel.close();
+                    return true;
+                }
+
+                int succeeded = 0;
+                for(Commands.C_ProvisionBatchResult result : response.getResultsList()) {
+                    String name = result.hasServerName() ? result.getServerName() + ": " : "";
+                    if(result.getOk()) {
+                        ++succeeded;
+                        System.out.println(name + "server " + result.getServerId() + " on coordinator " + result.getCoordinatorId());
+                    }
+                    else {
+                        System.err.println(name + "provision unsuccessful");
+                    }
+                }
+
+                log.info("Provision batch response: " + succeeded + " of " + response.getResultsCount() + " ok");
+                System.out.println("Provisioned " + succeeded + " of " + response.getResultsCount() + " servers");
+                channel.close();
+                return true;
+        }
+
+        return false;
+    }
+
     protected boolean processProvisionResponse(Commands.C_ProvisionResponse response, TransactionInfo info) {
         switch(clientMode) {
             case PROVISION:
@@ -950,18 +1080,8 @@ public class Client extends PlayPen {
                 .setCDeprovision(deprovision)
                 .build();
 
-        TransactionInfo info = TransactionManager.get().begin();
-
-        Protocol.Transaction message = TransactionManager.get()
-                .build(info.getId(), Protocol.Transaction.Mode.SINGLE, command);
-        if(message == null) {
-            log.error("Unable to build message for deprovision");
-            TransactionManager.get().cancel(info.getId());
-            return false;
-        }
-
         log.info("Sending C_DEPROVISION to network coordinator");
-        return TransactionManager.get().send(info.getId(), message, null);
+        return TransactionManager.get().sendSingle(command, null);
     }
 
     protected boolean sendShutdown(String coordId) {
@@ -974,18 +1094,8 @@ public class Client extends PlayPen {
                 .setCShutdown(shutdown)
                 .build();
 
-        TransactionInfo info = TransactionManager.get().begin();
-
-        Protocol.Transaction message = TransactionManager.get()
-                .build(info.getId(), Protocol.Transaction.Mode.SINGLE, command);
-        if(message == null) {
-            log.error("Unable to build message for shutdown");
-            TransactionManager.get().cancel(info.getId());
-            return false;
-        }
-
         log.info("Sending C_SHUTDOWN to network coordinator");
-        return TransactionManager.get().send(info.getId(), message, null);
+        return TransactionManager.get().sendSingle(command, null);
     }
 
     protected boolean sendPromote(String id, String version) {
@@ -998,18 +1108,8 @@ public class Client extends PlayPen {
                 .setCPromote(promote)
                 .build();
 
-        TransactionInfo info = TransactionManager.get().begin();
-
-        Protocol.Transaction message = TransactionManager.get()
-                .build(info.getId(), Protocol.Transaction.Mode.SINGLE, command);
-        if(message == null) {
-            log.error("Unable to build message for promote");
-            TransactionManager.get().cancel(info.getId());
-            return false;
-        }
-
         log.info("Sending C_PROMOTE to network coordinator");
-        return TransactionManager.get().send(info.getId(), message, null);
+        return TransactionManager.get().sendSingle(command, null);
     }
 
     protected boolean sendCreateCoordinator(String keyName) {
@@ -1062,18 +1162,8 @@ public class Client extends PlayPen {
                 .setCSendInput(protoInput)
                 .build();
 
-        TransactionInfo info = TransactionManager.get().begin();
-
-        Protocol.Transaction message = TransactionManager.get()
-                .build(info.getId(), Protocol.Transaction.Mode.SINGLE, command);
-        if(message == null) {
-            log.error("Unable to build message for send input");
-            TransactionManager.get().cancel(info.getId());
-            return false;
-        }
-
         log.info("Sending C_SEND_INPUT to network coordinator");
-        return TransactionManager.get().send(info.getId(), message, null);
+        return TransactionManager.get().sendSingle(command, null);
     }
 
     protected boolean sendAttachConsole(String coordId, String serverId) {
@@ -1111,6 +1201,18 @@ public class Client extends PlayPen {
         return false;
     }
 
+    protected boolean processConsoleMessageBatch(Commands.ConsoleMessageBatch batch, TransactionInfo info) {
+        switch(clientMode) {
+            case ATTACH:
+                for(String value : batch.getValuesList()) {
+                    System.out.println(value);
+                }
+                return true;
+        }
+
+        return false;
+    }
+
     protected boolean processDetachConsole(TransactionInfo info) {
         switch(clientMode) {
             case ATTACH:
@@ -1131,18 +1233,8 @@ public class Client extends PlayPen {
                 .setCDetachConsole(detach)
                 .build();
 
-        TransactionInfo info = TransactionManager.get().begin();
-
-        Protocol.Transaction message = TransactionManager.get()
-                .build(info.getId(), Protocol.Transaction.Mode.SINGLE, command);
-        if(message == null) {
-            log.error("Unable to build message for C_DETACH_CONSOLE");
-            TransactionManager.get().cancel(info.getId());
-            return false;
-        }
-
         log.info("Sending C_DETACH_CONSOLE to network coordinator");
-        return TransactionManager.get().send(info.getId(), message, null);
+        return TransactionManager.get().sendSingle(command, null);
     }
 
     protected boolean sendFreezeServer(String coordId, String serverId) {
@@ -1156,18 +1248,8 @@ public class Client extends PlayPen {
                 .setCFreezeServer(freeze)
                 .build();
 
-        TransactionInfo info = TransactionManager.get().begin();
-
-        Protocol.Transaction message = TransactionManager.get()
-                .build(info.getId(), Protocol.Transaction.Mode.SINGLE, command);
-        if(message == null) {
-            log.error("Unable to build message for C_FREEZE_SERVER");
-            TransactionManager.get().cancel(info.getId());
-            return false;
-        }
-
         log.info("Sending C_FREEZE_SERVER to network coordinator");
-        return TransactionManager.get().send(info.getId(), message, null);
+        return TransactionManager.get().sendSingle(command, null);
     }
 
     protected boolean sendPackage(P3Package p3)
@@ -1193,94 +1275,7 @@ public class Client extends PlayPen {
         File packageFile = new File(p3.getLocalPath());
         long fileLength = packageFile.length();
         if (fileLength / 1024 / 1024 > 100) {
-            System.out.println("Sending chunked package " + p3.getId() + " at " + p3.getVersion());
-            System.out.println("Checksum: " + p3.getChecksum());
-
-            TransactionInfo info = TransactionManager.get().begin();
-
-            Commands.BaseCommand noop = Commands.BaseCommand.newBuilder()
-                    .setType(Commands.BaseCommand.CommandType.NOOP)
-                    .build();
-
-            Protocol.Transaction noopMessage = TransactionManager.get()
-                    .build(info.getId(), Protocol.Transaction.Mode.CREATE, noop);
-            if (noopMessage == null) {
-                System.out.println("Unable to build transaction for split package response");
-                return false;
-            }
-
-            if (!TransactionManager.get().send(info.getId(), noopMessage, null)) {
-                System.out.println("Unable to send transaction for split package response");
-                return false;
-            }
-
-            try (FileInputStream in = new FileInputStream(packageFile)) {
-                byte[] packageBytes = new byte[1048576];
-                int chunkLen = 0;
-                int chunkId = 0;
-                while ((chunkLen = in.read(packageBytes)) != -1) {
-                    P3.SplitPackageData data = P3.SplitPackageData.newBuilder()
-                            .setMeta(meta)
-                            .setEndOfFile(false)
-                            .setChunkId(chunkId)
-                            .setData(ByteString.copyFrom(packageBytes, 0, chunkLen))
-                            .build();
-
-                    Commands.C_UploadSplitPackage response = Commands.C_UploadSplitPackage.newBuilder()
-                            .setData(data)
-                            .build();
-
-                    Commands.BaseCommand command = Commands.BaseCommand.newBuilder()
-                            .setType(Commands.BaseCommand.CommandType.C_UPLOAD_SPLIT_PACKAGE)
-                            .setCUploadSplitPackage(response)
-                            .build();
-
-                    Protocol.Transaction message = TransactionManager.get()
-                            .build(info.getId(), Protocol.Transaction.Mode.CONTINUE, command);
-                    if (message == null) {
-                        System.out.println("Unable to build transaction for split package response");
-                        return false;
-                    }
-
-                    if (!TransactionManager.get().send(info.getId(), message, null)) {
-                        System.out.println("Unable to send transaction for split package response");
-                        return false;
-                    }
-
-                    ++chunkId;
-                }
-
-                P3.SplitPackageData data = P3.SplitPackageData.newBuilder()
-                        .setMeta(meta)
-                        .setEndOfFile(true)
-                        .setChecksum(p3.getChecksum())
-                        .setChunkCount(chunkId)
-                        .build();
-
-                Commands.C_UploadSplitPackage response = Commands.C_UploadSplitPackage.newBuilder()
-                        .setData(data)
-                        .build();
-
-                Commands.BaseCommand command = Commands.BaseCommand.newBuilder()
-                        .setType(Commands.BaseCommand.CommandType.C_UPLOAD_SPLIT_PACKAGE)
-                        .setCUploadSplitPackage(response)
-                        .build();
-
-                Protocol.Transaction message = TransactionManager.get()
-                        .build(info.getId(), Protocol.Transaction.Mode.COMPLETE, command);
-                if (message == null) {
-                    System.out.println("Unable to build transaction for split package response");
-                    return false;
-                }
-
-                System.out.println("Finishing split package response (" + chunkId + " chunks)");
-                System.out.println("Checksum: " + p3.getChecksum());
-
-                return TransactionManager.get().send(info.getId(), message, null);
-            } catch (IOException e) {
-                log.error("Unable to read package data", e);
-                return false;
-            }
+            return sendChunkedPackage(p3, meta, packageFile);
         }
         else {
             ByteString packageData;
@@ -1311,18 +1306,146 @@ public class Client extends PlayPen {
                     .setCUploadPackage(upload)
                     .build();
 
-            TransactionInfo info = TransactionManager.get().begin();
+            return TransactionManager.get().sendSingle(command, null);
+        }
+    }
+
+    /**
+     * Uploads a package in chunks. The network tells us which chunks it already has from an earlier, interrupted
+     * upload of the same package, and only the missing chunks are sent.
+     */
+    protected boolean sendChunkedPackage(P3Package p3, P3.P3Meta meta, File packageFile) {
+        System.out.println("Sending chunked package " + p3.getId() + " at " + p3.getVersion());
+        System.out.println("Checksum: " + p3.getChecksum());
+
+        final int chunkSize = FileChunkInput.DEFAULT_CHUNK_SIZE;
+        long fileLength = packageFile.length();
+        int chunkCount = FileChunkInput.getChunkCount(fileLength, chunkSize);
+
+        TransactionInfo info = TransactionManager.get().begin();
+        final long tid = info.getId();
+
+        P3.SplitPackageData begin = P3.SplitPackageData.newBuilder()
+                .setMeta(meta)
+                .setEndOfFile(false)
+                .setChecksum(p3.getChecksum())
+                .setFileSize(fileLength)
+                .setChunkSize(chunkSize)
+                .setChunkCount(chunkCount)
+                .build();
 
-            Protocol.Transaction message = TransactionManager.get()
-                    .build(info.getId(), Protocol.Transaction.Mode.SINGLE, command);
-            if(message == null) {
-                log.error("Unable to build message for C_UPLOAD_PACKAGE");
-                TransactionManager.get().cancel(info.getId());
+        Commands.BaseCommand beginCommand = Commands.BaseCommand.newBuilder()
+                .setType(Commands.BaseCommand.CommandType.C_UPLOAD_SPLIT_PACKAGE)
+                .setCUploadSplitPackage(Commands.C_UploadSplitPackage.newBuilder().setData(begin))
+                .build();
+
+        Protocol.Transaction beginMessage = TransactionManager.get()
+                .build(tid, Protocol.Transaction.Mode.CREATE, beginCommand);
+        if (beginMessage == null) {
+            System.err.println("Unable to build transaction for split package upload");
+            TransactionManager.get().cancel(tid);
+            return false;
+        }
+
+        uploadStatus = null;
+        uploadStatusLatch = new CountDownLatch(1);
+        if (!TransactionManager.get().send(tid, beginMessage, null)) {
+            System.err.println("Unable to send transaction for split package upload");
+            return false;
+        }
+
+        try {
+            if (!uploadStatusLatch.await(60, TimeUnit.SECONDS)) {
+                System.err.println("Timed out waiting for the network to accept the upload");
+                TransactionManager.get().cancel(tid, true);
                 return false;
             }
+        }
+        catch (InterruptedException e) {
+            TransactionManager.get().cancel(tid, true);
+            return false;
+        }
+
+        if (uploadStatus == null || !uploadStatus.getOk()) {
+            System.err.println("The network was unable to start the upload");
+            TransactionManager.get().cancel(tid, true);
+            return false;
+        }
+
+        BitSet missing = new BitSet(chunkCount);
+        missing.set(0, chunkCount);
+        missing.andNot(BitSet.valueOf(uploadStatus.getReceivedChunks().toByteArray()));
+        if (missing.cardinality() < chunkCount) {
+            System.out.println("Resuming upload, " + missing.cardinality() + " of " + chunkCount + " chunks left to send");
+        }
+
+        FileChunkInput input;
+        try {
+            input = new FileChunkInput(uuid, packageFile.toPath(), chunkSize, missing,
+                    (chunkId, offset, fileSize, chunk) -> {
+                        P3.SplitPackageData data = P3.SplitPackageData.newBuilder()
+                                .setMeta(meta)
+                                .setEndOfFile(false)
+                                .setChunkId(chunkId)
+                                .setOffset(offset)
+                                .setData(chunk)
+                                .build();
+
+                        Commands.BaseCommand command = Commands.BaseCommand.newBuilder()
+                                .setType(Commands.BaseCommand.CommandType.C_UPLOAD_SPLIT_PACKAGE)
+                                .setCUploadSplitPackage(Commands.C_UploadSplitPackage.newBuilder().setData(data))
+                                .build();
+
+                        return Protocol.Transaction.newBuilder()
+                                .setId(tid)
+                                .setMode(Protocol.Transaction.Mode.CONTINUE)
+                                .setPayload(command)
+                                .build();
+                    });
+        }
+        catch (IOException e) {
+            log.error("Unable to read package data", e);
+            TransactionManager.get().cancel(tid, true);
+            return false;
+        }
+
+        ChannelFuture future = channel.writeAndFlush(input).awaitUninterruptibly();
+        if (!future.isSuccess()) {
+            log.error("Unable to send package chunks", future.cause());
+            System.err.println("Unable to send package chunks, upload again to resume");
+            TransactionManager.get().cancel(tid, true);
+            return false;
+        }
+
+        P3.SplitPackageData data = P3.SplitPackageData.newBuilder()
+                .setMeta(meta)
+                .setEndOfFile(true)
+                .setChecksum(p3.getChecksum())
+                .setChunkCount(chunkCount)
+                .build();
+
+        Commands.BaseCommand command = Commands.BaseCommand.newBuilder()
+                .setType(Commands.BaseCommand.CommandType.C_UPLOAD_SPLIT_PACKAGE)
+                .setCUploadSplitPackage(Commands.C_UploadSplitPackage.newBuilder().setData(data))
+                .build();
 
-            return TransactionManager.get().send(info.getId(), message, null);
+        Protocol.Transaction message = TransactionManager.get()
+                .build(tid, Protocol.Transaction.Mode.COMPLETE, command);
+        if (message == null) {
+            System.err.println("Unable to build transaction for split package upload");
+            return false;
         }
+
+        System.out.println("Finishing split package upload (" + chunkCount + " chunks)");
+        return TransactionManager.get().send(tid, message, null);
+    }
+
+    protected boolean processUploadStatus(Commands.C_UploadStatus status, TransactionInfo info) {
+        uploadStatus = status;
+        if (uploadStatusLatch != null)
+            uploadStatusLatch.countDown();
+
+        return true;
     }
 
     protected boolean processAck(Commands.C_Ack ack, TransactionInfo info) {
@@ -4,6 +4,7 @@ public enum ClientMode {
     NONE,
     LIST,
     PROVISION,
+    PROVISION_BATCH,
     DEPROVISION,
     SHUTDOWN,
     PROMOTE,
@@ -3,11 +3,33 @@ package io.playpen.core.coordinator.local;
 import io.playpen.core.utils.process.IProcessListener;
 import io.playpen.core.utils.process.XProcess;
 
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
 public class ConsoleMessageListener implements IProcessListener {
+    /**
+     * How long output is collected before it is sent, in milliseconds.
+     */
+    private static final long BATCH_WINDOW = 50;
+
+    /**
+     * Output is sent right away once this many characters have been collected.
+     */
+    private static final int BATCH_SIZE = 16 * 1024;
+
     private String consoleId = null;
 
     private XProcess process = null;
 
+    private final List<String> pending = new ArrayList<>();
+
+    private int pendingSize = 0;
+
+    private boolean flushScheduled = false;
+
     public ConsoleMessageListener(String id) {
         consoleId = id;
     }
@@ -15,6 +37,29 @@ public class ConsoleMessageListener implements IProcessListener {
     public void remove() {
         if(process != null)
             process.removeListener(this);
+
+        synchronized(pending) {
+            pending.clear();
+            pendingSize = 0;
+        }
+    }
+
+    /**
+     * Sends all collected output.
+     */
+    public void flush() {
+        // sending while holding the lock keeps batches in order
+        synchronized(pending) {
+            flushScheduled = false;
+            if(pending.isEmpty())
+                return;
+
+            List<String> lines = new ArrayList<>(pending);
+            pending.clear();
+            pendingSize = 0;
+
+            Local.get().sendConsoleMessages(consoleId, lines);
+        }
     }
 
     @Override
@@ -28,7 +73,19 @@ public class ConsoleMessageListener implements IProcessListener {
 
     @Override
     public void onProcessOutput(XProcess proc, String out) {
-        Local.get().sendConsoleMessage(consoleId, out);
+        synchronized(pending) {
+            pending.add(out);
+            pendingSize += out.length();
+            if(pendingSize < BATCH_SIZE) {
+                if(!flushScheduled)
+                    flushScheduled = scheduleFlush();
+
+                if(flushScheduled)
+                    return;
+            }
+        }
+
+        flush();
     }
 
     @Override
@@ -37,6 +94,21 @@ public class ConsoleMessageListener implements IProcessListener {
 
     @Override
     public void onProcessEnd(XProcess proc) {
+        flush();
         Local.get().detachConsole(consoleId);
     }
+
+    private boolean scheduleFlush() {
+        ScheduledExecutorService scheduler = Local.get().getScheduler();
+        if(scheduler == null)
+            return false;
+
+        try {
+            scheduler.schedule(this::flush, BATCH_WINDOW, TimeUnit.MILLISECONDS);
+            return true;
+        }
+        catch(RejectedExecutionException e) {
+            return false;
+        }
+    }
 }
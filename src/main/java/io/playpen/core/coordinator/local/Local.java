@@ -1,7 +1,6 @@
 package io.playpen.core.coordinator.local;
 
-import com.google.protobuf.ByteString;
-import com.google.protobuf.InvalidProtocolBufferException;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
 import io.netty.channel.Channel;
 import io.netty.channel.ChannelFuture;
 import io.netty.channel.ChannelOption;
@@ -12,13 +11,20 @@ import io.playpen.core.Bootstrap;
 import io.playpen.core.Initialization;
 import io.playpen.core.coordinator.CoordinatorMode;
 import io.playpen.core.coordinator.PlayPen;
+import io.playpen.core.coordinator.ResourceLedger;
+import io.playpen.core.networking.AbstractTransactionListener;
+import io.playpen.core.networking.MessageDispatcher;
 import io.playpen.core.networking.TransactionInfo;
 import io.playpen.core.networking.TransactionManager;
+import io.playpen.core.networking.netty.AuthenticatedMessage;
 import io.playpen.core.networking.netty.AuthenticatedMessageInitializer;
 import io.playpen.core.p3.ExecutionType;
 import io.playpen.core.p3.P3Package;
 import io.playpen.core.p3.PackageException;
+import io.playpen.core.p3.PackageImageCache;
 import io.playpen.core.p3.PackageManager;
+import io.playpen.core.p3.ResourceIndex;
+import io.playpen.core.p3.ResourceVector;
 import io.playpen.core.p3.resolver.LocalRepositoryResolver;
 import io.playpen.core.plugin.PluginManager;
 import io.playpen.core.protocol.Commands;
@@ -26,6 +32,9 @@ import io.playpen.core.protocol.Coordinator;
 import io.playpen.core.protocol.P3;
 import io.playpen.core.protocol.Protocol;
 import io.playpen.core.utils.AuthUtils;
+import io.playpen.core.utils.ChecksumAlgorithm;
+import io.playpen.core.utils.CryptoSession;
+import lombok.Data;
 import lombok.Getter;
 import lombok.extern.log4j.Log4j2;
 import org.apache.commons.io.FileUtils;
@@ -36,10 +45,13 @@ import java.io.File;
 import java.io.IOException;
 import java.io.OutputStream;
 import java.net.InetAddress;
+import java.nio.ByteBuffer;
 import java.nio.channels.FileChannel;
 import java.nio.file.*;
 import java.util.*;
 import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
 
 @Log4j2
 public class Local extends PlayPen {
@@ -59,6 +71,14 @@ public class Local extends PlayPen {
 
     private ScheduledExecutorService scheduler = null;
 
+    private ProvisionExecutor provisionExecutor = null;
+
+    private int provisionThreads = 4;
+
+    private int provisionQueueLimit = 64;
+
+    private MessageDispatcher dispatcher = null;
+
     @Getter
     private String coordName;
 
@@ -68,9 +88,16 @@ public class Local extends PlayPen {
     @Getter
     private String key;
 
+    private CryptoSession cryptoSession = null;
+
     @Getter
     private Map<String, Integer> resources = new ConcurrentHashMap<>();
 
+    /**
+     * Resources left over after the running servers. Adjusted by each server's resources as it is added or removed.
+     */
+    private final AtomicReference<ResourceLedger> ledger = new AtomicReference<>(ResourceLedger.EMPTY);
+
     @Getter
     private Set<String> attributes = new ConcurrentSkipListSet<>();
 
@@ -92,11 +119,31 @@ public class Local extends PlayPen {
 
     private Map<P3Package.P3PackageInfo, CountDownLatch> downloadMap = new ConcurrentHashMap<>();
 
-    private final Object chunkLock = new Object();
-    private Map<P3Package.P3PackageInfo, Semaphore> packageChunkLocks = new ConcurrentHashMap<>();
+    private Map<Long, ChunkedDownload> chunkedDownloads = new ConcurrentHashMap<>();
+
+    private PackageCache packageCache = null;
 
-    private Map<String, String> checksumMap = new ConcurrentHashMap<>();
-    private Map<String, CountDownLatch> checksumLatches = new ConcurrentHashMap<>();
+    private Map<Long, String> checksumMap = new ConcurrentHashMap<>();
+    private Map<Long, CountDownLatch> checksumLatches = new ConcurrentHashMap<>();
+
+    /**
+     * Checks packages against the checksums sent with provisions (see verifyPackages()).
+     */
+    private final ExecutorService verifyExecutor = Executors.newCachedThreadPool(
+            new ThreadFactoryBuilder().setNameFormat("package-verify-%d").setDaemon(true).build());
+
+    private final Map<P3Package.P3PackageInfo, Object> verifyLocks = new ConcurrentHashMap<>();
+
+    /**
+     * State as of the last SYNC sent, so the next SYNC only has to carry the servers that changed.
+     */
+    private Map<String, Coordinator.Server> syncedServers = new HashMap<>();
+    private Map<String, Integer> syncedResources = new HashMap<>();
+    private Set<String> syncedAttributes = new HashSet<>();
+
+    private long syncSequence = 0;
+
+    private boolean fullSyncRequired = true;
 
     private Local() {
         super();
@@ -114,25 +161,17 @@ public class Local extends PlayPen {
             log.warn("Unable to remove old server installations", e);
         }
 
-        log.info("Clearing package cache");
-        try {
-            File cacheDir = Paths.get(Bootstrap.getHomeDir().toString(), "cache", "packages").toFile();
-            FileUtils.deleteDirectory(cacheDir);
-            cacheDir.mkdirs();
-        }
-        catch(IOException e) {
-            log.warn("Unable to clear package cache", e);
-        }
+        // packages, images and assets are kept across restarts, but only if they still match what was recorded
+        log.info("Checking package cache");
+        File cacheDir = Paths.get(Bootstrap.getHomeDir().toString(), "cache", "packages").toFile();
+        File imagesDir = Paths.get(Bootstrap.getHomeDir().toString(), "cache", "images").toFile();
+        cacheDir.mkdirs();
+        imagesDir.mkdirs();
+        Paths.get(Bootstrap.getHomeDir().toString(), "assets").toFile().mkdirs();
 
-        log.info("Clearing assets");
-        try {
-            File assetsDir = Paths.get(Bootstrap.getHomeDir().toString(), "assets").toFile();
-            FileUtils.deleteDirectory(assetsDir);
-            assetsDir.mkdirs();
-        }
-        catch(IOException e) {
-            log.warn("Unable to clear assets", e);
-        }
+        packageCache = new PackageCache(cacheDir,
+                Paths.get(Bootstrap.getHomeDir().toString(), "cache", "packages.manifest.json").toFile());
+        packageCache.load(new PackageImageCache(imagesDir));
 
         log.info("Clearing temporary files");
         try {
@@ -173,11 +212,34 @@ public class Local extends PlayPen {
             coordPort = config.getInt("coord-port");
             useNameForLogs = config.getBoolean("use-name-for-logs");
 
+            TransactionManager.get().configureTimeouts(config.optJSONObject("transaction-timeouts"));
+
+            JSONObject provisioning = config.optJSONObject("provisioning");
+            if(provisioning == null)
+                provisioning = new JSONObject();
+
+            provisionThreads = Math.max(1, provisioning.optInt("threads", 4));
+            provisionQueueLimit = Math.max(0, provisioning.optInt("queue-limit", 64));
+            packageManager.setIOStepLimit(provisioning.optInt("io-threads", 2));
+
+            if(config.optBoolean("image-cache", true)) {
+                packageManager.setImageCache(new PackageImageCache(
+                        Paths.get(Bootstrap.getHomeDir().getPath(), "cache", "images").toFile()));
+            }
+            else {
+                packageManager.setImageCache(null);
+            }
+
             JSONObject res = config.getJSONObject("resources");
             for(String key : res.keySet()) {
                 resources.put(key, res.getInt(key));
             }
 
+            rebuildLedger();
+
+            packageCache.setQuota(Math.max(0, config.optLong("cache-quota-mb", 0)) * 1024L * 1024L);
+            evictPackages(null);
+
             JSONArray attr = config.getJSONArray("attributes");
             for(int i = 0; i < attr.length(); ++i) {
                 attributes.add(attr.getString(i));
@@ -200,6 +262,8 @@ public class Local extends PlayPen {
             return false;
         }
 
+        cryptoSession = new CryptoSession(uuid, key);
+
         if(coordName == null) {
             log.warn("No coordinator name specified in local.json"); // not fatal
         }
@@ -208,6 +272,14 @@ public class Local extends PlayPen {
         EventLoopGroup group = new NioEventLoopGroup();
         try {
             scheduler = Executors.newScheduledThreadPool(4);
+            // everything we receive comes from the network coordinator, so a single ordered worker is enough
+            dispatcher = new MessageDispatcher("local", 1, Integer.MAX_VALUE);
+            // let the network coordinator know right away when provisions start or stop being rejected
+            provisionExecutor = new ProvisionExecutor(provisionThreads, provisionQueueLimit, () -> {
+                ScheduledExecutorService s = scheduler;
+                if(s != null)
+                    s.execute(() -> Local.get().sync());
+            });
 
             io.netty.bootstrap.Bootstrap b = new io.netty.bootstrap.Bootstrap();
             b.group(group)
@@ -226,6 +298,7 @@ public class Local extends PlayPen {
 
             log.info("Connected to network coordinator at " + coordIp + " port " + coordPort);
 
+            requestFullSync();
             sync();
 
             log.info("Scheduling SYNC for every 90 seconds");
@@ -241,6 +314,12 @@ public class Local extends PlayPen {
             scheduler.shutdownNow();
             scheduler = null;
 
+            dispatcher.shutdown();
+            dispatcher = null;
+
+            provisionExecutor.shutdown();
+            provisionExecutor = null;
+
             group.shutdownGracefully();
         }
 
@@ -265,17 +344,7 @@ public class Local extends PlayPen {
     }
 
     public Map<String, Integer> getAvailableResources() {
-        Map<String, Integer> used = new HashMap<>();
-        for(Map.Entry<String, Integer> entry : resources.entrySet()) {
-            Integer value = entry.getValue();
-            for(Server server : servers.values()) {
-                value -= server.getP3().getResources().getOrDefault(entry.getKey(), 0);
-            }
-
-            used.put(entry.getKey(), value);
-        }
-
-        return used;
+        return ledger.get().getAvailableResources();
     }
 
     public boolean canProvisionPackage(P3Package p3) {
@@ -286,22 +355,34 @@ public class Local extends PlayPen {
             }
         }
 
-        Map<String, Integer> resources = getAvailableResources();
-        for(Map.Entry<String, Integer> entry : p3.getResources().entrySet()) {
-            if(!resources.containsKey(entry.getKey())) {
-                log.warn("Missing resource " + entry.getKey() + " for " + p3.getId() + " at " + p3.getVersion());
-                return false;
+        ResourceLedger current = ledger.get();
+        int shortfall = current.findShortfall(p3.getResourceVector());
+        if(shortfall >= 0) {
+            if(!current.hasResource(shortfall)) {
+                log.warn("Missing resource " + ResourceIndex.nameOf(shortfall) + " for " + p3.getId() + " at " + p3.getVersion());
             }
-
-            if(resources.get(entry.getKey()) - entry.getValue() < 0) {
-                log.warn("Not enough of resource " + entry.getKey() + " for " + p3.getId() + " at " + p3.getVersion());
-                return false;
+            else {
+                log.warn("Not enough of resource " + ResourceIndex.nameOf(shortfall) + " for " + p3.getId() + " at " + p3.getVersion());
             }
+
+            return false;
         }
 
         return true;
     }
 
+    /**
+     * Rebuilds the ledger from the configured resources and the servers that are currently running.
+     */
+    private void rebuildLedger() {
+        ResourceLedger newLedger = ResourceLedger.of(resources);
+        for(Server server : servers.values()) {
+            newLedger = newLedger.allocate(server.getP3().getResourceVector());
+        }
+
+        ledger.set(newLedger);
+    }
+
     public Server getServer(String idOrName) {
         if(servers.containsKey(idOrName))
             return servers.get(idOrName);
@@ -353,7 +434,9 @@ public class Local extends PlayPen {
             log.warn("Unable to remove server " + id + " from disk, ignoring.");
         }
 
-        servers.remove(id);
+        Server removed = servers.remove(id);
+        if(removed != null)
+            ledger.updateAndGet(l -> l.release(removed.getP3().getResourceVector()));
     }
 
     public void shutdownCoordinator() {
@@ -429,6 +512,11 @@ public class Local extends PlayPen {
         return scheduler;
     }
 
+    @Override
+    public MessageDispatcher getDispatcher() {
+        return dispatcher;
+    }
+
     @Override
     public boolean send(Protocol.Transaction message, String target) {
         if(channel == null || !channel.isActive()) {
@@ -441,48 +529,23 @@ public class Local extends PlayPen {
             return false;
         }
 
-        ByteString messageBytes = message.toByteString();
-        byte[] encBytes = AuthUtils.encrypt(messageBytes.toByteArray(), getKey());
-        String hash = AuthUtils.createHash(getKey(), encBytes);
-        messageBytes = ByteString.copyFrom(encBytes);
-
-        Protocol.AuthenticatedMessage auth = Protocol.AuthenticatedMessage.newBuilder()
-                .setUuid(getUuid())
-                .setVersion(Bootstrap.getProtocolVersion())
-                .setHash(hash)
-                .setPayload(messageBytes)
-                .build();
-
-        if(!auth.isInitialized()) {
-            log.error("Message is not initialized (protobuf)");
-            return false;
-        }
-
-        channel.writeAndFlush(auth);
+        channel.writeAndFlush(new AuthenticatedMessage(getUuid(), message));
         return true;
     }
 
     @Override
-    public boolean receive(Protocol.AuthenticatedMessage auth, Channel from) {
-        if(!auth.getUuid().equals(uuid) || !AuthUtils.validateHash(auth, key)) {
-            log.error("Invalid hash on message");
-            return false;
-        }
-
-        ByteString payload = auth.getPayload();
-        byte[] payloadBytes = AuthUtils.decrypt(payload.toByteArray(), key);
-        payload = ByteString.copyFrom(payloadBytes);
+    public CryptoSession getCryptoSession(String uuid) {
+        return this.uuid.equals(uuid) ? cryptoSession : null;
+    }
 
-        Protocol.Transaction transaction = null;
-        try {
-            transaction = Protocol.Transaction.parseFrom(payload);
-        }
-        catch(InvalidProtocolBufferException e) {
-            log.error("Unable to read transaction from message", e);
+    @Override
+    public boolean receive(AuthenticatedMessage auth, Channel from) {
+        if(!auth.getUuid().equals(uuid)) {
+            log.error("Received a message for an unknown coordinator (" + auth.getUuid() + ")");
             return false;
         }
 
-        TransactionManager.get().receive(transaction, null);
+        TransactionManager.get().receive(auth.getTransaction(), null);
         return true;
     }
 
@@ -496,6 +559,9 @@ public class Local extends PlayPen {
             case PROVISION:
                 return processProvision(command.getProvision(), info);
 
+            case PROVISION_BATCH:
+                return processProvisionBatch(command.getProvisionBatch(), info);
+
             case PACKAGE_RESPONSE:
                 return processPackageResponse(command.getPackageResponse(), info);
 
@@ -522,6 +588,9 @@ public class Local extends PlayPen {
 
             case FREEZE_SERVER:
                 return processFreezeServer(command.getFreezeServer(), info);
+
+            case RESYNC:
+                return processResync(info);
         }
     }
 
@@ -589,6 +658,8 @@ public class Local extends PlayPen {
         server.setP3(p3);
 
         servers.put(server.getUuid(), server);
+        ResourceVector vector = server.getP3().getResourceVector();
+        ledger.updateAndGet(l -> l.allocate(vector));
 
         log.info("Provisioned server " + uuid + ", executing!");
 
@@ -617,24 +688,20 @@ public class Local extends PlayPen {
         }
     }
 
-    protected boolean sendSync() {
-        Commands.Sync.Builder syncBuilder = Commands.Sync.newBuilder()
-                .setEnabled(enabled);
-
-        if(coordName != null)
-            syncBuilder.setName(coordName);
-
-        for(Map.Entry<String, Integer> entry : resources.entrySet()) {
-            Coordinator.Resource resource = Coordinator.Resource.newBuilder()
-                    .setName(entry.getKey())
-                    .setValue(entry.getValue())
-                    .build();
-
-            syncBuilder.addResources(resource);
-        }
-
-        syncBuilder.addAllAttributes(attributes);
+    /**
+     * Makes the next SYNC a full one, e.g. after (re)connecting to the network coordinator.
+     */
+    protected synchronized void requestFullSync() {
+        fullSyncRequired = true;
+    }
 
+    /**
+     * Sends a SYNC to the network coordinator. Only the servers that changed since the previous SYNC are sent, unless
+     * a full SYNC has been requested or the resources or attributes changed. Every SYNC has a sequence number so the
+     * network coordinator can tell when it missed one and ask for a full SYNC instead.
+     */
+    protected synchronized boolean sendSync() {
+        Map<String, Coordinator.Server> currentServers = new HashMap<>();
         for(Server server : servers.values()) {
             P3.P3Meta meta = P3.P3Meta.newBuilder()
                     .setId(server.getP3().getId())
@@ -648,7 +715,8 @@ public class Local extends PlayPen {
             if(server.getName() != null)
                 serverBuilder.setName(server.getName());
 
-            for(Map.Entry<String, String> entry : server.getProperties().entrySet()) {
+            // sorted so an unchanged server always builds an equal message
+            for(Map.Entry<String, String> entry : new TreeMap<>(server.getProperties()).entrySet()) {
                 Coordinator.Property prop = Coordinator.Property.newBuilder()
                         .setName(entry.getKey())
                         .setValue(entry.getValue())
@@ -657,7 +725,7 @@ public class Local extends PlayPen {
                 serverBuilder.addProperties(prop);
             }
 
-            syncBuilder.addServers(serverBuilder.build());
+            currentServers.put(server.getUuid(), serverBuilder.build());
         }
 
         for (Coordinator.Server localServer : provisioningServers.values()) {
@@ -669,7 +737,48 @@ public class Local extends PlayPen {
             if (localServer.getName() != null)
                 server.setName(localServer.getName());
 
-            syncBuilder.addServers(server.build());
+            currentServers.put(localServer.getUuid(), server.build());
+        }
+
+        boolean full = fullSyncRequired || !resources.equals(syncedResources) || !attributes.equals(syncedAttributes);
+
+        Commands.Sync.Builder syncBuilder = Commands.Sync.newBuilder()
+                .setEnabled(enabled)
+                .setSequence(++syncSequence)
+                .setDelta(!full);
+
+        ProvisionExecutor executor = provisionExecutor;
+        if(executor != null) {
+            syncBuilder.setProvisionQueued(executor.getQueued());
+            syncBuilder.setProvisionSaturated(executor.isSaturated());
+        }
+
+        if(coordName != null)
+            syncBuilder.setName(coordName);
+
+        if(full) {
+            for(Map.Entry<String, Integer> entry : resources.entrySet()) {
+                Coordinator.Resource resource = Coordinator.Resource.newBuilder()
+                        .setName(entry.getKey())
+                        .setValue(entry.getValue())
+                        .build();
+
+                syncBuilder.addResources(resource);
+            }
+
+            syncBuilder.addAllAttributes(attributes);
+            syncBuilder.addAllServers(currentServers.values());
+        }
+        else {
+            for(Map.Entry<String, Coordinator.Server> entry : currentServers.entrySet()) {
+                if(!entry.getValue().equals(syncedServers.get(entry.getKey())))
+                    syncBuilder.addServers(entry.getValue());
+            }
+
+            for(String uuid : syncedServers.keySet()) {
+                if(!currentServers.containsKey(uuid))
+                    syncBuilder.addRemovedServers(uuid);
+            }
         }
 
         Commands.Sync sync = syncBuilder.build();
@@ -679,18 +788,30 @@ public class Local extends PlayPen {
                 .setSync(sync)
                 .build();
 
-        TransactionInfo info = TransactionManager.get().begin();
+        if(full) {
+            log.info("Sending SYNC to network coordinator");
+        }
+        else {
+            log.debug("Sending SYNC to network coordinator (" + sync.getServersCount() + " servers changed, "
+                    + sync.getRemovedServersCount() + " removed)");
+        }
 
-        Protocol.Transaction message = TransactionManager.get()
-                .build(info.getId(), Protocol.Transaction.Mode.SINGLE, command);
-        if(message == null) {
-            log.error("Unable to build message for sync");
-            TransactionManager.get().cancel(info.getId());
+        if(!TransactionManager.get().sendSingle(command, null)) {
+            fullSyncRequired = true;
             return false;
         }
 
-        log.info("Sending SYNC to network coordinator");
-        return TransactionManager.get().send(info.getId(), message, null);
+        syncedServers = currentServers;
+        syncedResources = new HashMap<>(resources);
+        syncedAttributes = new HashSet<>(attributes);
+        fullSyncRequired = false;
+        return true;
+    }
+
+    protected boolean processResync(TransactionInfo info) {
+        log.info("RESYNC received, sending full SYNC");
+        requestFullSync();
+        return sendSync();
     }
 
     protected boolean processProvision(Commands.Provision command, TransactionInfo info) {
@@ -711,18 +832,108 @@ public class Local extends PlayPen {
         final String version = server.getP3().getVersion();
         final String uuid = server.getUuid();
         final String name = server.hasName() ? server.getName() : null;
-        final String tid = info.getId();
+        final long tid = info.getId();
 
         provisioningServers.put(server.getUuid(), server);
 
-        scheduler.schedule(() -> {
-            Local.get().checkPackageForProvision(tid, id, version, uuid, properties, name);
-        }, 2, TimeUnit.SECONDS);
+        checkPackageForProvision(tid, id, version, uuid, properties, name, readChecksums(command.getChecksumsList()));
 
         return true;
     }
 
-    protected boolean sendProvisionResponse(String tid, boolean ok) {
+    protected boolean processProvisionBatch(Commands.ProvisionBatch command, TransactionInfo info) {
+        if(command.getServersCount() == 0) {
+            log.error("PROVISION_BATCH contained no servers");
+            sendProvisionBatchResponse(info.getId(), command.getServersList(), Collections.emptyMap());
+            return false;
+        }
+
+        String id = command.getServers(0).getP3().getId();
+        String version = command.getServers(0).getP3().getVersion();
+        List<Coordinator.Server> batch = new ArrayList<>(command.getServersCount());
+        Map<String, Boolean> rejected = new HashMap<>();
+        for(Coordinator.Server server : command.getServersList()) {
+            if(servers.containsKey(server.getUuid()) || provisioningServers.containsKey(server.getUuid())) {
+                log.error("PROVISION_BATCH contained existing server uuid " + server.getUuid());
+                rejected.put(server.getUuid(), false);
+                continue;
+            }
+
+            if(!id.equals(server.getP3().getId()) || !version.equals(server.getP3().getVersion())) {
+                log.error("PROVISION_BATCH contained server " + server.getUuid() + " with a different package");
+                rejected.put(server.getUuid(), false);
+                continue;
+            }
+
+            batch.add(server);
+        }
+
+        if(batch.isEmpty()) {
+            sendProvisionBatchResponse(info.getId(), command.getServersList(), rejected);
+            return false;
+        }
+
+        final long tid = info.getId();
+        batch.forEach(server -> provisioningServers.put(server.getUuid(), server));
+
+        checkPackageForProvisionBatch(tid, batch, readChecksums(command.getChecksumsList()));
+
+        return true;
+    }
+
+    protected Map<P3Package.P3PackageInfo, String> readChecksums(List<Commands.PackageChecksum> checksums) {
+        Map<P3Package.P3PackageInfo, String> result = new HashMap<>();
+        for(Commands.PackageChecksum checksum : checksums) {
+            P3Package.P3PackageInfo p3info = new P3Package.P3PackageInfo();
+            p3info.setId(checksum.getP3().getId());
+            p3info.setVersion(checksum.getP3().getVersion());
+            result.put(p3info, checksum.getChecksum());
+        }
+
+        return result;
+    }
+
+    /**
+     * Servers missing from results are reported as failed.
+     */
+    protected boolean sendProvisionBatchResponse(long tid, List<Coordinator.Server> batch, Map<String, Boolean> results) {
+        TransactionInfo info = TransactionManager.get().getTransaction(tid);
+        if(info == null) {
+            log.error("Unknown transaction " + tid + ", unable to send provision batch response");
+            return false;
+        }
+
+        Commands.ProvisionBatchResponse.Builder response = Commands.ProvisionBatchResponse.newBuilder();
+        int succeeded = 0;
+        for(Coordinator.Server server : batch) {
+            boolean ok = results.getOrDefault(server.getUuid(), false);
+            if(ok)
+                ++succeeded;
+
+            response.addResults(Commands.ProvisionBatchResult.newBuilder()
+                    .setUuid(server.getUuid())
+                    .setOk(ok)
+                    .build());
+        }
+
+        Commands.BaseCommand command = Commands.BaseCommand.newBuilder()
+                .setType(Commands.BaseCommand.CommandType.PROVISION_BATCH_RESPONSE)
+                .setProvisionBatchResponse(response.build())
+                .build();
+
+        Protocol.Transaction message = TransactionManager.get()
+                .build(info.getId(), Protocol.Transaction.Mode.COMPLETE, command);
+        if(message == null) {
+            log.error("Unable to build message for provision batch response");
+            return false;
+        }
+
+        log.info("Sending provision batch response (" + succeeded + " of " + batch.size() + " ok)");
+
+        return TransactionManager.get().send(info.getId(), message, null);
+    }
+
+    protected boolean sendProvisionResponse(long tid, boolean ok) {
         TransactionInfo info = TransactionManager.get().getTransaction(tid);
         if(info == null) {
             log.error("Unknown transaction " + tid + ", unable to send provision response");
@@ -750,7 +961,7 @@ public class Local extends PlayPen {
         return TransactionManager.get().send(info.getId(), message, null);
     }
 
-    protected boolean sendPackageRequest(String tid, String id, String version) {
+    protected boolean sendPackageRequest(long tid, String id, String version) {
         P3.P3Meta meta = P3.P3Meta.newBuilder()
                 .setId(id)
                 .setVersion(version)
@@ -766,6 +977,12 @@ public class Local extends PlayPen {
                 .build();
 
         TransactionInfo info = TransactionManager.get().begin();
+        info.setHandler(new AbstractTransactionListener() {
+            @Override
+            public void onTransactionCancel(TransactionManager tm, TransactionInfo info) {
+                abortChunkedDownload(info.getId());
+            }
+        });
 
         Protocol.Transaction message = TransactionManager.get()
                 .build(info.getId(), Protocol.Transaction.Mode.CREATE, command);
@@ -789,10 +1006,6 @@ public class Local extends PlayPen {
                 Bootstrap.getHomeDir().getPath(),
                 "temp",
                 UUID.randomUUID() + ".p3");
-        Path trueDest = Paths.get(
-                Bootstrap.getHomeDir().getPath(),
-                "cache", "packages",
-                response.getData().getMeta().getId() + "_" + response.getData().getMeta().getVersion() + ".p3");
 
         log.info("Writing received package " + response.getData().getMeta().getId() + " at " + response.getData().getMeta().getVersion() + " to temp");
 
@@ -804,40 +1017,7 @@ public class Local extends PlayPen {
             return false;
         }
 
-        // checksum
-        String checksum = null;
-        try {
-            checksum = AuthUtils.createPackageChecksum(tmpDest.toString());
-        } catch (IOException e) {
-            log.error("Unable to generate checksum from downloaded package at " + tmpDest, e);
-            return false;
-        }
-
-        if (!checksum.equals(response.getData().getChecksum())) {
-            log.error("Checksum mismatch! Expected: " + response.getData().getChecksum() + ", got: " + checksum);
-            return false;
-        }
-
-
-        log.info("Moving package " + response.getData().getMeta().getId() +  " at " + response.getData().getMeta().getVersion() + " to cache");
-
-        try {
-            Files.move(tmpDest, trueDest);
-        }
-        catch(IOException e) {
-            log.error("Cannot move package to " + trueDest, e);
-            return false;
-        }
-
-        P3Package.P3PackageInfo p3info = new P3Package.P3PackageInfo();
-        p3info.setId(response.getData().getMeta().getId());
-        p3info.setVersion(response.getData().getMeta().getVersion());
-        CountDownLatch latch = downloadMap.get(p3info);
-        if(latch != null) {
-            latch.countDown();
-        }
-
-        return true;
+        return finishPackageDownload(response.getData().getMeta(), tmpDest, response.getData().getChecksum());
     }
 
     protected boolean processSplitPackageResponse(Commands.SplitPackageResponse response, TransactionInfo info) {
@@ -846,142 +1026,145 @@ public class Local extends PlayPen {
             return false;
         }
 
-        Path trueDest = Paths.get(
-                Bootstrap.getHomeDir().getPath(),
-                "cache", "packages",
-                response.getData().getMeta().getId() + "_" + response.getData().getMeta().getVersion() + ".p3");
-
         P3.SplitPackageData data = response.getData();
-        P3Package.P3PackageInfo p3info = new P3Package.P3PackageInfo();
-        p3info.setId(data.getMeta().getId());
-        p3info.setVersion(data.getMeta().getVersion());
 
+        // chunks are processed in order, so every chunk has been written by the time the end of file arrives
         if (data.getEndOfFile()) {
             log.info("Received end of file for package " + data.getMeta().getId() + " (" + data.getMeta().getVersion() + ")");
 
-            synchronized(chunkLock) {
-                if (!packageChunkLocks.containsKey(p3info)) {
-                    packageChunkLocks.put(p3info, new Semaphore(0));
-                }
+            ChunkedDownload download = chunkedDownloads.remove(info.getId());
+            if (download == null) {
+                log.error("Received end of file for an unknown package download (" + info.getId() + ")");
+                return false;
             }
 
-            Thread thread = new Thread(() -> {
-                try {
-                    if (!packageChunkLocks.get(p3info).tryAcquire(data.getChunkCount(), 340, TimeUnit.SECONDS)) {
-                        log.error("Timed out waiting for chunk download to finish");
-                        return;
-                    }
-                } catch (InterruptedException e) {
-                    log.error("Interrupted while waiting for chunk download to finish", e);
-                    return;
-                }
-                finally {
-                    packageChunkLocks.remove(p3info);
-                }
-
-                // merge all chunks
-                log.info("Merging chunks...");
-
-                Path tmpDest = Paths.get(
-                        Bootstrap.getHomeDir().getPath(),
-                        "temp",
-                        UUID.randomUUID() + ".p3");
-                try (FileChannel channel = FileChannel.open(tmpDest, StandardOpenOption.WRITE, StandardOpenOption.CREATE_NEW)) {
-                    for (int i = 0; i < data.getChunkCount(); ++i) {
-                        Path oldFile = Paths.get(
-                                Bootstrap.getHomeDir().getPath(),
-                                "temp",
-                                "split-" + i + "-" + info.getId() + ".p3"
-                        );
-
-                        try (FileChannel chunkChannel = FileChannel.open(oldFile, StandardOpenOption.READ,
-                                StandardOpenOption.DELETE_ON_CLOSE)) {
-                            long currentFilePos = 0;
-                            long sz = chunkChannel.size();
-                            while (currentFilePos < sz) {
-                                long remain = sz - currentFilePos;
-                                long bytesCopied = chunkChannel.transferTo(currentFilePos, remain, channel);
-
-                                if (bytesCopied == 0) {
-                                    break;
-                                }
-
-                                currentFilePos += bytesCopied;
-                            }
-                        }
-                    }
-                }
-                catch(IOException e) {
-                    log.error("Unable to write package chunks to " + tmpDest, e);
-                    return;
-                }
+            try {
+                download.getChannel().close();
+            }
+            catch(IOException e) {
+                log.error("Unable to close package download " + download.getPath(), e);
+                return false;
+            }
 
-                log.info("Merge finished.");
+            if (download.getReceivedChunks() != data.getChunkCount()) {
+                log.error("Expected " + data.getChunkCount() + " chunks but only received " + download.getReceivedChunks());
+                download.getPath().toFile().delete();
+                return false;
+            }
 
-                // checksum
-                String checksum = null;
-                try {
-                    checksum = AuthUtils.createPackageChecksum(tmpDest.toString());
-                } catch (IOException e) {
-                    log.error("Unable to generate checksum from downloaded package at " + tmpDest, e);
-                    return;
-                }
+            return finishPackageDownload(data.getMeta(), download.getPath(), data.getChecksum());
+        }
 
-                if (!checksum.equals(data.getChecksum())) {
-                    log.error("Checksum mismatch! Expected: " + data.getChecksum() + ", got: " + checksum);
-                    return;
-                }
+        ChunkedDownload download = chunkedDownloads.get(info.getId());
+        if (download == null) {
+            Path tmpDest = Paths.get(
+                    Bootstrap.getHomeDir().getPath(),
+                    "temp",
+                    UUID.randomUUID() + ".p3");
 
-                log.info("Moving package " + data.getMeta().getId() +  " at " + data.getMeta().getVersion() + " to cache");
+            log.info("Receiving package " + data.getMeta().getId() + " at " + data.getMeta().getVersion() + " (" + data.getFileSize() + " bytes) to temp");
 
-                try {
-                    Files.move(tmpDest, trueDest);
-                }
-                catch(IOException e) {
-                    log.error("Cannot move package to " + trueDest, e);
-                    return;
+            download = new ChunkedDownload();
+            download.setPath(tmpDest);
+            try {
+                download.setChannel(FileChannel.open(tmpDest, StandardOpenOption.WRITE, StandardOpenOption.CREATE_NEW));
+                if (data.hasFileSize() && data.getFileSize() > 0) {
+                    // reserve the whole file up front so chunks can be written straight to their offset
+                    download.getChannel().write(ByteBuffer.allocate(1), data.getFileSize() - 1);
                 }
+            }
+            catch(IOException e) {
+                log.error("Unable to create package download at " + tmpDest, e);
+                return false;
+            }
 
-                log.info("Finished moving package, unlocking download latch.");
-                CountDownLatch latch = downloadMap.get(p3info);
-                if(latch != null) {
-                    latch.countDown();
-                }
-            });
+            chunkedDownloads.put(info.getId(), download);
+        }
 
-            thread.start();
+        log.debug("Received chunk #" + data.getChunkId());
 
-            return true;
+        ByteBuffer chunk = data.getData().asReadOnlyByteBuffer();
+        long offset = data.getOffset();
+        try {
+            while (chunk.hasRemaining()) {
+                offset += download.getChannel().write(chunk, offset);
+            }
+        }
+        catch(IOException e) {
+            log.error("Unable to write package chunk to " + download.getPath(), e);
+            abortChunkedDownload(info.getId());
+            return false;
         }
 
-        Path tmpDest = Paths.get(
-            Bootstrap.getHomeDir().getPath(),
-            "temp",
-            "split-" + data.getChunkId() + "-" + info.getId() + ".p3");
+        download.setReceivedChunks(download.getReceivedChunks() + 1);
+        return true;
+    }
 
-        log.info("Received chunk #" + response.getData().getChunkId());
+    protected void abortChunkedDownload(long tid) {
+        ChunkedDownload download = chunkedDownloads.remove(tid);
+        if (download == null)
+            return;
 
-        // append data
-        try (OutputStream output = Files.newOutputStream(tmpDest, StandardOpenOption.CREATE_NEW)) {
-            response.getData().getData().writeTo(output);
+        log.warn("Aborting package download to " + download.getPath());
+        try {
+            download.getChannel().close();
         }
         catch(IOException e) {
-            log.error("Unable to write package chunk to " + tmpDest, e);
+            log.warn("Unable to close package download " + download.getPath(), e);
+        }
+
+        download.getPath().toFile().delete();
+    }
+
+    protected boolean finishPackageDownload(P3.P3Meta meta, Path tmpDest, String expectedChecksum) {
+        Path trueDest = Paths.get(
+                Bootstrap.getHomeDir().getPath(),
+                "cache", "packages",
+                meta.getId() + "_" + meta.getVersion() + ".p3");
+
+        // checksum
+        String checksum = null;
+        try {
+            checksum = AuthUtils.createPackageChecksum(tmpDest.toString(), ChecksumAlgorithm.forChecksum(expectedChecksum));
+        } catch (IOException e) {
+            log.error("Unable to generate checksum from downloaded package at " + tmpDest, e);
             return false;
         }
 
-        synchronized(chunkLock) {
-            if (!packageChunkLocks.containsKey(p3info)) {
-                packageChunkLocks.put(p3info, new Semaphore(0));
-            }
+        if (!checksum.equals(expectedChecksum)) {
+            log.error("Checksum mismatch! Expected: " + expectedChecksum + ", got: " + checksum);
+            tmpDest.toFile().delete();
+            return false;
+        }
+
+        log.info("Moving package " + meta.getId() +  " at " + meta.getVersion() + " to cache");
+
+        try {
+            Files.move(tmpDest, trueDest);
+        }
+        catch(IOException e) {
+            log.error("Cannot move package to " + trueDest, e);
+            return false;
         }
 
-        packageChunkLocks.get(p3info).release();
+        packageCache.add(trueDest.toFile(), meta.getId(), meta.getVersion(), checksum);
+        packageManager.recordChecksum(trueDest.toFile(), checksum);
+
+        P3Package.P3PackageInfo p3info = new P3Package.P3PackageInfo();
+        p3info.setId(meta.getId());
+        p3info.setVersion(meta.getVersion());
+
+        // the package was downloaded because something needs it, so it must not be evicted right away
+        evictPackages(p3info);
+        CountDownLatch latch = downloadMap.get(p3info);
+        if(latch != null) {
+            latch.countDown();
+        }
 
         return true;
     }
 
-    protected boolean sendPackageChecksumRequest(String tid, String id, String version) {
+    protected boolean sendPackageChecksumRequest(long tid, String id, String version) {
         P3.P3Meta meta = P3.P3Meta.newBuilder()
                 .setId(id)
                 .setVersion(version)
@@ -1060,18 +1243,9 @@ public class Local extends PlayPen {
                 .setServerShutdown(shutdown)
                 .build();
 
-        TransactionInfo info = TransactionManager.get().begin();
-        Protocol.Transaction message = TransactionManager.get()
-                .build(info.getId(), Protocol.Transaction.Mode.SINGLE, command);
-        if(message == null) {
-            log.error("Unable to build transaction for SERVER_SHUTDOWN");
-            TransactionManager.get().cancel(info.getId());
-            return false;
-        }
-
         log.info("Sending server shutdown notice to network coordinator");
 
-        return TransactionManager.get().send(info.getId(), message, null);
+        return TransactionManager.get().sendSingle(command, null);
     }
 
     protected boolean processShutdown(TransactionInfo info) {
@@ -1121,9 +1295,9 @@ public class Local extends PlayPen {
         ConsoleMessageListener listener = new ConsoleMessageListener(message.getConsoleId());
         consoles.put(message.getConsoleId(), listener);
 
-        Queue<String> lastLines = server.getProcess().getLastLines();
-        for (String line : lastLines) {
-            sendConsoleMessage(message.getConsoleId(), line);
+        List<String> lastLines = new ArrayList<>(server.getProcess().getLastLines());
+        if (!lastLines.isEmpty()) {
+            sendConsoleMessages(message.getConsoleId(), lastLines);
         }
 
         server.getProcess().addListener(listener);
@@ -1132,32 +1306,26 @@ public class Local extends PlayPen {
     }
 
     public boolean sendConsoleMessage(String consoleId, String consoleMessage) { // yes, that's public
+        return sendConsoleMessages(consoleId, Collections.singletonList(consoleMessage));
+    }
+
+    public boolean sendConsoleMessages(String consoleId, List<String> consoleMessages) {
         if(!consoles.containsKey(consoleId)) {
-            log.error("Cannot send CONSOLE_MESSAGE with invalid console id " + consoleId);
+            log.error("Cannot send CONSOLE_MESSAGE_BATCH with invalid console id " + consoleId);
             return false;
         }
 
-        Commands.ConsoleMessage cm = Commands.ConsoleMessage.newBuilder()
+        Commands.ConsoleMessageBatch batch = Commands.ConsoleMessageBatch.newBuilder()
                 .setConsoleId(consoleId)
-                .setValue(consoleMessage)
+                .addAllValues(consoleMessages)
                 .build();
 
         Commands.BaseCommand command = Commands.BaseCommand.newBuilder()
-                .setType(Commands.BaseCommand.CommandType.CONSOLE_MESSAGE)
-                .setConsoleMessage(cm)
+                .setType(Commands.BaseCommand.CommandType.CONSOLE_MESSAGE_BATCH)
+                .setConsoleMessageBatch(batch)
                 .build();
 
-        TransactionInfo info = TransactionManager.get().begin();
-
-        Protocol.Transaction message = TransactionManager.get()
-                .build(info.getId(), Protocol.Transaction.Mode.SINGLE, command);
-        if(message == null) {
-            log.error("Unable to create transaction for CONSOLE_MESSAGE");
-            TransactionManager.get().cancel(info.getId());
-            return false;
-        }
-
-        return TransactionManager.get().send(info.getId(), message, null);
+        return TransactionManager.get().sendSingle(command, null);
     }
 
     protected boolean sendDetachConsole(String consoleId) {
@@ -1170,19 +1338,9 @@ public class Local extends PlayPen {
                 .setDetachConsole(detach)
                 .build();
 
-        TransactionInfo info = TransactionManager.get().begin();
-
-        Protocol.Transaction message = TransactionManager.get()
-                .build(info.getId(), Protocol.Transaction.Mode.SINGLE, command);
-        if(message == null) {
-            log.error("Unable to create transaction for DETACH_CONSOLE");
-            TransactionManager.get().cancel(info.getId());
-            return false;
-        }
-
         log.info("Sending DETACH_CONSOLE for " + consoleId);
 
-        return TransactionManager.get().send(info.getId(), message, null);
+        return TransactionManager.get().sendSingle(command, null);
     }
 
     protected boolean processDetachConsole(Commands.DetachConsole message, TransactionInfo info) {
@@ -1212,12 +1370,29 @@ public class Local extends PlayPen {
 
         File file = new File(p3.getLocalPath());
         file.delete();
-        getPackageManager().getPackageCache().remove(p3info);
+        getPackageManager().expirePackage(p3info);
+
+        String checksum = packageCache.remove(file);
+        if(checksum != null && packageManager.getImageCache() != null)
+            packageManager.getImageCache().removeImage(checksum);
+    }
+
+    /**
+     * Evicts the least recently used packages from the package cache until it fits in the configured quota. Packages
+     * pinned by running provisions and the given package (if any) are kept.
+     */
+    protected void evictPackages(P3Package.P3PackageInfo keep) {
+        for(P3Package.P3PackageInfo p3info : packageCache.evict(packageManager.getImageCache(), keep)) {
+            packageManager.expirePackage(p3info);
+        }
     }
 
-    protected void checkPackageForProvision(final String tid, final String id, final String version, final String uuid,
-                                            final Map<String, String> properties, final String name) {
-        Thread thread = new Thread(() -> {
+    protected void checkPackageForProvision(final long tid, final String id, final String version, final String uuid,
+                                            final Map<String, String> properties, final String name,
+                                            final Map<P3Package.P3PackageInfo, String> checksums) {
+        // packages used by this provision, kept in the package cache until it has finished
+        Set<P3Package.P3PackageInfo> pinned = ConcurrentHashMap.newKeySet();
+        boolean queued = provisionExecutor != null && provisionExecutor.submit(uuid, getProvisionPriority(properties), () -> {
             try {
                 TransactionInfo info = TransactionManager.get().getTransaction(tid);
                 if (info == null) {
@@ -1225,79 +1400,305 @@ public class Local extends PlayPen {
                     return;
                 }
 
-                P3Package p3 = packageManager.resolve(id, version);
-
+                P3Package p3 = resolveForProvision(id, version, checksums, pinned);
                 if (p3 == null) {
                     sendProvisionResponse(tid, false);
                     return;
                 }
 
-                // TODO: Clean up checksum stuff. Right now we check checksums even if the package was just downloaded, which
-                // is a waste of time.
-
-                Set<P3Package.P3PackageInfo> checked = new HashSet<>();
-                Queue<P3Package> toCheck = new ArrayDeque<>();
-                toCheck.add(p3);
-                while (toCheck.peek() != null) {
-                    P3Package checkOriginal = toCheck.poll();
-                    P3Package check = checkOriginal;
-                    P3Package.P3PackageInfo p3Info = new P3Package.P3PackageInfo();
-                    p3Info.setId(check.getId());
-                    p3Info.setVersion(check.getVersion());
-                    if (checked.contains(p3Info))
-                        continue;
-
-                    checked.add(p3Info);
-
-                    if (!check.isResolved())
-                        check = packageManager.resolve(check.getId(), check.getVersion());
-
-                    if (check == null) {
-                        log.error("Unable to resolve package " + checkOriginal.getId() + " at " + checkOriginal.getVersion() + ", failing provision.");
-                        sendProvisionResponse(tid, false);
-                        return;
-                    }
+                if (provision(p3, uuid, properties, name)) {
+                    sendProvisionResponse(tid, true);
+                } else {
+                    sendProvisionResponse(tid, false);
+                }
+            }
+            finally {
+                packageCache.unpin(pinned);
+                provisioningServers.remove(uuid);
+            }
+        });
+
+        if (!queued) {
+            provisioningServers.remove(uuid);
+            sendProvisionResponse(tid, false);
+        }
+    }
 
-                    String newChecksum = requestChecksumForPackage(check.getId(), check.getVersion());
+    /**
+     * Same as checkPackageForProvision(), for every server of a PROVISION_BATCH. The package is resolved and checked
+     * once, after which each server is queued on its own so they are provisioned concurrently. A single response
+     * lists the result of each server once they have all finished.
+     */
+    protected void checkPackageForProvisionBatch(final long tid, final List<Coordinator.Server> batch,
+                                                 final Map<P3Package.P3PackageInfo, String> checksums) {
+        Map<String, Boolean> results = new ConcurrentHashMap<>();
+        Set<P3Package.P3PackageInfo> pinned = ConcurrentHashMap.newKeySet();
+        AtomicInteger remaining = new AtomicInteger(batch.size());
+        Runnable finishOne = () -> {
+            if (remaining.decrementAndGet() == 0) {
+                packageCache.unpin(pinned);
+                sendProvisionBatchResponse(tid, batch, results);
+            }
+        };
+
+        boolean queued = provisionExecutor != null && provisionExecutor.submit("batch of " + batch.size(),
+                getProvisionPriority(batch.get(0)), () -> {
+            TransactionInfo info = TransactionManager.get().getTransaction(tid);
+            if (info == null) {
+                log.error("Cannot download package for provision batch with an invalid transaction id " + tid);
+                batch.forEach(server -> provisioningServers.remove(server.getUuid()));
+                return;
+            }
 
+            P3.P3Meta meta = batch.get(0).getP3();
+            P3Package p3 = resolveForProvision(meta.getId(), meta.getVersion(), checksums, pinned);
+            if (p3 == null) {
+                packageCache.unpin(pinned);
+                batch.forEach(server -> provisioningServers.remove(server.getUuid()));
+                sendProvisionBatchResponse(tid, batch, results);
+                return;
+            }
+
+            for (Coordinator.Server server : batch) {
+                Map<String, String> properties = new HashMap<>();
+                for (Coordinator.Property prop : server.getPropertiesList()) {
+                    properties.put(prop.getName(), prop.getValue());
+                }
+
+                String name = server.hasName() ? server.getName() : null;
+                boolean serverQueued = provisionExecutor != null && provisionExecutor.submit(server.getUuid(),
+                        getProvisionPriority(properties), () -> {
                     try {
-                        check.calculateChecksum();
-                    } catch (PackageException e) {
-                        log.error("Unable to calculate local package checksum");
-                        sendProvisionResponse(tid, false);
-                        return;
+                        results.put(server.getUuid(), provision(p3, server.getUuid(), properties, name));
                     }
-
-                    if (newChecksum != null && !Objects.equals(newChecksum, check.getChecksum())) {
-                        // need a new version of the package
-                        log.info("Package " + check.getId() + " at " + check.getVersion() + " has a checksum mismatch, expiring cache and resolving again.");
-                        log.info("Expected: " + check.getChecksum() + ", got: " + newChecksum);
-                        expireCache(check.getId(), check.getVersion());
-                        check = packageManager.resolve(check.getId(), check.getVersion());
-                        if (check == null) {
-                            sendProvisionResponse(tid, false);
-                            return;
-                        }
+                    finally {
+                        provisioningServers.remove(server.getUuid());
+                        finishOne.run();
                     }
+                });
 
-                    if (newChecksum == null)
-                        log.warn("null checksum received, moving on");
-
-                    toCheck.addAll(check.getDependencies());
+                if (!serverQueued) {
+                    provisioningServers.remove(server.getUuid());
+                    finishOne.run();
                 }
+            }
+        });
 
+        if (!queued) {
+            batch.forEach(server -> provisioningServers.remove(server.getUuid()));
+            sendProvisionBatchResponse(tid, batch, results);
+        }
+    }
 
-                if (provision(p3, uuid, properties, name)) {
-                    sendProvisionResponse(tid, true);
-                } else {
-                    sendProvisionResponse(tid, false);
+    /**
+     * Provisions with a higher "provision_priority" property are run first when provisions have to wait.
+     */
+    protected int getProvisionPriority(Map<String, String> properties) {
+        try {
+            return Integer.parseInt(properties.getOrDefault("provision_priority", "0").trim());
+        }
+        catch (NumberFormatException e) {
+            log.warn("Invalid provision_priority " + properties.get("provision_priority") + ", using 0");
+            return 0;
+        }
+    }
+
+    protected int getProvisionPriority(Coordinator.Server server) {
+        for (Coordinator.Property prop : server.getPropertiesList()) {
+            if (prop.getName().equals("provision_priority"))
+                return getProvisionPriority(Collections.singletonMap(prop.getName(), prop.getValue()));
+        }
+
+        return 0;
+    }
+
+    /**
+     * Resolves a package for provisioning, making sure it and all of its dependencies match the checksums of the
+     * network coordinator. Packages in checksums (sent along with the provision) are checked all at once, anything
+     * else is checked by asking the network coordinator for its checksum. Returns null if the package or one of its
+     * dependencies can't be resolved.
+     *
+     * Every package of the chain is pinned in the package cache before it is resolved and added to pinned, which the
+     * caller has to unpin once the provision has finished (successful or not).
+     */
+    protected P3Package resolveForProvision(String id, String version, Map<P3Package.P3PackageInfo, String> checksums,
+                                            Set<P3Package.P3PackageInfo> pinned) {
+        checksums.keySet().forEach(p3info -> pinPackage(pinned, p3info.getId(), p3info.getVersion()));
+        pinPackage(pinned, id, version);
+
+        Set<P3Package.P3PackageInfo> verified = verifyPackages(checksums);
+
+        P3Package p3 = packageManager.resolve(id, version);
+
+        if (p3 == null) {
+            return null;
+        }
+
+        Set<P3Package.P3PackageInfo> checked = new HashSet<>();
+        Queue<P3Package> toCheck = new ArrayDeque<>();
+        toCheck.add(p3);
+        while (toCheck.peek() != null) {
+            P3Package checkOriginal = toCheck.poll();
+            P3Package check = checkOriginal;
+            P3Package.P3PackageInfo p3Info = new P3Package.P3PackageInfo();
+            p3Info.setId(check.getId());
+            p3Info.setVersion(check.getVersion());
+            if (checked.contains(p3Info))
+                continue;
+
+            checked.add(p3Info);
+            pinPackage(pinned, check.getId(), check.getVersion());
+
+            if (!check.isResolved())
+                check = packageManager.resolve(check.getId(), check.getVersion());
+
+            if (check == null) {
+                log.error("Unable to resolve package " + checkOriginal.getId() + " at " + checkOriginal.getVersion() + ", failing provision.");
+                return null;
+            }
+
+            if (verified.contains(p3Info)) {
+                toCheck.addAll(check.getDependencies());
+                continue;
+            }
+
+            String newChecksum = requestChecksumForPackage(check.getId(), check.getVersion());
+
+            try {
+                if (newChecksum != null)
+                    check.calculateChecksum(ChecksumAlgorithm.forChecksum(newChecksum));
+                else
+                    check.calculateChecksum();
+            } catch (PackageException e) {
+                log.error("Unable to calculate local package checksum");
+                return null;
+            }
+
+            if (newChecksum != null && !Objects.equals(newChecksum, check.getChecksum())) {
+                // need a new version of the package
+                log.info("Package " + check.getId() + " at " + check.getVersion() + " has a checksum mismatch, expiring cache and resolving again.");
+                log.info("Expected: " + check.getChecksum() + ", got: " + newChecksum);
+                expireCache(check.getId(), check.getVersion());
+                check = packageManager.resolve(check.getId(), check.getVersion());
+                if (check == null) {
+                    return null;
                 }
             }
-            finally {
-                provisioningServers.remove(uuid);
+
+            if (newChecksum == null)
+                log.warn("null checksum received, moving on");
+
+            toCheck.addAll(check.getDependencies());
+        }
+
+        packageCache.touch(checked);
+
+        P3Package.P3PackageInfo p3Info = new P3Package.P3PackageInfo();
+        p3Info.setId(p3.getId());
+        p3Info.setVersion(p3.getVersion());
+        if (!verified.contains(p3Info)) {
+            // the package itself may have been replaced while checking
+            p3 = packageManager.resolve(id, version);
+        }
+
+        return p3;
+    }
+
+    private void pinPackage(Set<P3Package.P3PackageInfo> pinned, String id, String version) {
+        P3Package.P3PackageInfo p3info = new P3Package.P3PackageInfo();
+        p3info.setId(id);
+        p3info.setVersion(version);
+        if (pinned.add(p3info))
+            packageCache.pin(p3info);
+    }
+
+    /**
+     * Checks local copies of packages against checksums sent by the network coordinator, all packages in parallel.
+     * Stale or missing packages are downloaded again, and packages that are valid (or have been downloaded) are
+     * extracted into the image cache right away so that extraction overlaps with any downloads still going on.
+     * Returns the packages that are known to be valid.
+     */
+    protected Set<P3Package.P3PackageInfo> verifyPackages(Map<P3Package.P3PackageInfo, String> checksums) {
+        if (checksums.isEmpty())
+            return Collections.emptySet();
+
+        long start = System.currentTimeMillis();
+        Map<P3Package.P3PackageInfo, CompletableFuture<Boolean>> futures = new HashMap<>();
+        for (Map.Entry<P3Package.P3PackageInfo, String> entry : checksums.entrySet()) {
+            futures.put(entry.getKey(), CompletableFuture.supplyAsync(
+                    () -> verifyPackage(entry.getKey(), entry.getValue()), verifyExecutor));
+        }
+
+        Set<P3Package.P3PackageInfo> verified = new HashSet<>();
+        for (Map.Entry<P3Package.P3PackageInfo, CompletableFuture<Boolean>> entry : futures.entrySet()) {
+            try {
+                if (entry.getValue().get())
+                    verified.add(entry.getKey());
             }
-        });
-        thread.start();
+            catch (InterruptedException e) {
+                log.error("Interrupted while verifying packages");
+                Thread.currentThread().interrupt();
+                return verified;
+            }
+            catch (ExecutionException e) {
+                log.error("Unable to verify package " + entry.getKey().getId() + " at " + entry.getKey().getVersion(), e.getCause());
+            }
+        }
+
+        log.info("Verified " + verified.size() + " of " + checksums.size() + " packages in " + (System.currentTimeMillis() - start) + "ms");
+        return verified;
+    }
+
+    protected boolean verifyPackage(P3Package.P3PackageInfo p3info, String checksum) {
+        // provisions running at the same time may share dependencies, only one of them should replace a package
+        synchronized (verifyLocks.computeIfAbsent(p3info, k -> new Object())) {
+            P3Package p3 = packageManager.resolve(p3info.getId(), p3info.getVersion());
+            if (p3 == null)
+                return false;
+
+            try {
+                p3.calculateChecksum(ChecksumAlgorithm.forChecksum(checksum));
+            } catch (PackageException e) {
+                log.error("Unable to calculate local package checksum of " + p3info.getId() + " at " + p3info.getVersion(), e);
+                return false;
+            }
+
+            if (!Objects.equals(checksum, p3.getChecksum())) {
+                log.info("Package " + p3.getId() + " at " + p3.getVersion() + " has a checksum mismatch, expiring cache and resolving again.");
+                log.info("Expected: " + checksum + ", got: " + p3.getChecksum());
+                expireCache(p3.getId(), p3.getVersion());
+                p3 = packageManager.resolve(p3info.getId(), p3info.getVersion());
+                if (p3 == null)
+                    return false;
+            }
+
+            packageCache.touch(Collections.singleton(p3info));
+            prepareImage(p3);
+            return true;
+        }
+    }
+
+    /**
+     * Extracts a package into the image cache ahead of time if one of its provision steps is going to expand it from
+     * there.
+     */
+    protected void prepareImage(P3Package p3) {
+        PackageImageCache imageCache = packageManager.getImageCache();
+        if (imageCache == null)
+            return;
+
+        for (P3Package.PackageStepConfig config : p3.getProvisionSteps()) {
+            if (!"expand".equals(config.getStep().getStepId()) || config.getConfig().optString("image", "copy").equalsIgnoreCase("none"))
+                continue;
+
+            try {
+                imageCache.getImage(p3, !config.getConfig().optString("extractor", "parallel").equalsIgnoreCase("serial"));
+            } catch (PackageException e) {
+                log.warn("Unable to prepare image of " + p3.getId() + " at " + p3.getVersion() + ", it will be extracted on provision", e);
+            }
+
+            return;
+        }
     }
 
     protected String requestChecksumForPackage(String id, String version) {
@@ -1333,6 +1734,15 @@ public class Local extends PlayPen {
         return checksumMap.remove(info.getId());
     }
 
+    @Data
+    private static class ChunkedDownload {
+        private Path path;
+
+        private FileChannel channel;
+
+        private int receivedChunks = 0;
+    }
+
     @Log4j2
     private static class PackageDownloadResolver extends LocalRepositoryResolver {
         private final Object downloadLock = new Object();
@@ -0,0 +1,315 @@
+package io.playpen.core.coordinator.local;
+
+import io.playpen.core.p3.P3Package;
+import io.playpen.core.p3.PackageImageCache;
+import io.playpen.core.utils.AuthUtils;
+import io.playpen.core.utils.ChecksumAlgorithm;
+import lombok.Getter;
+import lombok.Setter;
+import lombok.extern.log4j.Log4j2;
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.*;
+import java.util.stream.Collectors;
+
+/**
+ * Packages downloaded from the network coordinator, kept across restarts. A manifest next to the packages records the
+ * checksum of each package and when it was last used.
+ *
+ * On startup every package is checked against the manifest, and packages that don't match or aren't in it (e.g. a
+ * download interrupted by a crash) are deleted. When the packages take up more than the quota, the least recently used
+ * ones are evicted along with their images. Packages pinned by provisions that are still running are never evicted.
+ */
+@Log4j2
+public class PackageCache {
+    private static final int MANIFEST_VERSION = 1;
+
+    private final File packageDir;
+
+    private final File manifestFile;
+
+    /**
+     * Entries by package file name.
+     */
+    private final Map<String, Entry> entries = new HashMap<>();
+
+    /**
+     * Number of running provisions using each package.
+     */
+    private final Map<P3Package.P3PackageInfo, Integer> pins = new HashMap<>();
+
+    /**
+     * Maximum total size of the cached packages in bytes, 0 for no limit.
+     */
+    @Getter
+    @Setter
+    private volatile long quota = 0;
+
+    public PackageCache(File packageDir, File manifestFile) {
+        this.packageDir = packageDir;
+        this.manifestFile = manifestFile;
+    }
+
+    /**
+     * Reads the manifest and deletes every package that doesn't match it. Images of packages that are no longer cached
+     * are deleted too, if an image cache is given.
+     */
+    public synchronized void load(PackageImageCache imageCache) {
+        long start = System.currentTimeMillis();
+        entries.clear();
+        readManifest();
+
+        File[] files = packageDir.listFiles();
+        if(files == null) {
+            log.error("Unable to list package cache at " + packageDir.getPath());
+            return;
+        }
+
+        Set<String> names = new HashSet<>();
+        for(File file : files) {
+            if(file.isFile() && entries.containsKey(file.getName())) {
+                names.add(file.getName());
+            }
+            else if(file.isFile() && !file.equals(manifestFile)) {
+                log.info("Removing " + file.getName() + " from package cache (not in manifest)");
+                file.delete();
+            }
+        }
+
+        entries.keySet().retainAll(names);
+
+        // checksums are independent of each other, so check them all at once
+        Set<String> invalid = entries.values().parallelStream()
+                .filter(entry -> !entry.isValid(packageDir))
+                .map(entry -> entry.file)
+                .collect(Collectors.toSet());
+
+        for(String name : invalid) {
+            log.warn("Removing " + name + " from package cache (checksum mismatch)");
+            new File(packageDir, name).delete();
+            entries.remove(name);
+        }
+
+        if(imageCache != null) {
+            Set<String> checksums = new HashSet<>();
+            entries.values().forEach(entry -> checksums.add(entry.checksum));
+            imageCache.retainImages(checksums);
+        }
+
+        saveManifest();
+        log.info("Loaded package cache with " + entries.size() + " packages (" + (getSize() / 1024 / 1024) + "MB) in "
+                + (System.currentTimeMillis() - start) + "ms");
+    }
+
+    /**
+     * Records a package that has been moved into the cache.
+     */
+    public synchronized void add(File file, String id, String version, String checksum) {
+        entries.put(file.getName(), new Entry(file.getName(), id, version, checksum, file.length(), file.lastModified(),
+                System.currentTimeMillis()));
+        saveManifest();
+    }
+
+    /**
+     * Forgets a package, e.g. because it has been replaced. Returns the checksum it had, or null if it wasn't cached.
+     */
+    public synchronized String remove(File file) {
+        Entry entry = entries.remove(file.getName());
+        if(entry == null)
+            return null;
+
+        saveManifest();
+        return entry.checksum;
+    }
+
+    /**
+     * Marks packages as used, so they are evicted last.
+     */
+    public synchronized void touch(Collection<P3Package.P3PackageInfo> packages) {
+        long now = System.currentTimeMillis();
+        boolean changed = false;
+        for(Entry entry : entries.values()) {
+            if(packages.contains(entry.getInfo())) {
+                entry.lastUsed = now;
+                changed = true;
+            }
+        }
+
+        if(changed)
+            saveManifest();
+    }
+
+    /**
+     * Keeps a package from being evicted until it is unpinned as often as it was pinned. The package doesn't have to be
+     * cached yet, so it can be pinned before it is downloaded.
+     */
+    public synchronized void pin(P3Package.P3PackageInfo info) {
+        pins.merge(info, 1, Integer::sum);
+    }
+
+    public synchronized void unpin(Collection<P3Package.P3PackageInfo> packages) {
+        for(P3Package.P3PackageInfo info : packages) {
+            pins.computeIfPresent(info, (key, count) -> count > 1 ? count - 1 : null);
+        }
+    }
+
+    /**
+     * Deletes the least recently used packages until the cache fits in the quota. The image of each evicted package is
+     * deleted as well. Pinned packages and the one given (e.g. because it was just downloaded) are kept, even if the
+     * cache stays over the quota. Returns the evicted packages.
+     */
+    public synchronized List<P3Package.P3PackageInfo> evict(PackageImageCache imageCache, P3Package.P3PackageInfo keep) {
+        List<P3Package.P3PackageInfo> evicted = new ArrayList<>();
+        long size = getSize();
+        if(quota <= 0 || size <= quota)
+            return evicted;
+
+        List<Entry> lru = new ArrayList<>(entries.values());
+        lru.sort(Comparator.comparingLong(entry -> entry.lastUsed));
+        for(Entry entry : lru) {
+            if(size <= quota)
+                break;
+
+            P3Package.P3PackageInfo info = entry.getInfo();
+            if(info.equals(keep) || pins.containsKey(info))
+                continue;
+
+            log.info("Evicting " + entry.id + " (" + entry.version + ") from package cache");
+            new File(packageDir, entry.file).delete();
+            if(imageCache != null)
+                imageCache.removeImage(entry.checksum);
+
+            entries.remove(entry.file);
+            size -= entry.size;
+            evicted.add(info);
+        }
+
+        if(size > quota)
+            log.warn("Package cache is " + ((size - quota) / 1024 / 1024) + "MB over its quota, but the remaining packages are in use");
+
+        if(!evicted.isEmpty())
+            saveManifest();
+
+        return evicted;
+    }
+
+    /**
+     * Total size of the cached packages in bytes.
+     */
+    public synchronized long getSize() {
+        long size = 0;
+        for(Entry entry : entries.values()) {
+            size += entry.size;
+        }
+
+        return size;
+    }
+
+    private void readManifest() {
+        if(!manifestFile.isFile())
+            return;
+
+        try {
+            JSONObject json = new JSONObject(new String(Files.readAllBytes(manifestFile.toPath()), StandardCharsets.UTF_8));
+            if(json.optInt("version") != MANIFEST_VERSION) {
+                log.info("Ignoring package cache manifest " + manifestFile.getPath() + " from a different version");
+                return;
+            }
+
+            JSONArray packages = json.getJSONArray("packages");
+            for(int i = 0; i < packages.length(); ++i) {
+                JSONObject obj = packages.getJSONObject(i);
+                Entry entry = new Entry(obj.getString("file"), obj.getString("id"), obj.getString("version"),
+                        obj.getString("checksum"), obj.getLong("size"), obj.getLong("modified"), obj.optLong("last-used"));
+                entries.put(entry.file, entry);
+            }
+        }
+        catch(IOException | JSONException e) {
+            log.warn("Unable to read package cache manifest " + manifestFile.getPath() + ", clearing the cache", e);
+            entries.clear();
+        }
+    }
+
+    private void saveManifest() {
+        JSONArray packages = new JSONArray();
+        for(Entry entry : entries.values()) {
+            JSONObject obj = new JSONObject();
+            obj.put("file", entry.file);
+            obj.put("id", entry.id);
+            obj.put("version", entry.version);
+            obj.put("checksum", entry.checksum);
+            obj.put("size", entry.size);
+            obj.put("modified", entry.modified);
+            obj.put("last-used", entry.lastUsed);
+            packages.put(obj);
+        }
+
+        JSONObject json = new JSONObject();
+        json.put("version", MANIFEST_VERSION);
+        json.put("packages", packages);
+
+        Path tmp = manifestFile.toPath().resolveSibling(manifestFile.getName() + ".tmp");
+        try {
+            Files.write(tmp, json.toString().getBytes(StandardCharsets.UTF_8));
+            Files.move(tmp, manifestFile.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        }
+        catch(IOException e) {
+            log.warn("Unable to save package cache manifest " + manifestFile.getPath(), e);
+        }
+    }
+
+    private static class Entry {
+        private final String file;
+
+        private final String id;
+
+        private final String version;
+
+        private final String checksum;
+
+        private final long size;
+
+        private final long modified;
+
+        private long lastUsed;
+
+        Entry(String file, String id, String version, String checksum, long size, long modified, long lastUsed) {
+            this.file = file;
+            this.id = id;
+            this.version = version;
+            this.checksum = checksum;
+            this.size = size;
+            this.modified = modified;
+            this.lastUsed = lastUsed;
+        }
+
+        P3Package.P3PackageInfo getInfo() {
+            P3Package.P3PackageInfo info = new P3Package.P3PackageInfo();
+            info.setId(id);
+            info.setVersion(version);
+            return info;
+        }
+
+        boolean isValid(File dir) {
+            File path = new File(dir, file);
+            if(path.length() != size || path.lastModified() != modified)
+                return false;
+
+            try {
+                return checksum.equals(AuthUtils.createPackageChecksum(path.getPath(), ChecksumAlgorithm.forChecksum(checksum)));
+            }
+            catch(IOException e) {
+                log.warn("Unable to calculate checksum of " + path.getPath(), e);
+                return false;
+            }
+        }
+    }
+}
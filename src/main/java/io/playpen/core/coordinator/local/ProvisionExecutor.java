@@ -0,0 +1,147 @@
+package io.playpen.core.coordinator.local;
+
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import lombok.Getter;
+import lombok.extern.log4j.Log4j2;
+
+import java.util.concurrent.PriorityBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Runs provisions on a fixed number of worker threads. Waiting provisions are run highest priority first, and in the
+ * order they were submitted for equal priorities.
+ *
+ * Once queueLimit provisions are waiting, new ones are rejected and the executor is saturated until the queue has been
+ * worked down to half of the limit. Every change of saturation is passed to the listener, so it can be reported to the
+ * network coordinator.
+ */
+@Log4j2
+public class ProvisionExecutor {
+    private final ThreadPoolExecutor executor;
+
+    /**
+     * Maximum number of waiting provisions, 0 for no limit.
+     */
+    @Getter
+    private final int queueLimit;
+
+    private final Runnable saturationListener;
+
+    private final AtomicInteger queued = new AtomicInteger();
+
+    private final AtomicLong sequence = new AtomicLong();
+
+    private final AtomicBoolean saturated = new AtomicBoolean(false);
+
+    public ProvisionExecutor(int threads, int queueLimit, Runnable saturationListener) {
+        this.queueLimit = queueLimit;
+        this.saturationListener = saturationListener;
+
+        executor = new ThreadPoolExecutor(threads, threads, 0L, TimeUnit.MILLISECONDS, new PriorityBlockingQueue<>(),
+                new ThreadFactoryBuilder().setNameFormat("provision-%d").setDaemon(true).build());
+    }
+
+    /**
+     * Queues a provision. Returns false if it was rejected because the queue is full or the executor has been shut
+     * down, in which case the task will never run.
+     */
+    public boolean submit(String name, int priority, Runnable task) {
+        int count = queued.incrementAndGet();
+        if(queueLimit > 0 && count > queueLimit) {
+            queued.decrementAndGet();
+            log.warn("Provision queue is full (" + queueLimit + " waiting), rejecting " + name);
+            setSaturated(true);
+            return false;
+        }
+
+        if(queueLimit > 0 && count == queueLimit)
+            setSaturated(true);
+
+        try {
+            executor.execute(new Task(name, priority, sequence.getAndIncrement(), task));
+        }
+        catch(RejectedExecutionException e) {
+            // only happens on shutdown
+            queued.decrementAndGet();
+            return false;
+        }
+
+        if(count > 1)
+            log.info("Queued provision " + name + " (priority " + priority + ", " + count + " waiting)");
+
+        return true;
+    }
+
+    /**
+     * Number of provisions waiting for a worker thread.
+     */
+    public int getQueued() {
+        return queued.get();
+    }
+
+    /**
+     * Number of provisions currently running.
+     */
+    public int getActive() {
+        return executor.getActiveCount();
+    }
+
+    public boolean isSaturated() {
+        return saturated.get();
+    }
+
+    public void shutdown() {
+        executor.shutdownNow();
+    }
+
+    private void setSaturated(boolean value) {
+        if(saturated.compareAndSet(!value, value)) {
+            log.info("Provision queue is " + (value ? "saturated" : "no longer saturated"));
+            if(saturationListener != null)
+                saturationListener.run();
+        }
+    }
+
+    private class Task implements Runnable, Comparable<Task> {
+        private final String name;
+
+        private final int priority;
+
+        private final long sequence;
+
+        private final Runnable task;
+
+        Task(String name, int priority, long sequence, Runnable task) {
+            this.name = name;
+            this.priority = priority;
+            this.sequence = sequence;
+            this.task = task;
+        }
+
+        @Override
+        public void run() {
+            if(queued.decrementAndGet() <= queueLimit / 2)
+                setSaturated(false);
+
+            try {
+                task.run();
+            }
+            catch(Exception e) {
+                log.error("Exception while running provision " + name, e);
+            }
+        }
+
+        @Override
+        public int compareTo(Task other) {
+            if(priority != other.priority)
+                return Integer.compare(other.priority, priority);
+
+            return Long.compare(sequence, other.sequence);
+        }
+    }
+}
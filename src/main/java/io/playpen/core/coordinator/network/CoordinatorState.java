@@ -0,0 +1,114 @@
+package io.playpen.core.coordinator.network;
+
+import io.playpen.core.coordinator.ResourceLedger;
+import lombok.Getter;
+
+import java.util.*;
+import java.util.function.Predicate;
+
+/**
+ * An immutable snapshot of what a local coordinator has: its resources, attributes and servers, and a ledger of the
+ * resources left over after the servers. Changes build a new snapshot which is then swapped in atomically (see
+ * {@link LocalCoordinator}), so readers never see a partial update and never need a lock. Adding or removing a server
+ * only adjusts the ledger by that server's resources.
+ */
+public class CoordinatorState {
+    public static final CoordinatorState EMPTY = new CoordinatorState(Collections.emptyMap(), Collections.emptySet(),
+            Collections.emptyMap());
+
+    @Getter
+    private final Map<String, Integer> resources;
+
+    @Getter
+    private final Set<String> attributes;
+
+    @Getter
+    private final Map<String, Server> servers;
+
+    @Getter
+    private final ResourceLedger ledger;
+
+    /**
+     * The collections are copied, so they can be modified afterwards without affecting this snapshot.
+     */
+    public CoordinatorState(Map<String, Integer> resources, Set<String> attributes, Map<String, Server> servers) {
+        this.resources = Collections.unmodifiableMap(new HashMap<>(resources));
+        this.attributes = Collections.unmodifiableSet(new HashSet<>(attributes));
+        this.servers = Collections.unmodifiableMap(new HashMap<>(servers));
+
+        ResourceLedger ledger = ResourceLedger.of(resources);
+        for(Server server : servers.values()) {
+            ledger = allocate(ledger, server);
+        }
+
+        this.ledger = ledger;
+    }
+
+    private CoordinatorState(CoordinatorState state, Map<String, Server> servers, ResourceLedger ledger) {
+        this.resources = state.resources;
+        this.attributes = state.attributes;
+        this.servers = Collections.unmodifiableMap(servers);
+        this.ledger = ledger;
+    }
+
+    private static ResourceLedger allocate(ResourceLedger ledger, Server server) {
+        return server == null || server.getP3() == null ? ledger : ledger.allocate(server.getP3().getResourceVector());
+    }
+
+    private static ResourceLedger release(ResourceLedger ledger, Server server) {
+        return server == null || server.getP3() == null ? ledger : ledger.release(server.getP3().getResourceVector());
+    }
+
+    /**
+     * Returns a copy of this snapshot with a server added or replaced.
+     */
+    public CoordinatorState withServer(Server server) {
+        Map<String, Server> newServers = new HashMap<>(servers);
+        ResourceLedger newLedger = allocate(release(ledger, newServers.put(server.getUuid(), server)), server);
+        return new CoordinatorState(this, newServers, newLedger);
+    }
+
+    /**
+     * Returns a copy of this snapshot with servers added or replaced and others removed.
+     */
+    public CoordinatorState withServers(Collection<Server> updated, Collection<String> removed) {
+        Map<String, Server> newServers = new HashMap<>(servers);
+        ResourceLedger newLedger = ledger;
+        for(Server server : updated) {
+            newLedger = allocate(release(newLedger, newServers.put(server.getUuid(), server)), server);
+        }
+
+        for(String uuid : removed) {
+            newLedger = release(newLedger, newServers.remove(uuid));
+        }
+
+        return new CoordinatorState(this, newServers, newLedger);
+    }
+
+    /**
+     * Returns the snapshot for a full SYNC. The SYNC can only list servers the local coordinator knew about when it
+     * sent it, so servers of this snapshot that are still waiting on their provision are kept even if it doesn't list
+     * them.
+     */
+    public CoordinatorState withSync(Map<String, Integer> resources, Set<String> attributes, Map<String, Server> servers,
+                                     Predicate<String> pending) {
+        Map<String, Server> newServers = new HashMap<>(servers);
+        for(Server server : this.servers.values()) {
+            if(!server.isActive() && pending.test(server.getUuid()))
+                newServers.putIfAbsent(server.getUuid(), server);
+        }
+
+        return new CoordinatorState(resources, attributes, newServers);
+    }
+
+    /**
+     * Returns a copy of this snapshot without a server, or this snapshot if it doesn't have the server.
+     */
+    public CoordinatorState withoutServer(String uuid) {
+        if(!servers.containsKey(uuid))
+            return this;
+
+        Map<String, Server> newServers = new HashMap<>(servers);
+        return new CoordinatorState(this, newServers, release(ledger, newServers.remove(uuid)));
+    }
+}
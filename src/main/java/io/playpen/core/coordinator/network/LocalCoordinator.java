@@ -1,16 +1,21 @@
 package io.playpen.core.coordinator.network;
 
 import io.netty.channel.Channel;
+import io.playpen.core.coordinator.ResourceLedger;
 import io.playpen.core.coordinator.network.authenticator.IAuthenticator;
 import io.playpen.core.networking.TransactionInfo;
 import io.playpen.core.p3.P3Package;
+import io.playpen.core.p3.ResourceIndex;
 import io.playpen.core.protocol.Commands;
+import io.playpen.core.utils.CryptoSession;
+import lombok.AccessLevel;
 import lombok.Data;
+import lombok.Getter;
 import lombok.extern.log4j.Log4j2;
 
 import java.util.*;
 import java.util.concurrent.ConcurrentHashMap;
-import java.util.concurrent.ConcurrentSkipListSet;
+import java.util.concurrent.atomic.AtomicReference;
 
 @Data
 @Log4j2
@@ -23,24 +28,54 @@ public class LocalCoordinator {
 
     private String keyName = "";
 
-    private Map<String, Integer> resources = new ConcurrentHashMap<>();
-
-    private Set<String> attributes = new ConcurrentSkipListSet<>();
+    /**
+     * Resources, attributes and servers. Replaced as a whole on every change, never modified in place.
+     */
+    @Getter(AccessLevel.NONE)
+    private final AtomicReference<CoordinatorState> state = new AtomicReference<>(CoordinatorState.EMPTY);
 
-    private Map<String, Server> servers = new ConcurrentHashMap<>();
+    /**
+     * Servers created by createServer() that are still waiting on their PROVISION or PROVISION_BATCH. They are added
+     * before the server is added to the state, and removed once the provision is answered, fails or times out.
+     */
+    @Getter(AccessLevel.NONE)
+    private final Set<String> pendingServers = ConcurrentHashMap.newKeySet();
 
     private Channel channel = null;
 
     private boolean enabled = false;
 
+    /**
+     * Sequence number of the last SYNC applied from this coordinator, or -1 if the next SYNC has to be a full one.
+     */
+    private long syncSequence = -1;
+
+    /**
+     * Whether a full SYNC has been requested and not yet received.
+     */
+    private boolean resyncRequested = false;
+
     /**
      * Setting this to true will prevent automatic selection of this coordinator for provisioning operations.
      * This must be manually set and unset, but will also reset if the network coordinator is restarted.
      */
     private boolean restricted = false;
 
+    /**
+     * Provisions waiting on the coordinator, as of its last SYNC.
+     */
+    private int provisionQueued = 0;
+
+    /**
+     * Whether the coordinator's provision queue is full, as of its last SYNC. Saturated coordinators are skipped when
+     * selecting a coordinator for provisioning.
+     */
+    private boolean provisionSaturated = false;
+
     private List<IAuthenticator> authenticators = new ArrayList<>();
 
+    private transient CryptoSession cryptoSession = null;
+
     public String getName() {
         if(name == null) {
             return uuid;
@@ -49,11 +84,69 @@ public class LocalCoordinator {
         return name;
     }
 
+    public void setKey(String key) {
+        this.key = key;
+        cryptoSession = null;
+    }
+
+    /**
+     * Returns the crypto session for this coordinator, deriving the key the first time it is needed.
+     */
+    public synchronized CryptoSession getCryptoSession() {
+        if(cryptoSession == null) {
+            cryptoSession = new CryptoSession(uuid, key);
+        }
+
+        return cryptoSession;
+    }
+
     public boolean isEnabled() {
         return enabled && channel != null && channel.isActive();
     }
 
+    /**
+     * Returns the current snapshot of this coordinator's resources, attributes and servers.
+     */
+    public CoordinatorState getState() {
+        return state.get();
+    }
+
+    /**
+     * Replaces the snapshot only if it is still expected, see {@link AtomicReference#compareAndSet}.
+     */
+    public boolean compareAndSetState(CoordinatorState expected, CoordinatorState newState) {
+        return state.compareAndSet(expected, newState);
+    }
+
+    public Map<String, Integer> getResources() {
+        return state.get().getResources();
+    }
+
+    public Set<String> getAttributes() {
+        return state.get().getAttributes();
+    }
+
+    public Map<String, Server> getServers() {
+        return state.get().getServers();
+    }
+
+    /**
+     * Whether a server was created on this coordinator and its provision hasn't been answered yet.
+     */
+    public boolean isPendingServer(String uuid) {
+        return pendingServers.contains(uuid);
+    }
+
+    /**
+     * Marks a server as active once the coordinator has confirmed its provision.
+     */
+    public void activateServer(Server server) {
+        server.setActive(true);
+        pendingServers.remove(server.getUuid());
+    }
+
     public Server getServer(String idOrName) {
+        Map<String, Server> servers = getServers();
         if(servers.containsKey(idOrName))
             return servers.get(idOrName);
 
@@ -65,67 +158,116 @@ public class LocalCoordinator {
         return null;
     }
 
-    public Map<String, Integer> getAvailableResources() {
-        Map<String, Integer> used = new HashMap<>();
-        for(Map.Entry<String, Integer> entry : resources.entrySet()) {
-            Integer value = entry.getValue();
-            for(Server server : servers.values()) {
-                value -= server.getP3().getResources().getOrDefault(entry.getKey(), 0);
+    /**
+     * Removes a server, returning it or null if this coordinator doesn't have it.
+     */
+    public Server removeServer(String uuid) {
+        try {
+            while(true) {
+                CoordinatorState current = state.get();
+                Server server = current.getServers().get(uuid);
+                if(server == null)
+                    return null;
+
+                if(state.compareAndSet(current, current.withoutServer(uuid)))
+                    return server;
             }
+        }
+        finally {
+            pendingServers.remove(uuid);
+        }
+    }
 
-            used.put(entry.getKey(), value);
+    /**
+     * Removes a server that hasn't been activated, giving back the resources reserved for it when it was created.
+     * Returns the server, or null if it doesn't exist or is already active.
+     */
+    public Server releaseServer(String uuid) {
+        // only stops being pending once it is out of the state, so a full SYNC in between can't drop it on its own
+        try {
+            while(true) {
+                CoordinatorState current = state.get();
+                Server server = current.getServers().get(uuid);
+                if(server == null || server.isActive())
+                    return null;
+
+                if(state.compareAndSet(current, current.withoutServer(uuid)))
+                    return server;
+            }
+        }
+        finally {
+            pendingServers.remove(uuid);
         }
+    }
 
-        return used;
+    public Map<String, Integer> getAvailableResources() {
+        return state.get().getLedger().getAvailableResources();
     }
 
     public boolean canProvisionPackage(P3Package p3) {
+        return canProvisionPackage(state.get(), p3);
+    }
+
+    private boolean canProvisionPackage(CoordinatorState state, P3Package p3) {
         for(String attr : p3.getAttributes()) {
-            if(!attributes.contains(attr)) {
+            if(!state.getAttributes().contains(attr)) {
                 log.warn("Coordinator " + getUuid() + " doesn't have attribute " + attr + " for " + p3.getId() + " at " + p3.getVersion());
                 return false;
             }
         }
 
-        Map<String, Integer> resources = getAvailableResources();
-        for(Map.Entry<String, Integer> entry : p3.getResources().entrySet()) {
-            if(!resources.containsKey(entry.getKey())) {
-                log.warn("Coordinator " + getUuid() + " doesn't have resource " + entry.getKey() + " for " + p3.getId() + " at " + p3.getVersion());
-                return false;
+        ResourceLedger ledger = state.getLedger();
+        int shortfall = ledger.findShortfall(p3.getResourceVector());
+        if(shortfall >= 0) {
+            if(!ledger.hasResource(shortfall)) {
+                log.warn("Coordinator " + getUuid() + " doesn't have resource " + ResourceIndex.nameOf(shortfall) + " for " + p3.getId() + " at " + p3.getVersion());
             }
-
-            if(resources.get(entry.getKey()) - entry.getValue() < 0) {
-                log.warn("Coordinator " + getUuid() + " doesn't have enough of resource " + entry.getKey() + " for " + p3.getId() + " at " + p3.getVersion());
-                return false;
+            else {
+                log.warn("Coordinator " + getUuid() + " doesn't have enough of resource " + ResourceIndex.nameOf(shortfall) + " for " + p3.getId() + " at " + p3.getVersion());
             }
+
+            return false;
         }
 
         return true;
     }
 
+    /**
+     * Creates a server and reserves its resources. The check and the reservation are a single compare-and-set on the
+     * state, so concurrent calls can never overcommit the coordinator.
+     */
     public Server createServer(P3Package p3, String name, Map<String, String> properties) {
         if(!p3.isResolved()) {
             log.error("Cannot create server for unresolved package");
             return null;
         }
 
-        if(!canProvisionPackage(p3)) {
-            log.error("Coordinator " + getUuid() + " failed provision check for package " + p3.getId() + " at " + p3.getVersion());
-            return null;
-        }
-
         Server server = new Server();
-        server.setUuid(UUID.randomUUID().toString());
-        while(servers.containsKey(server.getUuid()))
-            server.setUuid(UUID.randomUUID().toString());
-
         server.setP3(p3);
         server.setName(name);
         server.getProperties().putAll(properties);
         server.setCoordinator(this);
-        servers.put(server.getUuid(), server);
 
-        return server;
+        while(true) {
+            CoordinatorState current = state.get();
+            if(!canProvisionPackage(current, p3)) {
+                log.error("Coordinator " + getUuid() + " failed provision check for package " + p3.getId() + " at " + p3.getVersion());
+                return null;
+            }
+
+            server.setUuid(UUID.randomUUID().toString());
+            while(current.getServers().containsKey(server.getUuid()))
+                server.setUuid(UUID.randomUUID().toString());
+
+            // pending before it is in the state, so a full SYNC never sees it without knowing to keep it
+            pendingServers.add(server.getUuid());
+
+            // the check only holds for the snapshot it was made against, so start over if anything changed since
+            if(state.compareAndSet(current, current.withServer(server)))
+                return server;
+
+            pendingServers.remove(server.getUuid());
+        }
     }
 
     /**
@@ -133,17 +275,7 @@ public class LocalCoordinator {
      * number of resources. This should be between 0 and 1.
      */
     public double getNormalizedResourceUsage() {
-        double result = 0.0;
-        Map<String, Integer> available = getAvailableResources();
-        for(Map.Entry<String, Integer> max : resources.entrySet()) {
-            if(max.getValue() <= 0) // wat
-                continue;
-
-            Integer used = available.getOrDefault(max.getKey(), 0);
-            result += used.doubleValue() / max.getValue().doubleValue();
-        }
-
-        return result;
+        return state.get().getLedger().getNormalizedUsage();
     }
 
     public boolean authenticate(Commands.BaseCommand command, TransactionInfo info)
@@ -1,7 +1,7 @@
 package io.playpen.core.coordinator.network;
 
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
 import com.google.protobuf.ByteString;
-import com.google.protobuf.InvalidProtocolBufferException;
 import io.netty.bootstrap.ServerBootstrap;
 import io.netty.channel.Channel;
 import io.netty.channel.ChannelFuture;
@@ -13,9 +13,14 @@ import io.playpen.core.Initialization;
 import io.playpen.core.coordinator.CoordinatorMode;
 import io.playpen.core.coordinator.PlayPen;
 import io.playpen.core.coordinator.network.authenticator.IAuthenticator;
+import io.playpen.core.coordinator.network.placement.IPlacementStrategy;
+import io.playpen.core.networking.AbstractTransactionListener;
+import io.playpen.core.networking.MessageDispatcher;
 import io.playpen.core.networking.TransactionInfo;
 import io.playpen.core.networking.TransactionManager;
+import io.playpen.core.networking.netty.AuthenticatedMessage;
 import io.playpen.core.networking.netty.AuthenticatedMessageInitializer;
+import io.playpen.core.networking.netty.FileChunkInput;
 import io.playpen.core.p3.P3Package;
 import io.playpen.core.p3.PackageException;
 import io.playpen.core.p3.PackageManager;
@@ -27,6 +32,8 @@ import io.playpen.core.protocol.Coordinator;
 import io.playpen.core.protocol.P3;
 import io.playpen.core.protocol.Protocol;
 import io.playpen.core.utils.AuthUtils;
+import io.playpen.core.utils.ChecksumAlgorithm;
+import io.playpen.core.utils.CryptoSession;
 import lombok.Data;
 import lombok.Getter;
 import lombok.extern.log4j.Log4j2;
@@ -38,7 +45,6 @@ import org.json.JSONObject;
 
 import java.io.*;
 import java.net.InetAddress;
-import java.nio.channels.FileChannel;
 import java.nio.file.*;
 import java.util.*;
 import java.util.concurrent.*;
@@ -61,6 +67,24 @@ public class Network extends PlayPen {
 
     private ScheduledExecutorService scheduler = null;
 
+    private MessageDispatcher dispatcher = null;
+
+    private int dispatchThreads = Runtime.getRuntime().availableProcessors();
+
+    private int dispatchQueueLimit = 1024;
+
+    /**
+     * Sends packages requested by local coordinators, so only a few large packages are read and sent at once.
+     */
+    private ExecutorService packageSendExecutor = null;
+
+    private int packageSendThreads = 4;
+
+    /**
+     * Maximum number of servers a client may provision in one C_PROVISION_BATCH.
+     */
+    private int maxProvisionBatch = 256;
+
     private Map<String, ConsoleInfo> consoles = new ConcurrentHashMap<>();
 
     private PluginManager pluginManager = null;
@@ -73,24 +97,41 @@ public class Network extends PlayPen {
     @Getter
     private int packageSizeSplit = -1;
 
-    private final Object chunkLock = new Object();
-    private Map<P3Package.P3PackageInfo, Semaphore> packageChunkLocks = new ConcurrentHashMap<>();
+    private static final long UPLOAD_SESSION_TIMEOUT = TimeUnit.HOURS.toMillis(1);
+
+    private static final String DEFAULT_PLACEMENT_STRATEGY = "spread";
+
+    private Map<P3Package.P3PackageInfo, UploadSession> uploadSessions = new ConcurrentHashMap<>();
 
     @Getter
     private NioEventLoopGroup eventLoopGroup = null;
 
     private Map<String, IAuthenticator> authenticators = new HashMap<>();
 
+    private Map<String, IPlacementStrategy> placementStrategies = new ConcurrentHashMap<>();
+
+    @Getter
+    private PackageChecksumManifest checksumManifest = null;
+
+    /**
+     * The "placement" section of network.json. Rules are looked up by package id, then by package attribute, and
+     * fall back to the default rule.
+     */
+    private JSONObject placementConfig = new JSONObject();
+
     private Network() {
         super();
 
         packageManager = new PackageManager();
         Initialization.packageManager(packageManager);
+        checksumManifest = new PackageChecksumManifest(
+                Paths.get(Bootstrap.getHomeDir().getPath(), "packages.checksums.json").toFile());
 
         eventManager = new EventManager<>();
         pluginManager = new PluginManager();
 
         authenticators.clear();
+        placementStrategies.clear();
         Initialization.networkCoordinator(this);
     }
 
@@ -119,6 +160,21 @@ public class Network extends PlayPen {
                 globalStrings.put(key, value);
             }
             packageSizeSplit = config.getInt("package-size-split");
+            dispatchThreads = config.optInt("dispatch-threads", dispatchThreads);
+            dispatchQueueLimit = config.optInt("dispatch-queue-limit", dispatchQueueLimit);
+            packageSendThreads = config.optInt("package-send-threads", packageSendThreads);
+            maxProvisionBatch = config.optInt("max-provision-batch", maxProvisionBatch);
+            ChecksumAlgorithm checksumAlgorithm = ChecksumAlgorithm.forName(
+                    config.optString("checksum-algorithm", AuthUtils.getPackageChecksumAlgorithm().getName()));
+            if(checksumAlgorithm == null) {
+                log.fatal("Unknown checksum algorithm " + config.optString("checksum-algorithm"));
+                return false;
+            }
+
+            AuthUtils.setPackageChecksumAlgorithm(checksumAlgorithm);
+            TransactionManager.get().configureTimeouts(config.optJSONObject("transaction-timeouts"));
+            if(!configurePlacement(config.optJSONObject("placement")))
+                return false;
         }
         catch(Exception e) {
             log.fatal("Unable to read configuration file.", e);
@@ -176,6 +232,12 @@ public class Network extends PlayPen {
         eventLoopGroup = new NioEventLoopGroup();
         try {
             scheduler = Executors.newScheduledThreadPool(4);
+            dispatcher = new MessageDispatcher("network", dispatchThreads, dispatchQueueLimit);
+            packageSendExecutor = Executors.newFixedThreadPool(Math.max(1, packageSendThreads),
+                    new ThreadFactoryBuilder().setNameFormat("package-send-%d").setDaemon(true).build());
+
+            checksumManifest.load();
+            scheduler.execute(() -> checksumManifest.index(packageManager));
 
             if(!pluginManager.loadPlugins()) {
                 log.fatal("Unable to initialize plugin manager");
@@ -197,7 +259,7 @@ public class Network extends PlayPen {
             }
 
             log.info("Listening on " + ip + " port " + port);
-            log.info("Package chunk size is set to " + packageSizeSplit + "MB");
+            log.info("Packages over " + packageSizeSplit + "MB will be streamed in chunks");
 
             eventManager.callEvent(INetworkListener::onNetworkStartup);
 
@@ -213,6 +275,12 @@ public class Network extends PlayPen {
             scheduler.shutdownNow();
             scheduler = null;
 
+            dispatcher.shutdown();
+            dispatcher = null;
+
+            packageSendExecutor.shutdownNow();
+            packageSendExecutor = null;
+
             eventLoopGroup.shutdownGracefully();
 
             pluginManager.stopPlugins();
@@ -258,6 +326,11 @@ public class Network extends PlayPen {
         return pluginManager;
     }
 
+    @Override
+    public MessageDispatcher getDispatcher() {
+        return dispatcher;
+    }
+
     public EventManager<INetworkListener> getEventManager() {
         return eventManager;
     }
@@ -266,6 +339,57 @@ public class Network extends PlayPen {
         authenticators.put(auth.getName(), auth);
     }
 
+    public void addPlacementStrategy(IPlacementStrategy strategy) {
+        placementStrategies.put(strategy.getName(), strategy);
+    }
+
+    private boolean configurePlacement(JSONObject config) {
+        if(config == null)
+            config = new JSONObject();
+
+        List<JSONObject> rules = new ArrayList<>();
+        if(config.optJSONObject("default") != null)
+            rules.add(config.getJSONObject("default"));
+
+        for(String section : new String[] {"packages", "attributes"}) {
+            JSONObject sectionRules = config.optJSONObject(section);
+            if(sectionRules == null)
+                continue;
+
+            for(String key : sectionRules.keySet()) {
+                rules.add(sectionRules.getJSONObject(key));
+            }
+        }
+
+        for(JSONObject rule : rules) {
+            String name = rule.optString("strategy", DEFAULT_PLACEMENT_STRATEGY);
+            if(!placementStrategies.containsKey(name)) {
+                log.fatal("Unknown placement strategy " + name);
+                return false;
+            }
+        }
+
+        placementConfig = config;
+        return true;
+    }
+
+    private JSONObject getPlacementRule(P3Package p3) {
+        JSONObject packages = placementConfig.optJSONObject("packages");
+        if(packages != null && packages.optJSONObject(p3.getId()) != null)
+            return packages.getJSONObject(p3.getId());
+
+        JSONObject attributes = placementConfig.optJSONObject("attributes");
+        if(attributes != null) {
+            for(String attr : p3.getAttributes()) {
+                if(attributes.optJSONObject(attr) != null)
+                    return attributes.getJSONObject(attr);
+            }
+        }
+
+        JSONObject rule = placementConfig.optJSONObject("default");
+        return rule == null ? new JSONObject() : rule;
+    }
+
     @Override
     public boolean send(Protocol.Transaction message, String target) {
         LocalCoordinator coord = getCoordinator(target);
@@ -284,71 +408,22 @@ public class Network extends PlayPen {
             return false;
         }
 
-        return sendToChannel(message, coord.getChannel(), coord.getUuid(), coord.getKey());
+        coord.getChannel().writeAndFlush(new AuthenticatedMessage(coord.getUuid(), message));
+        return true;
     }
 
-    private boolean sendToChannel(Protocol.Transaction message, Channel channel, String uuid, String key) {
-        if(!message.isInitialized()) {
-            log.error("Transaction is not initialized (protobuf)");
-            return false;
-        }
-
-        ByteString messageBytes = message.toByteString();
-        byte[] encBytes = AuthUtils.encrypt(messageBytes.toByteArray(), key);
-        String hash = AuthUtils.createHash(key, encBytes);
-        messageBytes = ByteString.copyFrom(encBytes);
-
-        Protocol.AuthenticatedMessage auth = Protocol.AuthenticatedMessage.newBuilder()
-                .setUuid(uuid)
-                .setVersion(Bootstrap.getProtocolVersion())
-                .setHash(hash)
-                .setPayload(messageBytes)
-                .build();
-
-        if(!auth.isInitialized()) {
-            log.error("Message is not initialized (protobuf)");
-            return false;
-        }
-
-        channel.writeAndFlush(auth);
-        return true;
+    @Override
+    public CryptoSession getCryptoSession(String uuid) {
+        LocalCoordinator coord = coordinators.get(uuid);
+        return coord == null ? null : coord.getCryptoSession();
     }
 
     @Override
-    public boolean receive(Protocol.AuthenticatedMessage auth, Channel from) {
-        LocalCoordinator local = getCoordinator(auth.getUuid());
-        boolean sendInvalidMessage = false;
+    public boolean receive(AuthenticatedMessage auth, Channel from) {
+        LocalCoordinator local = coordinators.get(auth.getUuid());
         if(local == null) {
-            log.error("Unknown coordinator on receive (" + auth.getUuid() + ")");
-            sendInvalidMessage = true;
-        }
-        else if(!AuthUtils.validateHash(auth, local.getKey())) {
-            log.error("Invalid hash on message from " + auth.getUuid() + ", got " + auth.getHash() + " (expected "
-                    + AuthUtils.createHash(local.getKey(), auth.getPayload().toByteArray()));
-            log.error("Closing connection from " + from + " due to bad hash");
-            sendInvalidMessage = true;
-        }
-
-        if (sendInvalidMessage) {
-            log.info("Sending an invalid message to close out connection");
-
-            // send an invalid no-op to the client as a way to tell it to close the connection
-            // we can't use send() functions as they require a coordinator id, but since we received an invalid
-            // message we can't assume the id is correct.
-
-            Commands.BaseCommand command = Commands.BaseCommand.newBuilder()
-                    .setType(Commands.BaseCommand.CommandType.NOOP)
-                    .build();
-
-            Protocol.Transaction message = Protocol.Transaction.newBuilder()
-                    .setId("0")
-                    .setMode(Protocol.Transaction.Mode.SINGLE)
-                    .setPayload(command)
-                    .build();
-
-            sendToChannel(message, from, auth.getUuid(), "0");
+            log.error("Unknown coordinator on receive (" + auth.getUuid() + "), closing connection from " + from);
             from.close();
-
             return false;
         }
 
@@ -358,18 +433,7 @@ public class Network extends PlayPen {
             return false;
         }*/
 
-        ByteString payload = auth.getPayload();
-        byte[] payloadBytes = AuthUtils.decrypt(payload.toByteArray(), local.getKey());
-        payload = ByteString.copyFrom(payloadBytes);
-
-        Protocol.Transaction transaction = null;
-        try {
-            transaction = Protocol.Transaction.parseFrom(payload);
-        }
-        catch(InvalidProtocolBufferException e) {
-            log.error("Unable to read transaction from message", e);
-            return false;
-        }
+        Protocol.Transaction transaction = auth.getTransaction();
 
         if (local.getChannel() == from) {
             from.closeFuture().addListener(channelFuture -> {
@@ -384,6 +448,12 @@ public class Network extends PlayPen {
             });
         }
 
+        if (local.getChannel() != from) {
+            // a new connection always starts with a full SYNC
+            local.setSyncSequence(-1);
+            local.setResyncRequested(false);
+        }
+
         local.setChannel(from);
 
         TransactionManager.get().receive(transaction, local.getUuid());
@@ -418,6 +488,9 @@ public class Network extends PlayPen {
             case PROVISION_RESPONSE:
                 return processProvisionResponse(command.getProvisionResponse(), info, from);
 
+            case PROVISION_BATCH_RESPONSE:
+                return processProvisionBatchResponse(command.getProvisionBatchResponse(), info, from);
+
             case PACKAGE_REQUEST:
                 return processPackageRequest(command.getPackageRequest(), info, from);
 
@@ -430,6 +503,9 @@ public class Network extends PlayPen {
             case CONSOLE_MESSAGE:
                 return processConsoleMessage(command.getConsoleMessage(), info, from);
 
+            case CONSOLE_MESSAGE_BATCH:
+                return processConsoleMessageBatch(command.getConsoleMessageBatch(), info, from);
+
             case DETACH_CONSOLE:
                 return processDetachConsole(command.getDetachConsole(), info, from);
 
@@ -440,6 +516,9 @@ public class Network extends PlayPen {
             case C_PROVISION:
                 return c_processProvision(command.getCProvision(), info, from);
 
+            case C_PROVISION_BATCH:
+                return c_processProvisionBatch(command.getCProvisionBatch(), info, from);
+
             case C_DEPROVISION:
                 return c_processDeprovision(command.getCDeprovision(), info, from);
 
@@ -552,43 +631,150 @@ public class Network extends PlayPen {
     }
 
     /**
-     * Selects a coordinator to use for provisioning. This will only return an active coordinator
-     * with the lowest normalized resource usage.
+     * Selects a coordinator to use for provisioning with the placement strategy configured for the package (see
+     * IPlacementStrategy). This will only return an active coordinator that can provision the package.
      *
      * This will ignore all coordinators that have set restricted to true.
      */
     public LocalCoordinator selectCoordinator(P3Package p3) {
-        LocalCoordinator best = null;
-        double bestNRU = Double.MIN_VALUE;
+        return selectCoordinator(p3, Collections.emptySet());
+    }
+
+    /**
+     * Same as selectCoordinator(p3), skipping the coordinators with the given uuids.
+     */
+    public LocalCoordinator selectCoordinator(P3Package p3, Set<String> excluded) {
+        List<LocalCoordinator> candidates = new ArrayList<>(coordinators.size());
         for(LocalCoordinator coord : coordinators.values()) {
-            if(!coord.isEnabled() || coord.isRestricted())
+            if(!coord.isEnabled() || coord.isRestricted() || coord.isProvisionSaturated() || excluded.contains(coord.getUuid()))
                 continue;
 
-            double nru = coord.getNormalizedResourceUsage();
-            if(nru > bestNRU && coord.canProvisionPackage(p3)) {
-                best = coord;
-                bestNRU = nru;
-            }
+            candidates.add(coord);
+        }
+
+        JSONObject rule = getPlacementRule(p3);
+        IPlacementStrategy strategy = placementStrategies.get(rule.optString("strategy", DEFAULT_PLACEMENT_STRATEGY));
+        if(strategy == null) {
+            log.error("Unknown placement strategy " + rule.optString("strategy") + " for " + p3.getId());
+            return null;
         }
 
-        return best;
+        return strategy.select(p3, candidates, rule);
     }
 
     /**
-     * Synchronized due to the use of selectCoordinator
+     * Nothing is locked while provisioning, so another provision can take the resources of the selected coordinator
+     * before they are reserved. When that happens (or the provision can't be sent), the next best coordinator is
+     * tried instead.
      */
-    public synchronized ProvisionResult provision(P3Package p3, String serverName, Map<String, String> properties) {
-        LocalCoordinator coord = selectCoordinator(p3);
-        if(coord == null) {
-            log.error("Unable to select a coordinator for a provisioning operation");
-            return null;
-        }
+    public ProvisionResult provision(P3Package p3, String serverName, Map<String, String> properties) {
+        Set<String> excluded = new HashSet<>();
+        while(true) {
+            LocalCoordinator coord = selectCoordinator(p3, excluded);
+            if(coord == null) {
+                log.error("Unable to select a coordinator for a provisioning operation");
+                return null;
+            }
+
+            ProvisionResult result = provision(p3, serverName, properties, coord.getUuid());
+            if(result != null)
+                return result;
 
-        return provision(p3, serverName, properties, coord.getUuid());
+            log.warn("Provision on coordinator " + coord.getUuid() + " failed, trying another coordinator");
+            excluded.add(coord.getUuid());
+        }
     }
 
     public ProvisionResult provision(P3Package p3, String serverName, Map<String, String> properties, String target) {
         log.info("Provision requested for " + p3.getId() + " at " + p3.getVersion() + " on coordinator " + target + " with server name " + serverName);
+        return sendProvision(target, p3, serverName, buildProvisionProperties(p3, serverName, properties));
+    }
+
+    /**
+     * Provisions several servers of the same package. Every server is placed before anything is sent, each one
+     * reserving its resources so the next is placed against what is left. The servers are then sent as a single
+     * PROVISION_BATCH per coordinator. If target is not null, all servers are placed on that coordinator.
+     *
+     * Returns one result per request in the same order, which is null for servers that couldn't be placed or sent.
+     */
+    public List<ProvisionResult> provisionBatch(P3Package p3, List<ProvisionRequest> requests, String target) {
+        log.info("Batch provision requested for " + requests.size() + " servers of " + p3.getId() + " at " + p3.getVersion()
+                + (target == null ? "" : " on coordinator " + target));
+        ProvisionResult[] results = new ProvisionResult[requests.size()];
+        if(!p3.isResolved()) {
+            log.error("Cannot pass an unresolved package to provisionBatch");
+            return Arrays.asList(results);
+        }
+
+        Map<LocalCoordinator, List<Integer>> placed = new LinkedHashMap<>();
+        Server[] servers = new Server[requests.size()];
+        List<Map<String, String>> properties = new ArrayList<>(requests.size());
+        Set<String> excluded = new HashSet<>();
+        for(int i = 0; i < requests.size(); ++i) {
+            ProvisionRequest request = requests.get(i);
+            properties.add(buildProvisionProperties(p3, request.getServerName(), request.getProperties()));
+            servers[i] = placeServer(p3, request.getServerName(), properties.get(i), target, excluded);
+            if(servers[i] == null) {
+                log.error("Unable to place server " + (i + 1) + " of " + requests.size() + " in batch provision of " + p3.getId());
+                continue;
+            }
+
+            placed.computeIfAbsent(servers[i].getCoordinator(), k -> new ArrayList<>()).add(i);
+        }
+
+        for(Map.Entry<LocalCoordinator, List<Integer>> entry : placed.entrySet()) {
+            LocalCoordinator coord = entry.getKey();
+            List<Server> coordServers = new ArrayList<>(entry.getValue().size());
+            List<Coordinator.Server> messages = new ArrayList<>(entry.getValue().size());
+            for(int i : entry.getValue()) {
+                coordServers.add(servers[i]);
+                messages.add(buildServer(p3, servers[i].getUuid(), requests.get(i).getServerName(), properties.get(i)));
+            }
+
+            if(!sendProvisionBatch(coord, coordServers, messages))
+                continue;
+
+            for(int i : entry.getValue()) {
+                ProvisionResult result = new ProvisionResult();
+                result.setCoordinator(coord.getUuid());
+                result.setServer(servers[i].getUuid());
+                results[i] = result;
+            }
+        }
+
+        return Arrays.asList(results);
+    }
+
+    /**
+     * Reserves a server for a batch provision, on the target coordinator if there is one or on the coordinator chosen
+     * by the placement strategy otherwise. Coordinators that turn out to be full are added to excluded, since the rest
+     * of the batch won't fit on them either.
+     */
+    protected Server placeServer(P3Package p3, String name, Map<String, String> properties, String target, Set<String> excluded) {
+        if(target != null) {
+            LocalCoordinator coord = getCoordinator(target);
+            if(coord == null || !coord.isEnabled()) {
+                log.error("Coordinator " + target + " is unknown or not enabled for batch provision");
+                return null;
+            }
+
+            return coord.createServer(p3, name, properties);
+        }
+
+        while(true) {
+            LocalCoordinator coord = selectCoordinator(p3, excluded);
+            if(coord == null)
+                return null;
+
+            Server server = coord.createServer(p3, name, properties);
+            if(server != null)
+                return server;
+
+            excluded.add(coord.getUuid());
+        }
+    }
+
+    protected Map<String, String> buildProvisionProperties(P3Package p3, String serverName, Map<String, String> properties) {
         Map<String, String> newProps = new HashMap<>();
         newProps.putAll(packageManager.buildProperties(p3));
         newProps.putAll(globalStrings);
@@ -597,8 +783,7 @@ public class Network extends PlayPen {
             newProps.put("server_name", serverName);
 
         newProps.putAll(properties);
-
-        return sendProvision(target, p3, serverName, newProps);
+        return newProps;
     }
 
     public boolean deprovision(String target, String serverId) {
@@ -628,78 +813,181 @@ public class Network extends PlayPen {
             return false;
         }
 
-        coord.setEnabled(false); // protection so we don't start any new tasks
-                                 // while syncing this coordinator
+        if(command.getDelta()) {
+            if(coord.getSyncSequence() < 0 || command.getSequence() != coord.getSyncSequence() + 1) {
+                if(coord.isResyncRequested())
+                    return true; // a full SYNC is already on its way
 
-        if(command.hasName()) {
-            coord.setName(command.getName());
-            if (coord.getKeyName().isEmpty()) {
-                coord.setKeyName(coord.getName());
-                saveKeystore();
+                log.warn("Missed SYNC from " + coord.getUuid() + " (expected " + (coord.getSyncSequence() + 1)
+                        + ", received " + command.getSequence() + "), requesting a full SYNC");
+                coord.setResyncRequested(true);
+                return sendResync(coord.getUuid());
             }
-        }
-        else {
-            coord.setName(coord.getUuid());
-        }
 
-        coord.getResources().clear();
-        for(Coordinator.Resource resource : command.getResourcesList()) {
-            coord.getResources().put(resource.getName(), resource.getValue());
+            return processSyncDelta(coord, command);
         }
 
-        coord.getAttributes().clear();
-        for(String attr : command.getAttributesList()) {
-            coord.getAttributes().add(attr);
+        processSyncName(coord, command);
+
+        // the new state is built off to the side and swapped in at once, so nothing ever sees a half applied SYNC
+        Map<String, Integer> resources = new HashMap<>();
+        for(Coordinator.Resource resource : command.getResourcesList()) {
+            resources.put(resource.getName(), resource.getValue());
         }
 
-        Map<String, Server> oldServers = new HashMap<>(coord.getServers());
+        Set<String> attributes = new HashSet<>(command.getAttributesList());
 
-        coord.getServers().clear();
+        Map<String, Server> syncServers = coord.getServers();
+        Map<String, Server> servers = new HashMap<>();
         for(Coordinator.Server cmdServer : command.getServersList()) {
-            Server server = new Server();
-            server.setActive(cmdServer.getActive());
-            server.setUuid(cmdServer.getUuid());
-            server.setName(cmdServer.hasName() ? cmdServer.getName() : server.getUuid());
-            server.setP3(packageManager.resolve(cmdServer.getP3().getId(), cmdServer.getP3().getVersion()));
-            server.setCoordinator(coord);
-            if(server.getP3() == null) {
-                log.warn("Unknown P3 " + cmdServer.getP3().getId() + " at " +
-                    cmdServer.getP3().getVersion() + " for server " + server.getName());
-            }
+            Server server = readSyncServer(coord, cmdServer, syncServers.get(cmdServer.getUuid()));
+            servers.put(server.getUuid(), server);
+        }
 
-            for(Coordinator.Property prop : cmdServer.getPropertiesList()) {
-                server.getProperties().put(prop.getName(), prop.getValue());
-            }
+        // reservations still waiting on their provision may not be in the SYNC yet, so they are carried over instead
+        // of being dropped along with the servers the local coordinator no longer has
+        CoordinatorState oldState;
+        CoordinatorState state;
+        do {
+            oldState = coord.getState();
+            state = oldState.withSync(resources, attributes, servers, coord::isPendingServer);
+        } while(!coord.compareAndSetState(oldState, state));
 
-            coord.getServers().put(server.getUuid(), server);
-        }
+        Map<String, Server> oldServers = oldState.getServers();
 
         for (Server oldServer : oldServers.values()) {
-            if (!coord.getServers().containsKey(oldServer.getUuid())) {
+            if (!state.getServers().containsKey(oldServer.getUuid())) {
                 oldServer.setActive(false);
                 log.info("Reconciled server shutdown for " + oldServer.getUuid() + "  on " + coord.getUuid());
                 eventManager.callEvent(l -> l.onServerShutdown(coord, oldServer));
             }
         }
 
-        for (Server newServer : coord.getServers().values()) {
+        for (Server newServer : state.getServers().values()) {
             if (!oldServers.containsKey(newServer.getUuid())) {
                 log.info("Reconciled server startup for " + newServer.getUuid() + " on " + coord.getUuid());
                 eventManager.callEvent(l -> l.onProvisionResponse(coord, newServer, true));
             }
         }
 
+        coord.setSyncSequence(command.getSequence());
+        coord.setResyncRequested(false);
         coord.setEnabled(command.getEnabled());
-        log.info("Synchronized " + coord.getUuid() + " with " + coord.getServers().size()
+        processSyncProvisionQueue(coord, command);
+        log.info("Synchronized " + coord.getUuid() + " with " + state.getServers().size()
                 + " servers (" + (coord.isEnabled() ? "enabled" : "not enabled") + ")");
-        log.debug(coord.getUuid() + " has " + coord.getResources().size() + " resources and " + coord.getAttributes().size() + " attributes");
+        log.debug(coord.getUuid() + " has " + state.getResources().size() + " resources and " + state.getAttributes().size() + " attributes");
 
         eventManager.callEvent(l -> l.onCoordinatorSync(coord));
         
         return true;
     }
 
-    protected synchronized ProvisionResult sendProvision(String target, P3Package p3, String name, Map<String, String> properties) {
+    protected void processSyncProvisionQueue(LocalCoordinator coord, Commands.Sync command) {
+        if(command.getProvisionSaturated() != coord.isProvisionSaturated()) {
+            log.info("Provision queue of " + coord.getUuid() + " is " + (command.getProvisionSaturated() ? "saturated, not selecting it for provisioning" : "no longer saturated"));
+        }
+
+        coord.setProvisionQueued(command.getProvisionQueued());
+        coord.setProvisionSaturated(command.getProvisionSaturated());
+    }
+
+    /**
+     * Applies a SYNC that only carries the servers that changed since the previous SYNC. Resources and attributes
+     * are unchanged.
+     */
+    protected boolean processSyncDelta(LocalCoordinator coord, Commands.Sync command) {
+        processSyncName(coord, command);
+
+        Map<String, Server> current = coord.getServers();
+        List<Server> updated = new ArrayList<>(command.getServersCount());
+        for(Coordinator.Server cmdServer : command.getServersList()) {
+            updated.add(readSyncServer(coord, cmdServer, current.get(cmdServer.getUuid())));
+        }
+
+        // servers may be created or removed concurrently, so merge into whatever the latest state is
+        CoordinatorState oldState;
+        do {
+            oldState = coord.getState();
+        } while(!coord.compareAndSetState(oldState, oldState.withServers(updated, command.getRemovedServersList())));
+
+        Map<String, Server> oldServers = oldState.getServers();
+        for(Server server : updated) {
+            if (!oldServers.containsKey(server.getUuid())) {
+                log.info("Reconciled server startup for " + server.getUuid() + " on " + coord.getUuid());
+                eventManager.callEvent(l -> l.onProvisionResponse(coord, server, true));
+            }
+        }
+
+        for(String uuid : command.getRemovedServersList()) {
+            Server oldServer = oldServers.get(uuid);
+            if (oldServer != null) {
+                oldServer.setActive(false);
+                log.info("Reconciled server shutdown for " + oldServer.getUuid() + "  on " + coord.getUuid());
+                eventManager.callEvent(l -> l.onServerShutdown(coord, oldServer));
+            }
+        }
+
+        coord.setSyncSequence(command.getSequence());
+        coord.setEnabled(command.getEnabled());
+        processSyncProvisionQueue(coord, command);
+        log.debug("Synchronized " + coord.getUuid() + " (" + command.getServersCount() + " servers changed, "
+                + command.getRemovedServersCount() + " removed, " + (coord.isEnabled() ? "enabled" : "not enabled") + ")");
+
+        eventManager.callEvent(l -> l.onCoordinatorSync(coord));
+
+        return true;
+    }
+
+    private void processSyncName(LocalCoordinator coord, Commands.Sync command) {
+        if(command.hasName()) {
+            coord.setName(command.getName());
+            if (coord.getKeyName().isEmpty()) {
+                coord.setKeyName(coord.getName());
+                saveKeystore();
+            }
+        }
+        else {
+            coord.setName(coord.getUuid());
+        }
+    }
+
+    /**
+     * Creates a server from a SYNC. The package of the server it replaces is reused if it hasn't changed, so only new
+     * or changed servers have their package resolved.
+     */
+    private Server readSyncServer(LocalCoordinator coord, Coordinator.Server cmdServer, Server oldServer) {
+        Server server = new Server();
+        server.setActive(cmdServer.getActive());
+        server.setUuid(cmdServer.getUuid());
+        server.setName(cmdServer.hasName() ? cmdServer.getName() : server.getUuid());
+        server.setCoordinator(coord);
+
+        P3Package oldP3 = oldServer == null ? null : oldServer.getP3();
+        if(oldP3 != null && oldP3.getId().equals(cmdServer.getP3().getId())
+                && oldP3.getVersion().equals(cmdServer.getP3().getVersion())) {
+            server.setP3(oldP3);
+        }
+        else {
+            server.setP3(packageManager.resolve(cmdServer.getP3().getId(), cmdServer.getP3().getVersion()));
+            if(server.getP3() == null) {
+                log.warn("Unknown P3 " + cmdServer.getP3().getId() + " at " +
+                    cmdServer.getP3().getVersion() + " for server " + server.getName());
+            }
+        }
+
+        for(Coordinator.Property prop : cmdServer.getPropertiesList()) {
+            server.getProperties().put(prop.getName(), prop.getValue());
+        }
+
+        return server;
+    }
+
+    /**
+     * Reserves the resources for the server on the coordinator (see LocalCoordinator.createServer()) and sends the
+     * provision. The reservation is given back if the provision can't be sent, fails or times out.
+     */
+    protected ProvisionResult sendProvision(String target, P3Package p3, String name, Map<String, String> properties) {
         if(!p3.isResolved()) {
             log.error("Cannot pass an unresolved package to sendProvision");
             return null;
@@ -722,6 +1010,58 @@ public class Network extends PlayPen {
             return null;
         }
 
+        Commands.Provision provision = Commands.Provision.newBuilder()
+                .setServer(buildServer(p3, server.getUuid(), name, properties))
+                .addAllChecksums(buildChainChecksums(p3))
+                .build();
+
+        Commands.BaseCommand command = Commands.BaseCommand.newBuilder()
+                .setType(Commands.BaseCommand.CommandType.PROVISION)
+                .setProvision(provision)
+                .build();
+
+        TransactionInfo info = TransactionManager.get().begin();
+
+        Protocol.Transaction message = TransactionManager.get()
+                .build(info.getId(), Protocol.Transaction.Mode.CREATE, command);
+        if(message == null) {
+            log.error("Unable to build message for provision");
+            TransactionManager.get().cancel(info.getId());
+            coord.releaseServer(server.getUuid());
+            return null;
+        }
+
+        log.info("Sending provision of " + p3.getId() + " at " + p3.getVersion() + " to " + coord.getUuid() + ", creating server " + server.getUuid());
+
+        if(!TransactionManager.get().send(info.getId(), message, coord.getUuid())) {
+            log.error("Failed to send PROVISION to coordinator " + target);
+            TransactionManager.get().cancel(info.getId(), true);
+            coord.releaseServer(server.getUuid());
+            return null;
+        }
+
+        // only cancelled if no PROVISION_RESPONSE arrives in time, the response itself completes the transaction
+        info.setHandler(new AbstractTransactionListener() {
+            @Override
+            public void onTransactionCancel(TransactionManager tm, TransactionInfo info) {
+                if(coord.releaseServer(server.getUuid()) != null) {
+                    log.warn("No PROVISION_RESPONSE for server " + server.getUuid() + " on " + coord.getUuid()
+                            + ", releasing its resources");
+                    eventManager.callEvent(l -> l.onProvisionResponse(coord, server, false));
+                }
+            }
+        });
+
+        ProvisionResult result = new ProvisionResult();
+        result.setCoordinator(target);
+        result.setServer(server.getUuid());
+
+        eventManager.callEvent(l -> l.onRequestProvision(coord, server));
+
+        return result;
+    }
+
+    protected Coordinator.Server buildServer(P3Package p3, String uuid, String name, Map<String, String> properties) {
         P3.P3Meta meta = P3.P3Meta.newBuilder()
                 .setId(p3.getId())
                 .setVersion(p3.getVersion())
@@ -729,7 +1069,7 @@ public class Network extends PlayPen {
 
         Coordinator.Server.Builder serverBuilder = Coordinator.Server.newBuilder()
                 .setP3(meta)
-                .setUuid(server.getUuid());
+                .setUuid(uuid);
         if(name != null)
             serverBuilder.setName(name);
 
@@ -742,13 +1082,58 @@ public class Network extends PlayPen {
             serverBuilder.addProperties(prop);
         }
 
-        Commands.Provision provision = Commands.Provision.newBuilder()
-                .setServer(serverBuilder.build())
+        return serverBuilder.build();
+    }
+
+    /**
+     * Returns the checksums of a package and everything it depends on, so a local coordinator can check its copies of
+     * the whole chain at once instead of asking for each checksum. Empty if the chain can't be resolved, in which case
+     * the local coordinator falls back to asking.
+     */
+    protected List<Commands.PackageChecksum> buildChainChecksums(P3Package p3) {
+        List<P3Package> chain = packageManager.resolveDependencyChain(p3);
+        if(chain == null) {
+            log.warn("Unable to resolve dependency chain of " + p3.getId() + " at " + p3.getVersion() + ", not sending checksums");
+            return Collections.emptyList();
+        }
+
+        List<Commands.PackageChecksum> checksums = new ArrayList<>(chain.size());
+        for(P3Package pkg : chain) {
+            try {
+                checksumManifest.fill(pkg);
+            }
+            catch(PackageException e) {
+                log.warn("Unable to calculate checksum of " + pkg.getId() + " at " + pkg.getVersion() + ", not sending checksums", e);
+                return Collections.emptyList();
+            }
+
+            P3.P3Meta meta = P3.P3Meta.newBuilder()
+                    .setId(pkg.getId())
+                    .setVersion(pkg.getVersion())
+                    .build();
+
+            checksums.add(Commands.PackageChecksum.newBuilder()
+                    .setP3(meta)
+                    .setChecksum(pkg.getChecksum())
+                    .build());
+        }
+
+        return checksums;
+    }
+
+    /**
+     * Sends servers that have already been reserved on a coordinator as one PROVISION_BATCH. The reservations are
+     * given back if the batch can't be sent, or for any server that fails or isn't in a response that arrives in time.
+     */
+    protected boolean sendProvisionBatch(LocalCoordinator coord, List<Server> servers, List<Coordinator.Server> messages) {
+        Commands.ProvisionBatch batch = Commands.ProvisionBatch.newBuilder()
+                .addAllServers(messages)
+                .addAllChecksums(buildChainChecksums(servers.get(0).getP3()))
                 .build();
 
         Commands.BaseCommand command = Commands.BaseCommand.newBuilder()
-                .setType(Commands.BaseCommand.CommandType.PROVISION)
-                .setProvision(provision)
+                .setType(Commands.BaseCommand.CommandType.PROVISION_BATCH)
+                .setProvisionBatch(batch)
                 .build();
 
         TransactionInfo info = TransactionManager.get().begin();
@@ -756,25 +1141,82 @@ public class Network extends PlayPen {
         Protocol.Transaction message = TransactionManager.get()
                 .build(info.getId(), Protocol.Transaction.Mode.CREATE, command);
         if(message == null) {
-            log.error("Unable to build message for provision");
+            log.error("Unable to build message for provision batch");
             TransactionManager.get().cancel(info.getId());
-            return null;
+            servers.forEach(server -> coord.releaseServer(server.getUuid()));
+            return false;
         }
 
-        log.info("Sending provision of " + p3.getId() + " at " + p3.getVersion() + " to " + coord.getUuid() + ", creating server " + server.getUuid());
+        log.info("Sending provision batch of " + servers.size() + " servers to " + coord.getUuid());
 
         if(!TransactionManager.get().send(info.getId(), message, coord.getUuid())) {
-            log.error("Failed to send PROVISION to coordinator " + target);
-            return null;
+            log.error("Failed to send PROVISION_BATCH to coordinator " + coord.getUuid());
+            TransactionManager.get().cancel(info.getId(), true);
+            servers.forEach(server -> coord.releaseServer(server.getUuid()));
+            return false;
         }
 
-        ProvisionResult result = new ProvisionResult();
-        result.setCoordinator(target);
-        result.setServer(server.getUuid());
+        info.setHandler(new AbstractTransactionListener() {
+            @Override
+            public void onTransactionCancel(TransactionManager tm, TransactionInfo info) {
+                for(Server server : servers) {
+                    if(coord.releaseServer(server.getUuid()) != null) {
+                        log.warn("No PROVISION_BATCH_RESPONSE for server " + server.getUuid() + " on " + coord.getUuid()
+                                + ", releasing its resources");
+                        eventManager.callEvent(l -> l.onProvisionResponse(coord, server, false));
+                    }
+                }
+            }
+        });
 
-        eventManager.callEvent(l -> l.onRequestProvision(coord, server));
+        for(Server server : servers) {
+            eventManager.callEvent(l -> l.onRequestProvision(coord, server));
+        }
 
-        return result;
+        return true;
+    }
+
+    protected boolean processProvisionBatchResponse(Commands.ProvisionBatchResponse command, TransactionInfo info, String from) {
+        LocalCoordinator coord = getCoordinator(from);
+        if(coord == null) {
+            log.error("Cannot process PROVISION_BATCH_RESPONSE on invalid coordinator " + from);
+            return false;
+        }
+
+        Commands.BaseCommand previous = info.getTransaction().getPayload();
+        if(previous == null || previous.getType() != Commands.BaseCommand.CommandType.PROVISION_BATCH) {
+            log.error("PROVISION_BATCH_RESPONSE expects transaction to have previously contained a PROVISION_BATCH command");
+            return false;
+        }
+
+        Map<String, Boolean> results = new HashMap<>();
+        for(Commands.ProvisionBatchResult result : command.getResultsList()) {
+            results.put(result.getUuid(), result.getOk());
+        }
+
+        boolean allOk = true;
+        for(Coordinator.Server cmdServer : previous.getProvisionBatch().getServersList()) {
+            Server server = coord.getServer(cmdServer.getUuid());
+            if(server == null) {
+                log.error("Unknown server " + cmdServer.getUuid() + " on PROVISION_BATCH_RESPONSE");
+                allOk = false;
+                continue;
+            }
+
+            if(results.getOrDefault(server.getUuid(), false)) {
+                coord.activateServer(server);
+                log.info("Server " + server.getUuid() + " on " + coord.getUuid() + " has been activated (provision batch response)");
+                eventManager.callEvent(l -> l.onProvisionResponse(coord, server, true));
+            }
+            else {
+                coord.releaseServer(server.getUuid());
+                log.warn("Server " + server.getUuid() + " on " + coord.getUuid() + " failed to activate (provision batch response)");
+                eventManager.callEvent(l -> l.onProvisionResponse(coord, server, false));
+                allOk = false;
+            }
+        }
+
+        return allOk;
     }
 
     protected boolean processProvisionResponse(Commands.ProvisionResponse command, TransactionInfo info, String from) {
@@ -798,7 +1240,7 @@ public class Network extends PlayPen {
         }
 
         if(command.getOk()) {
-            server.setActive(true);
+            coord.activateServer(server);
             log.info("Server " + server.getUuid() + " on " + coord.getUuid() + " has been activated (provision response)");
 
             eventManager.callEvent(l -> l.onProvisionResponse(coord, server, true));
@@ -806,7 +1248,7 @@ public class Network extends PlayPen {
             return true;
         }
         else {
-            coord.getServers().remove(server.getUuid());
+            coord.releaseServer(server.getUuid());
             log.warn("Server " + server.getUuid() + " on " + coord.getUuid() + " failed to activate (provision response)");
 
             eventManager.callEvent(l -> l.onProvisionResponse(coord, server, false));
@@ -832,16 +1274,22 @@ public class Network extends PlayPen {
             return sendPackageResponseFailure(from, info.getId());
         }
 
-        Thread thread = new Thread(() -> {
-            if (!sendPackageResponse(from, info.getId(), p3)) {
-                sendPackageResponseFailure(from, info.getId());
-            }
-        });
-        thread.start();
+        try {
+            packageSendExecutor.execute(() -> {
+                if (!sendPackageResponse(from, info.getId(), p3)) {
+                    sendPackageResponseFailure(from, info.getId());
+                }
+            });
+        }
+        catch (RejectedExecutionException e) {
+            log.error("Unable to queue package " + id + " at " + version + " for " + from, e);
+            return sendPackageResponseFailure(from, info.getId());
+        }
+
         return true;
     }
 
-    protected boolean sendPackageResponseFailure(String target, String tid) {
+    protected boolean sendPackageResponseFailure(String target, long tid) {
         TransactionInfo info = TransactionManager.get().getTransaction(tid);
         if(info == null) {
             log.error("Unknown transaction " + tid + ", unable to send package");
@@ -867,7 +1315,7 @@ public class Network extends PlayPen {
         return TransactionManager.get().send(info.getId(), message, target);
     }
 
-    protected boolean sendPackageResponse(String target, String tid, P3Package p3) {
+    protected boolean sendPackageResponse(String target, long tid, P3Package p3) {
         if(!p3.isResolved()) {
             log.error("Cannot pass an unresolved package to sendPackage");
             return false;
@@ -885,7 +1333,7 @@ public class Network extends PlayPen {
                 .build();
 
         try {
-            p3.calculateChecksum();
+            checksumManifest.fill(p3);
         }
         catch (PackageException e) {
             log.log(Level.ERROR, "Unable to calculate package checksum", e);
@@ -894,78 +1342,8 @@ public class Network extends PlayPen {
 
         File packageFile = new File(p3.getLocalPath());
         long fileLength = packageFile.length();
-        if (false) {
-            log.info("Sending chunked package " + p3.getId() + " at " + p3.getVersion() + " to " + target);
-            log.debug("Checksum: " + p3.getChecksum());
-            try (FileInputStream in = new FileInputStream(packageFile)) {
-                byte[] packageBytes = new byte[1048576];
-                int chunkLen = 0;
-                int chunkId = 0;
-                while ((chunkLen = in.read(packageBytes)) != -1) {
-                    P3.SplitPackageData data = P3.SplitPackageData.newBuilder()
-                            .setMeta(meta)
-                            .setEndOfFile(false)
-                            .setChunkId(chunkId)
-                            .setData(ByteString.copyFrom(packageBytes, 0, chunkLen))
-                            .build();
-
-                    Commands.SplitPackageResponse response = Commands.SplitPackageResponse.newBuilder()
-                            .setOk(true)
-                            .setData(data)
-                            .build();
-
-                    Commands.BaseCommand command = Commands.BaseCommand.newBuilder()
-                            .setType(Commands.BaseCommand.CommandType.SPLIT_PACKAGE_RESPONSE)
-                            .setSplitPackageResponse(response)
-                            .build();
-
-                    Protocol.Transaction message = TransactionManager.get()
-                            .build(info.getId(), Protocol.Transaction.Mode.CONTINUE, command);
-                    if (message == null) {
-                        log.error("Unable to build transaction for split package response");
-                        return false;
-                    }
-
-                    if (!TransactionManager.get().send(info.getId(), message, target)) {
-                        log.error("Unable to send transaction for split package response");
-                        return false;
-                    }
-
-                    ++chunkId;
-                }
-
-                P3.SplitPackageData data = P3.SplitPackageData.newBuilder()
-                        .setMeta(meta)
-                        .setEndOfFile(true)
-                        .setChecksum(p3.getChecksum())
-                        .setChunkCount(chunkId)
-                        .build();
-
-                Commands.SplitPackageResponse response = Commands.SplitPackageResponse.newBuilder()
-                        .setOk(true)
-                        .setData(data)
-                        .build();
-
-                Commands.BaseCommand command = Commands.BaseCommand.newBuilder()
-                        .setType(Commands.BaseCommand.CommandType.SPLIT_PACKAGE_RESPONSE)
-                        .setSplitPackageResponse(response)
-                        .build();
-
-                Protocol.Transaction message = TransactionManager.get()
-                        .build(info.getId(), Protocol.Transaction.Mode.COMPLETE, command);
-                if (message == null) {
-                    log.error("Unable to build transaction for split package response");
-                    return false;
-                }
-
-                log.info("Finishing split package response (" + chunkId + " chunks)");
-                log.debug("Checksum: " + p3.getChecksum());
-
-                return TransactionManager.get().send(info.getId(), message, target);
-            } catch (IOException e) {
-                log.error("Unable to read package data", e);
-                return false;
-            }
+        if (packageSizeSplit > 0 && fileLength > packageSizeSplit * 1024L * 1024L) {
+            return sendChunkedPackageResponse(target, info, p3, meta, packageFile);
         }
         else {
             ByteString packageData;
@@ -1007,6 +1385,95 @@ public class Network extends PlayPen {
         }
     }
 
+    /**
+     * Streams a package to a local coordinator in chunks. The chunks are pulled from disk only while the channel is
+     * writable, and the transaction is completed with the checksum once every chunk has been written.
+     */
+    protected boolean sendChunkedPackageResponse(String target, TransactionInfo info, P3Package p3, P3.P3Meta meta, File packageFile) {
+        LocalCoordinator coord = getCoordinator(target);
+        if(coord == null || coord.getChannel() == null || !coord.getChannel().isActive()) {
+            log.error("Unable to stream package to " + target + " as its channel is invalid");
+            return false;
+        }
+
+        final long tid = info.getId();
+        FileChunkInput input;
+        try {
+            input = new FileChunkInput(coord.getUuid(), packageFile.toPath(), FileChunkInput.DEFAULT_CHUNK_SIZE,
+                    (chunkId, offset, fileSize, chunk) -> {
+                        P3.SplitPackageData data = P3.SplitPackageData.newBuilder()
+                                .setMeta(meta)
+                                .setEndOfFile(false)
+                                .setChunkId(chunkId)
+                                .setOffset(offset)
+                                .setFileSize(fileSize)
+                                .setData(chunk)
+                                .build();
+
+                        Commands.SplitPackageResponse response = Commands.SplitPackageResponse.newBuilder()
+                                .setOk(true)
+                                .setData(data)
+                                .build();
+
+                        Commands.BaseCommand command = Commands.BaseCommand.newBuilder()
+                                .setType(Commands.BaseCommand.CommandType.SPLIT_PACKAGE_RESPONSE)
+                                .setSplitPackageResponse(response)
+                                .build();
+
+                        return Protocol.Transaction.newBuilder()
+                                .setId(tid)
+                                .setMode(Protocol.Transaction.Mode.CONTINUE)
+                                .setPayload(command)
+                                .build();
+                    });
+        }
+        catch(IOException e) {
+            log.error("Unable to open package file " + packageFile, e);
+            return false;
+        }
+
+        final int chunkCount = input.getChunkCount();
+        log.info("Streaming package " + p3.getId() + " at " + p3.getVersion() + " to " + target + " (" + chunkCount + " chunks)");
+        log.debug("Checksum: " + p3.getChecksum());
+
+        coord.getChannel().writeAndFlush(input).addListener(future -> {
+            if(!future.isSuccess()) {
+                log.error("Unable to stream package " + p3.getId() + " at " + p3.getVersion() + " to " + target, future.cause());
+                TransactionManager.get().cancel(tid, true);
+                return;
+            }
+
+            P3.SplitPackageData data = P3.SplitPackageData.newBuilder()
+                    .setMeta(meta)
+                    .setEndOfFile(true)
+                    .setChecksum(p3.getChecksum())
+                    .setChunkCount(chunkCount)
+                    .build();
+
+            Commands.SplitPackageResponse response = Commands.SplitPackageResponse.newBuilder()
+                    .setOk(true)
+                    .setData(data)
+                    .build();
+
+            Commands.BaseCommand command = Commands.BaseCommand.newBuilder()
+                    .setType(Commands.BaseCommand.CommandType.SPLIT_PACKAGE_RESPONSE)
+                    .setSplitPackageResponse(response)
+                    .build();
+
+            Protocol.Transaction message = TransactionManager.get()
+                    .build(tid, Protocol.Transaction.Mode.COMPLETE, command);
+            if (message == null) {
+                log.error("Unable to build transaction for split package response");
+                return;
+            }
+
+            log.info("Finishing split package response (" + chunkCount + " chunks)");
+            TransactionManager.get().send(tid, message, target);
+        });
+
+        return true;
+    }
+
     protected boolean processPackageChecksumRequest(Commands.PackageChecksumRequest command, TransactionInfo info, String from) {
         LocalCoordinator coord = getCoordinator(from);
         if(coord == null) {
@@ -1018,6 +1485,13 @@ public class Network extends PlayPen {
         String version = command.getP3().getVersion();
         log.info("Package " + id + " at " + version + " requested by " + from);
 
+        P3Package.P3PackageInfo p3info = new P3Package.P3PackageInfo();
+        p3info.setId(id);
+        p3info.setVersion("promoted".equals(version) ? packageManager.getPromotedVersion(id) : version);
+        String checksum = p3info.getVersion() == null ? null : checksumManifest.get(p3info);
+        if(checksum != null)
+            return sendPackageChecksumResponse(from, info.getId(), p3info, checksum);
+
         P3Package p3 = packageManager.resolve(id, version);
         if(p3 == null) {
             log.error("Unable to resolve package " + id + " at " + version + " for " + from);
@@ -1027,7 +1501,7 @@ public class Network extends PlayPen {
         return sendPackageChecksumResponse(from, info.getId(), p3);
     }
 
-    protected boolean sendPackageChecksumResponseFailure(String target, String tid) {
+    protected boolean sendPackageChecksumResponseFailure(String target, long tid) {
         TransactionInfo info = TransactionManager.get().getTransaction(tid);
         if(info == null) {
             log.error("Unknown transaction " + tid + ", unable to send package");
@@ -1053,29 +1527,36 @@ public class Network extends PlayPen {
         return TransactionManager.get().send(info.getId(), message, target);
     }
 
-    protected boolean sendPackageChecksumResponse(String target, String tid, P3Package p3) {
+    protected boolean sendPackageChecksumResponse(String target, long tid, P3Package p3) {
         if(!p3.isResolved()) {
             log.error("Cannot pass an unresolved package to sendPackageChecksum");
             return false;
         }
 
-        TransactionInfo info = TransactionManager.get().getTransaction(tid);
-        if(info == null) {
-            log.error("Unknown transaction " + tid + ", unable to send package");
-            return false;
-        }
-
         try {
-            p3.calculateChecksum();
+            checksumManifest.fill(p3);
         }
         catch (PackageException e) {
             log.log(Level.ERROR, "Unable to calculate package checksum", e);
             return false;
         }
 
+        P3Package.P3PackageInfo p3info = new P3Package.P3PackageInfo();
+        p3info.setId(p3.getId());
+        p3info.setVersion(p3.getVersion());
+        return sendPackageChecksumResponse(target, tid, p3info, p3.getChecksum());
+    }
+
+    protected boolean sendPackageChecksumResponse(String target, long tid, P3Package.P3PackageInfo p3info, String checksum) {
+        TransactionInfo info = TransactionManager.get().getTransaction(tid);
+        if(info == null) {
+            log.error("Unknown transaction " + tid + ", unable to send package");
+            return false;
+        }
+
         Commands.PackageChecksumResponse response = Commands.PackageChecksumResponse.newBuilder()
                 .setOk(true)
-                .setChecksum(p3.getChecksum())
+                .setChecksum(checksum)
                 .build();
 
         Commands.BaseCommand command = Commands.BaseCommand.newBuilder()
@@ -1090,8 +1571,8 @@ public class Network extends PlayPen {
             return false;
         }
 
-        log.info("Sending package checksum " + p3.getId() + " at " + p3.getVersion() + " to " + target);
-        log.debug("Checksum: " + p3.getChecksum());
+        log.info("Sending package checksum " + p3info.getId() + " at " + p3info.getVersion() + " to " + target);
+        log.debug("Checksum: " + checksum);
 
         return TransactionManager.get().send(info.getId(), message, target);
     }
@@ -1117,24 +1598,15 @@ public class Network extends PlayPen {
                 .build();
 
         Commands.BaseCommand command = Commands.BaseCommand.newBuilder()
-                .setType(Commands.BaseCommand.CommandType.DEPROVISION)
-                .setDeprovision(deprovision)
-                .build();
-
-        TransactionInfo info = TransactionManager.get().begin();
-        Protocol.Transaction message = TransactionManager.get()
-                .build(info.getId(), Protocol.Transaction.Mode.SINGLE, command);
-        if(message == null) {
-            log.error("Unable to build transaction for DEPROVISION");
-            TransactionManager.get().cancel(info.getId());
-            return false;
-        }
+                .setType(Commands.BaseCommand.CommandType.DEPROVISION)
+                .setDeprovision(deprovision)
+                .build();
 
         log.info("Deprovisioning " + server.getUuid() + " on coordinator " + target);
 
         eventManager.callEvent(l -> l.onRequestDeprovision(coord, server));
 
-        return TransactionManager.get().send(info.getId(), message, target);
+        return TransactionManager.get().sendSingle(command, target);
     }
 
     protected boolean processServerShutdown(Commands.ServerShutdown command, TransactionInfo info, String from) {
@@ -1151,7 +1623,7 @@ public class Network extends PlayPen {
         }
 
         server.setActive(false);
-        coord.getServers().remove(server.getUuid());
+        coord.removeServer(server.getUuid());
         log.info("Server " + server.getUuid() + " shutdown on " + coord.getUuid());
 
         eventManager.callEvent(l -> l.onServerShutdown(coord, server));
@@ -1172,20 +1644,11 @@ public class Network extends PlayPen {
                 .setType(Commands.BaseCommand.CommandType.SHUTDOWN)
                 .build();
 
-        TransactionInfo info = TransactionManager.get().begin();
-        Protocol.Transaction message = TransactionManager.get()
-                .build(info.getId(), Protocol.Transaction.Mode.SINGLE, command);
-        if(message == null) {
-            log.error("Unable to build transaction for SHUTDOWN");
-            TransactionManager.get().cancel(info.getId());
-            return false;
-        }
-
         log.info("Shutting down coordinator " + target);
 
         eventManager.callEvent(l -> l.onRequestShutdown(coord));
 
-        return TransactionManager.get().send(info.getId(), message, coord.getUuid());
+        return TransactionManager.get().sendSingle(command, coord.getUuid());
     }
 
     public boolean sendInput(String target, String serverId, String input) {
@@ -1211,18 +1674,9 @@ public class Network extends PlayPen {
                 .setSendInput(protoInput)
                 .build();
 
-        TransactionInfo info = TransactionManager.get().begin();
-        Protocol.Transaction message = TransactionManager.get()
-                .build(info.getId(), Protocol.Transaction.Mode.SINGLE, command);
-        if(message == null) {
-            log.error("Unable to build transaction for SEND_INPUT");
-            TransactionManager.get().cancel(info.getId());
-            return false;
-        }
-
         log.info("Sending input to server " + serverId + " on coordinator " + coord.getUuid());
 
-        return TransactionManager.get().send(info.getId(), message, coord.getUuid());
+        return TransactionManager.get().sendSingle(command, coord.getUuid());
     }
 
     protected boolean sendAttachConsole(String target, String serverId, String consoleId) {
@@ -1253,17 +1707,7 @@ public class Network extends PlayPen {
                 .setAttachConsole(attach)
                 .build();
 
-        TransactionInfo info = TransactionManager.get().begin();
-
-        Protocol.Transaction message = TransactionManager.get()
-                .build(info.getId(), Protocol.Transaction.Mode.SINGLE, command);
-        if(message == null) {
-            log.error("Unable to build transaction for ATTACH_CONSOLE");
-            TransactionManager.get().cancel(info.getId());
-            return false;
-        }
-
-        return TransactionManager.get().send(info.getId(), message, coord.getUuid());
+        return TransactionManager.get().sendSingle(command, coord.getUuid());
     }
 
     protected boolean processConsoleMessage(Commands.ConsoleMessage message, TransactionInfo info, String from) {
@@ -1285,6 +1729,25 @@ public class Network extends PlayPen {
         return c_sendConsoleMessage(target.getUuid(), message.getValue(), message.getConsoleId());
     }
 
+    protected boolean processConsoleMessageBatch(Commands.ConsoleMessageBatch batch, TransactionInfo info, String from) {
+        ConsoleInfo ci = consoles.get(batch.getConsoleId());
+        if(ci == null) {
+            log.error("CONSOLE_MESSAGE_BATCH received with invalid console id");
+            sendDetachConsole(from, batch.getConsoleId());
+            return false;
+        }
+
+        LocalCoordinator target = getCoordinator(ci.getAttached());
+        if(target == null || target.getChannel() == null || !target.getChannel().isActive()) {
+            log.warn("CONSOLE_MESSAGE_BATCH received but attached coordinator isn't valid. Sending detach.");
+            sendDetachConsole(from, batch.getConsoleId());
+            consoles.remove(batch.getConsoleId());
+            return false;
+        }
+
+        return c_sendConsoleMessageBatch(target.getUuid(), batch);
+    }
+
     protected boolean sendDetachConsole(String target, String consoleId) {
         LocalCoordinator coord = getCoordinator(target);
         if(coord == null) {
@@ -1301,19 +1764,9 @@ public class Network extends PlayPen {
                 .setDetachConsole(detach)
                 .build();
 
-        TransactionInfo info = TransactionManager.get().begin();
-
-        Protocol.Transaction message = TransactionManager.get()
-                .build(info.getId(), Protocol.Transaction.Mode.SINGLE, command);
-        if(message == null) {
-            log.error("Unable to build transaction for DETACH_CONSOLE");
-            TransactionManager.get().cancel(info.getId());
-            return false;
-        }
-
         log.info("Sending DETACH_CONSOLE for " + consoleId);
 
-        return TransactionManager.get().send(info.getId(), message, coord.getUuid());
+        return TransactionManager.get().sendSingle(command, coord.getUuid());
     }
 
     protected boolean processDetachConsole(Commands.DetachConsole message, TransactionInfo info, String from) {
@@ -1358,19 +1811,9 @@ public class Network extends PlayPen {
                 .setFreezeServer(freeze)
                 .build();
 
-        TransactionInfo info = TransactionManager.get().begin();
-
-        Protocol.Transaction message = TransactionManager.get()
-                .build(info.getId(), Protocol.Transaction.Mode.SINGLE, command);
-        if(message == null) {
-            log.error("Unable to build transaction for FREEZE_SERVER");
-            TransactionManager.get().cancel(info.getId());
-            return false;
-        }
-
         log.info("Freezing server " + serverId + " on " + target);
 
-        return TransactionManager.get().send(info.getId(), message, target);
+        return TransactionManager.get().sendSingle(command, target);
     }
 
     protected boolean c_processGetCoordinatorList(TransactionInfo info, String from) {
@@ -1378,7 +1821,7 @@ public class Network extends PlayPen {
         return c_sendCoordinatorListResponse(from, info.getId());
     }
 
-    protected boolean c_sendCoordinatorListResponse(String target, String tid) {Commands.C_CoordinatorListResponse.Builder responseBuilder = Commands.C_CoordinatorListResponse.newBuilder();
+    protected boolean c_sendCoordinatorListResponse(String target, long tid) {Commands.C_CoordinatorListResponse.Builder responseBuilder = Commands.C_CoordinatorListResponse.newBuilder();
         TransactionInfo info = TransactionManager.get().getTransaction(tid);
         if(info == null) {
             log.error("Unable to send C_COORDINATOR_LIST_RESPONSE with invalid transaction " + tid);
@@ -1389,19 +1832,22 @@ public class Network extends PlayPen {
             if(!coord.isEnabled())
                 continue;
 
+            CoordinatorState state = coord.getState();
             Coordinator.LocalCoordinator.Builder coordBuilder = Coordinator.LocalCoordinator.newBuilder()
                     .setUuid(coord.getUuid())
                     .setEnabled(coord.isEnabled())
-                    .addAllAttributes(coord.getAttributes());
+                    .addAllAttributes(state.getAttributes())
+                    .setProvisionQueued(coord.getProvisionQueued())
+                    .setProvisionSaturated(coord.isProvisionSaturated());
 
             if(coord.getName() != null)
                 coordBuilder.setName(coord.getName());
 
-            for(Map.Entry<String, Integer> entry : coord.getResources().entrySet()) {
+            for(Map.Entry<String, Integer> entry : state.getResources().entrySet()) {
                 coordBuilder.addResources(Coordinator.Resource.newBuilder().setName(entry.getKey()).setValue(entry.getValue()).build());
             }
 
-            for(Server server : coord.getServers().values()) {
+            for(Server server : state.getServers().values()) {
                 if(!server.isActive())
                     continue;
 
@@ -1480,7 +1926,133 @@ public class Network extends PlayPen {
         }
     }
 
-    protected boolean c_sendProvisionResponseFailure(String target, String tid) {
+    protected boolean c_processProvisionBatch(Commands.C_ProvisionBatch request, TransactionInfo info, String from) {
+        log.info("Attempting batch provision operation (C_PROVISION_BATCH)");
+
+        // count is unsigned and comes straight from the client, so check it before allocating anything for it
+        long total = request.getInstancesCount() + (request.getCount() & 0xFFFFFFFFL);
+        if(total <= 0 || total > maxProvisionBatch) {
+            log.error("Rejecting C_PROVISION_BATCH of " + total + " servers (maximum is " + maxProvisionBatch + ")");
+            c_sendProvisionBatchFailure(from, info.getId(), "a batch must have between 1 and " + maxProvisionBatch + " servers");
+            return false;
+        }
+
+        P3Package p3 = packageManager.resolve(request.getP3().getId(), request.getP3().getVersion());
+        if(p3 == null) {
+            log.error("Unknown package for C_PROVISION_BATCH " + request.getP3().getId() + " at " + request.getP3().getVersion());
+        }
+
+        Map<String, String> shared = new HashMap<>();
+        for(Coordinator.Property prop : request.getPropertiesList()) {
+            shared.put(prop.getName(), prop.getValue());
+        }
+
+        List<ProvisionRequest> requests = new ArrayList<>((int) total);
+        for(Commands.C_ProvisionInstance instance : request.getInstancesList()) {
+            ProvisionRequest provisionRequest = new ProvisionRequest();
+            provisionRequest.setServerName(instance.hasServerName() ? instance.getServerName() : null);
+            provisionRequest.getProperties().putAll(shared);
+            for(Coordinator.Property prop : instance.getPropertiesList()) {
+                provisionRequest.getProperties().put(prop.getName(), prop.getValue());
+            }
+
+            requests.add(provisionRequest);
+        }
+
+        for(int i = 0; i < request.getCount(); ++i) {
+            ProvisionRequest provisionRequest = new ProvisionRequest();
+            provisionRequest.getProperties().putAll(shared);
+            requests.add(provisionRequest);
+        }
+
+        List<ProvisionResult> results;
+        if(p3 == null) {
+            results = Arrays.asList(new ProvisionResult[requests.size()]);
+        }
+        else {
+            log.info("Attempting batch provision at client's request of " + requests.size() + " servers of " + p3.getId() + " at " + p3.getVersion());
+            results = provisionBatch(p3, requests, request.hasCoordinator() ? request.getCoordinator() : null);
+        }
+
+        int succeeded = 0;
+        for(ProvisionResult result : results) {
+            if(result != null)
+                ++succeeded;
+        }
+
+        log.info("Batch provision request placed " + succeeded + " of " + requests.size() + " servers");
+        return c_sendProvisionBatchResponse(from, info.getId(), requests, results) && succeeded == requests.size();
+    }
+
+    protected boolean c_sendProvisionBatchFailure(String target, long tid, String error) {
+        TransactionInfo info = TransactionManager.get().getTransaction(tid);
+        if(info == null) {
+            log.error("Cannot send C_PROVISION_BATCH_RESPONSE with invalid transaction " + tid);
+            return false;
+        }
+
+        Commands.C_ProvisionBatchResponse response = Commands.C_ProvisionBatchResponse.newBuilder()
+                .setError(error)
+                .build();
+
+        Commands.BaseCommand command = Commands.BaseCommand.newBuilder()
+                .setType(Commands.BaseCommand.CommandType.C_PROVISION_BATCH_RESPONSE)
+                .setCProvisionBatchResponse(response)
+                .build();
+
+        Protocol.Transaction message = TransactionManager.get()
+                .build(tid, Protocol.Transaction.Mode.COMPLETE, command);
+        if(message == null) {
+            log.error("Unable to build transaction for client provision batch response (failure)");
+            return false;
+        }
+
+        log.info("Sending C_PROVISION_BATCH_RESPONSE (failure)");
+
+        return TransactionManager.get().send(tid, message, target);
+    }
+
+    protected boolean c_sendProvisionBatchResponse(String target, long tid, List<ProvisionRequest> requests, List<ProvisionResult> results) {
+        TransactionInfo info = TransactionManager.get().getTransaction(tid);
+        if(info == null) {
+            log.error("Cannot send C_PROVISION_BATCH_RESPONSE with invalid transaction " + tid);
+            return false;
+        }
+
+        Commands.C_ProvisionBatchResponse.Builder response = Commands.C_ProvisionBatchResponse.newBuilder();
+        for(int i = 0; i < requests.size(); ++i) {
+            ProvisionResult result = results.get(i);
+            Commands.C_ProvisionBatchResult.Builder resultBuilder = Commands.C_ProvisionBatchResult.newBuilder()
+                    .setOk(result != null);
+            if(requests.get(i).getServerName() != null)
+                resultBuilder.setServerName(requests.get(i).getServerName());
+
+            if(result != null) {
+                resultBuilder.setCoordinatorId(result.getCoordinator());
+                resultBuilder.setServerId(result.getServer());
+            }
+
+            response.addResults(resultBuilder.build());
+        }
+
+        Commands.BaseCommand command = Commands.BaseCommand.newBuilder()
+                .setType(Commands.BaseCommand.CommandType.C_PROVISION_BATCH_RESPONSE)
+                .setCProvisionBatchResponse(response.build())
+                .build();
+
+        Protocol.Transaction message = TransactionManager.get()
+                .build(tid, Protocol.Transaction.Mode.COMPLETE, command);
+        if(message == null) {
+            log.error("Unable to build transaction for client provision batch response");
+            return false;
+        }
+
+        log.info("Sending C_PROVISION_BATCH_RESPONSE");
+
+        return TransactionManager.get().send(tid, message, target);
+    }
+
+    protected boolean c_sendProvisionResponseFailure(String target, long tid) {
         TransactionInfo info = TransactionManager.get().getTransaction(tid);
         if(info == null) {
             log.error("Cannot send C_PROVISION_RESPONSE with invalid transaction " + tid);
@@ -1508,7 +2080,7 @@ public class Network extends PlayPen {
         return TransactionManager.get().send(tid, message, target);
     }
 
-    protected boolean c_sendProvisionResponse(String target, String tid, String coordinator, String server) {
+    protected boolean c_sendProvisionResponse(String target, long tid, String coordinator, String server) {
         TransactionInfo info = TransactionManager.get().getTransaction(tid);
         if(info == null) {
             log.error("Cannot send C_PROVISION_RESPONSE with invalid transaction " + tid);
@@ -1725,6 +2297,24 @@ public class Network extends PlayPen {
         return TransactionManager.get().send(info.getId(), message, coord.getUuid());
     }
 
+    /**
+     * Forwards a batch of console output to a client as is.
+     */
+    protected boolean c_sendConsoleMessageBatch(String target, Commands.ConsoleMessageBatch batch) {
+        LocalCoordinator coord = getCoordinator(target);
+        if(coord == null) {
+            log.error("Cannot send C_CONSOLE_MESSAGE_BATCH to invalid coordinator " + target);
+            return false;
+        }
+
+        Commands.BaseCommand command = Commands.BaseCommand.newBuilder()
+                .setType(Commands.BaseCommand.CommandType.C_CONSOLE_MESSAGE_BATCH)
+                .setCConsoleMessageBatch(batch)
+                .build();
+
+        return TransactionManager.get().sendSingle(command, coord.getUuid());
+    }
+
     protected boolean c_sendConsoleMessage(String target, String consoleMessage, String consoleId) {
         LocalCoordinator coord = getCoordinator(target);
         if(coord == null) {
@@ -1742,17 +2332,7 @@ public class Network extends PlayPen {
                 .setCConsoleMessage(cm)
                 .build();
 
-        TransactionInfo info = TransactionManager.get().begin();
-
-        Protocol.Transaction message = TransactionManager.get()
-                .build(info.getId(), Protocol.Transaction.Mode.SINGLE, command);
-        if(message == null) {
-            log.error("Unable to create transaction for C_CONSOLE_MESSAGE");
-            TransactionManager.get().cancel(info.getId());
-            return false;
-        }
-
-        return TransactionManager.get().send(info.getId(), message, coord.getUuid());
+        return TransactionManager.get().sendSingle(command, coord.getUuid());
     }
 
     protected boolean c_sendDetachConsole(String target, String consoleId, boolean useServerId) {
@@ -1767,17 +2347,7 @@ public class Network extends PlayPen {
                 .setCConsoleDetached(Commands.C_ConsoleDetached.newBuilder().setConsoleId(consoleId).setUseServerId(useServerId).build())
                 .build();
 
-        TransactionInfo info = TransactionManager.get().begin();
-
-        Protocol.Transaction message = TransactionManager.get()
-                .build(info.getId(), Protocol.Transaction.Mode.SINGLE, command);
-        if(message == null) {
-            log.error("Unable to create transaction for C_DETACH_CONSOLE");
-            TransactionManager.get().cancel(info.getId());
-            return false;
-        }
-
-        return TransactionManager.get().send(info.getId(), message, coord.getUuid());
+        return TransactionManager.get().sendSingle(command, coord.getUuid());
     }
 
     protected boolean c_processDetachConsole(Commands.C_DetachConsole command, TransactionInfo info, String from) {
@@ -1839,7 +2409,8 @@ public class Network extends PlayPen {
         // checksum
         String checksum = null;
         try {
-            checksum = AuthUtils.createPackageChecksum(tmpDest.toString());
+            checksum = AuthUtils.createPackageChecksum(tmpDest.toString(),
+                    ChecksumAlgorithm.forChecksum(command.getData().getChecksum()));
         } catch (IOException e) {
             log.error("Unable to generate checksum from downloaded package at " + tmpDest, e);
             c_sendAck("Unable to generate checksum from downloaded package at " + tmpDest, from);
@@ -1867,8 +2438,12 @@ public class Network extends PlayPen {
         p3info.setId(command.getData().getMeta().getId());
         p3info.setVersion(command.getData().getMeta().getVersion());
 
+        // the package was just verified against this checksum, so it never has to be hashed again
+        checksumManifest.put(p3info, trueDest.toFile(), checksum);
+        packageManager.recordChecksum(trueDest.toFile(), checksum);
+
         log.info("Expiring cache for package " + p3info.getId() + " (" + p3info.getVersion() + ")");
-        getPackageManager().getPackageCache().remove(p3info);
+        getPackageManager().expirePackage(p3info);
 
         c_sendAck("Successfully received package " + p3info.getId() + " (" + p3info.getVersion() + ")", from);
 
@@ -1876,144 +2451,158 @@ public class Network extends PlayPen {
     }
 
     protected boolean c_processUploadSplitPackage(Commands.C_UploadSplitPackage command, TransactionInfo info, String from) {
-        Path trueDest = Paths.get(
-                Bootstrap.getHomeDir().getPath(),
-                "packages",
-                command.getData().getMeta().getId() + "_" + command.getData().getMeta().getVersion() + ".p3");
-
         P3.SplitPackageData data = command.getData();
         P3Package.P3PackageInfo p3info = new P3Package.P3PackageInfo();
         p3info.setId(data.getMeta().getId());
         p3info.setVersion(data.getMeta().getVersion());
 
         if (data.getEndOfFile()) {
-            log.info("Received end of file for package " + data.getMeta().getId() + " (" + data.getMeta().getVersion() + ")");
+            return c_finishUploadSession(p3info, data, from);
+        }
 
-            synchronized(chunkLock) {
-                if (!packageChunkLocks.containsKey(p3info)) {
-                    packageChunkLocks.put(p3info, new Semaphore(0));
-                }
-            }
+        if (!data.hasData()) {
+            return c_beginUploadSession(p3info, data, info, from);
+        }
 
-            try {
-                if (!packageChunkLocks.get(p3info).tryAcquire(data.getChunkCount(), 340, TimeUnit.SECONDS)) {
-                    log.error("Timed out waiting for chunk download to finish");
-                    c_sendAck("Timed out waiting for chunk upload to finish", from);
-                    return false;
-                }
-            } catch (InterruptedException e) {
-                log.error("Interrupted while waiting for chunk download to finish", e);
-                c_sendAck("Interrupted while waiting for chunk upload to finish", from);
-                return false;
-            }
-            finally {
-                packageChunkLocks.remove(p3info);
+        UploadSession session = uploadSessions.get(p3info);
+        if (session == null) {
+            log.error("Received chunk #" + data.getChunkId() + " for unknown upload of " + p3info.getId() + " (" + p3info.getVersion() + ")");
+            return false;
+        }
+
+        return session.writeChunk(data.getChunkId(), data.getData().asReadOnlyByteBuffer());
+    }
+
+    protected boolean c_beginUploadSession(P3Package.P3PackageInfo p3info, P3.SplitPackageData data, TransactionInfo info, String from) {
+        long now = System.currentTimeMillis();
+        Iterator<UploadSession> itr = uploadSessions.values().iterator();
+        while (itr.hasNext()) {
+            UploadSession session = itr.next();
+            if (now - session.getLastActivity() > UPLOAD_SESSION_TIMEOUT) {
+                log.info("Expiring abandoned upload of " + session.getId() + " (" + session.getVersion() + ")");
+                itr.remove();
+                session.delete();
             }
+        }
+
+        if (data.getChunkSize() <= 0 || data.getChunkSize() % AuthUtils.PACKAGE_CHECKSUM_LEAF_SIZE != 0) {
+            log.error("Invalid chunk size " + data.getChunkSize() + " for upload of " + p3info.getId() + " (" + p3info.getVersion() + ")");
+            return c_sendUploadStatus(false, null, info.getId(), from);
+        }
 
-            // merge all chunks
-            log.info("Merging chunks...");
+        UploadSession session = uploadSessions.get(p3info);
+        if (session != null && session.matches(data.getChecksum(), data.getFileSize(), data.getChunkSize())) {
+            log.info("Resuming upload of " + p3info.getId() + " (" + p3info.getVersion() + "), "
+                    + session.getMissingChunkCount() + " of " + session.getChunkCount() + " chunks missing");
+        }
+        else {
+            if (session != null) {
+                log.info("Discarding previous upload of " + p3info.getId() + " (" + p3info.getVersion() + ")");
+                uploadSessions.remove(p3info);
+                session.delete();
+            }
 
             Path tmpDest = Paths.get(
                     Bootstrap.getHomeDir().getPath(),
                     "temp",
                     UUID.randomUUID() + ".p3");
-            try (FileChannel channel = FileChannel.open(tmpDest, StandardOpenOption.WRITE, StandardOpenOption.CREATE_NEW)) {
-                for (int i = 0; i < data.getChunkCount(); ++i) {
-                    Path oldFile = Paths.get(
-                            Bootstrap.getHomeDir().getPath(),
-                            "temp",
-                            "split-" + i + "-" + info.getId() + ".p3"
-                    );
-
-                    try (FileChannel chunkChannel = FileChannel.open(oldFile, StandardOpenOption.READ,
-                            StandardOpenOption.DELETE_ON_CLOSE)) {
-                        long currentFilePos = 0;
-                        long sz = chunkChannel.size();
-                        while (currentFilePos < sz) {
-                            long remain = sz - currentFilePos;
-                            long bytesCopied = chunkChannel.transferTo(currentFilePos, remain, channel);
-
-                            if (bytesCopied == 0) {
-                                break;
-                            }
-
-                            currentFilePos += bytesCopied;
-                        }
-                    }
-                }
-            }
-            catch(IOException e) {
-                log.error("Unable to write package chunks to " + tmpDest, e);
-                c_sendAck("Unable to write package chunks", from);
-                return false;
-            }
-
-            log.info("Merge finished.");
 
-            // checksum
-            String checksum = null;
             try {
-                checksum = AuthUtils.createPackageChecksum(tmpDest.toString());
-            } catch (IOException e) {
-                log.error("Unable to generate checksum from downloaded package at " + tmpDest, e);
-                c_sendAck("Unable to generate checksum from package", from);
-                return false;
+                session = new UploadSession(p3info.getId(), p3info.getVersion(), data.getChecksum(), data.getFileSize(),
+                        data.getChunkSize(), tmpDest);
             }
-
-            if (!checksum.equals(data.getChecksum())) {
-                log.error("Checksum mismatch! Expected: " + data.getChecksum() + ", got: " + checksum);
-                c_sendAck("Checksum mismatch!", from);
-                return false;
+            catch(IOException e) {
+                log.error("Unable to create upload at " + tmpDest, e);
+                return c_sendUploadStatus(false, null, info.getId(), from);
             }
 
-            log.info("Moving package " + data.getMeta().getId() +  " at " + data.getMeta().getVersion() + " to repository");
+            log.info("Starting upload of " + p3info.getId() + " (" + p3info.getVersion() + "), "
+                    + session.getChunkCount() + " chunks");
+            uploadSessions.put(p3info, session);
+        }
 
-            try {
-                if (trueDest.toFile().exists())
-                    Files.delete(trueDest);
+        return c_sendUploadStatus(true, session.getReceivedChunks(), info.getId(), from);
+    }
 
-                Files.move(tmpDest, trueDest);
-            }
-            catch(IOException e) {
-                log.error("Cannot move package to " + trueDest, e);
-                c_sendAck("Unable to move package to final location", from);
-                return false;
-            }
+    protected boolean c_finishUploadSession(P3Package.P3PackageInfo p3info, P3.SplitPackageData data, String from) {
+        log.info("Received end of file for package " + p3info.getId() + " (" + p3info.getVersion() + ")");
+
+        UploadSession session = uploadSessions.get(p3info);
+        if (session == null) {
+            log.error("Received end of file for unknown upload of " + p3info.getId() + " (" + p3info.getVersion() + ")");
+            c_sendAck("Unknown upload", from);
+            return false;
+        }
 
-            log.info("Expiring cache for package " + p3info.getId() + " (" + p3info.getVersion() + ")");
-            getPackageManager().getPackageCache().remove(p3info);
+        if (!session.isComplete()) {
+            // keep the session around so the upload can be resumed
+            log.error("Upload of " + p3info.getId() + " (" + p3info.getVersion() + ") is missing "
+                    + session.getMissingChunkCount() + " chunks");
+            c_sendAck("Upload is missing " + session.getMissingChunkCount() + " chunks, upload again to resume", from);
+            return false;
+        }
 
-            c_sendAck("Successfully received package " + p3info.getId() + " (" + p3info.getVersion() + ")", from);
+        uploadSessions.remove(p3info, session);
+        session.close();
 
-            return true;
+        String checksum = session.getReceivedChecksum();
+        if (!session.getChecksum().equals(checksum) || !checksum.equals(data.getChecksum())) {
+            log.error("Checksum mismatch! Expected: " + data.getChecksum() + ", got: " + checksum);
+            session.delete();
+            c_sendAck("Checksum mismatch!", from);
+            return false;
         }
 
-        Path tmpDest = Paths.get(
+        Path trueDest = Paths.get(
                 Bootstrap.getHomeDir().getPath(),
-                "temp",
-                "split-" + data.getChunkId() + "-" + info.getId() + ".p3");
+                "packages",
+                p3info.getId() + "_" + p3info.getVersion() + ".p3");
 
-        // append data
-        try (OutputStream output = Files.newOutputStream(tmpDest, StandardOpenOption.CREATE_NEW)) {
-            command.getData().getData().writeTo(output);
+        log.info("Moving package " + p3info.getId() +  " at " + p3info.getVersion() + " to repository");
+
+        try {
+            Files.move(session.getPath(), trueDest, StandardCopyOption.REPLACE_EXISTING);
         }
         catch(IOException e) {
-            log.error("Unable to write package chunk to " + tmpDest, e);
-            c_sendAck("Unable to write package chunk", from);
+            log.error("Cannot move package to " + trueDest, e);
+            session.delete();
+            c_sendAck("Unable to move package to final location", from);
             return false;
         }
 
-        synchronized(chunkLock) {
-            if (!packageChunkLocks.containsKey(p3info)) {
-                packageChunkLocks.put(p3info, new Semaphore(0));
-            }
-        }
+        checksumManifest.put(p3info, trueDest.toFile(), checksum);
+        packageManager.recordChecksum(trueDest.toFile(), checksum);
+
+        log.info("Expiring cache for package " + p3info.getId() + " (" + p3info.getVersion() + ")");
+        getPackageManager().expirePackage(p3info);
 
-        packageChunkLocks.get(p3info).release();
+        c_sendAck("Successfully received package " + p3info.getId() + " (" + p3info.getVersion() + ")", from);
 
         return true;
     }
 
+    protected boolean c_sendUploadStatus(boolean ok, byte[] receivedChunks, long tid, String target) {
+        Commands.C_UploadStatus.Builder status = Commands.C_UploadStatus.newBuilder()
+                .setOk(ok);
+
+        if (receivedChunks != null)
+            status.setReceivedChunks(ByteString.copyFrom(receivedChunks));
+
+        Commands.BaseCommand command = Commands.BaseCommand.newBuilder()
+                .setType(Commands.BaseCommand.CommandType.C_UPLOAD_STATUS)
+                .setCUploadStatus(status)
+                .build();
+
+        Protocol.Transaction message = TransactionManager.get()
+                .build(tid, ok ? Protocol.Transaction.Mode.CONTINUE : Protocol.Transaction.Mode.COMPLETE, command);
+        if(message == null) {
+            log.error("Unable to build transaction for C_UPLOAD_STATUS");
+            return false;
+        }
+
+        return TransactionManager.get().send(tid, message, target);
+    }
+
     protected boolean c_sendAck(String result, String target) {
         LocalCoordinator coord = getCoordinator(target);
         if(coord == null) {
@@ -2030,23 +2619,25 @@ public class Network extends PlayPen {
                 .setCAck(ack)
                 .build();
 
-        TransactionInfo info = TransactionManager.get().begin();
+        return TransactionManager.get().sendSingle(command, coord.getUuid());
+    }
 
-        Protocol.Transaction message = TransactionManager.get()
-                .build(info.getId(), Protocol.Transaction.Mode.SINGLE, command);
-        if(message == null) {
-            log.error("Unable to create transaction for C_ACK");
-            TransactionManager.get().cancel(info.getId());
+    protected boolean sendResync(String target) {
+        LocalCoordinator coord = getCoordinator(target);
+        if(coord == null) {
+            log.error("Cannot send RESYNC to invalid coordinator " + target);
             return false;
         }
 
-        return TransactionManager.get().send(info.getId(), message, coord.getUuid());
-    }
+        Commands.BaseCommand command = Commands.BaseCommand.newBuilder()
+                .setType(Commands.BaseCommand.CommandType.RESYNC)
+                .build();
 
-    protected boolean c_sendAccessDenied(String result, String tid, String target) {
-        if (tid == null || tid.isEmpty())
-            tid = "single";
+        log.info("Requesting full SYNC from " + target);
+        return TransactionManager.get().sendSingle(command, coord.getUuid());
+    }
 
+    protected boolean c_sendAccessDenied(String result, long tid, String target) {
         LocalCoordinator coord = getCoordinator(target);
         if(coord == null) {
             log.error("Cannot send C_ACCESS_DENIED to invalid coordinator " + target);
@@ -2063,17 +2654,7 @@ public class Network extends PlayPen {
                 .setCAccessDenied(ad)
                 .build();
 
-        TransactionInfo info = TransactionManager.get().begin();
-
-        Protocol.Transaction message = TransactionManager.get()
-                .build(info.getId(), Protocol.Transaction.Mode.SINGLE, command);
-        if(message == null) {
-            log.error("Unable to create transaction for C_ACCESS_DENIED");
-            TransactionManager.get().cancel(info.getId());
-            return false;
-        }
-
-        return TransactionManager.get().send(info.getId(), message, coord.getUuid());
+        return TransactionManager.get().sendSingle(command, coord.getUuid());
     }
 
     protected boolean c_processRequestPackageList(TransactionInfo info, String from) {
@@ -2081,7 +2662,7 @@ public class Network extends PlayPen {
         return c_sendPackageList(from, info.getId());
     }
 
-    protected boolean c_sendPackageList(String target, String tid) {
+    protected boolean c_sendPackageList(String target, long tid) {
         TransactionInfo info = TransactionManager.get().getTransaction(tid);
         if(info == null) {
             log.error("Unable to send C_COORDINATOR_LIST_RESPONSE with invalid transaction " + tid);
@@ -0,0 +1,206 @@
+package io.playpen.core.coordinator.network;
+
+import io.playpen.core.p3.P3Package;
+import io.playpen.core.p3.PackageException;
+import io.playpen.core.p3.PackageManager;
+import io.playpen.core.utils.AuthUtils;
+import io.playpen.core.utils.ChecksumAlgorithm;
+import lombok.extern.log4j.Log4j2;
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Checksums of the packages in the repository, kept in a manifest next to it. Checksums are calculated once, when a
+ * package is uploaded or first indexed, so checksum requests are answered from memory without resolving or hashing
+ * the package.
+ *
+ * Each checksum is recorded along with the size and modification time of its file, and is ignored once the file has
+ * changed (e.g. because it was replaced by hand).
+ */
+@Log4j2
+public class PackageChecksumManifest {
+    private static final int MANIFEST_VERSION = 1;
+
+    private final File manifestFile;
+
+    private final Map<P3Package.P3PackageInfo, Entry> entries = new ConcurrentHashMap<>();
+
+    public PackageChecksumManifest(File manifestFile) {
+        this.manifestFile = manifestFile;
+    }
+
+    /**
+     * Returns the checksum of a package, or null if it isn't known or the package file has changed since.
+     */
+    public String get(P3Package.P3PackageInfo info) {
+        Entry entry = entries.get(info);
+        if(entry == null || !entry.isCurrent())
+            return null;
+
+        return entry.checksum;
+    }
+
+    /**
+     * Records the checksum of a package file.
+     */
+    public void put(P3Package.P3PackageInfo info, File file, String checksum) {
+        record(info, file, checksum);
+        save();
+    }
+
+    /**
+     * Gives a resolved package its checksum from the manifest, or calculates and records it if it isn't known yet.
+     */
+    public void fill(P3Package p3) throws PackageException {
+        P3Package.P3PackageInfo info = new P3Package.P3PackageInfo();
+        info.setId(p3.getId());
+        info.setVersion(p3.getVersion());
+
+        String checksum = get(info);
+        if(checksum != null) {
+            p3.setChecksum(checksum);
+            return;
+        }
+
+        p3.calculateChecksum(AuthUtils.getPackageChecksumAlgorithm());
+        put(info, new File(p3.getLocalPath()), p3.getChecksum());
+    }
+
+    /**
+     * Calculates the checksum of every package that doesn't have one yet. Returns the number of checksums calculated.
+     */
+    public int index(PackageManager pm) {
+        long start = System.currentTimeMillis();
+        int count = 0;
+        for(P3Package.P3PackageInfo info : pm.getPackageList()) {
+            if(get(info) != null)
+                continue;
+
+            P3Package p3 = pm.resolve(info.getId(), info.getVersion(), false);
+            if(p3 == null) {
+                log.warn("Unable to resolve " + info.getId() + " at " + info.getVersion() + " for checksum indexing");
+                continue;
+            }
+
+            try {
+                p3.calculateChecksum(AuthUtils.getPackageChecksumAlgorithm());
+            }
+            catch(PackageException e) {
+                log.warn("Unable to calculate checksum of " + info.getId() + " at " + info.getVersion(), e);
+                continue;
+            }
+
+            record(info, new File(p3.getLocalPath()), p3.getChecksum());
+            ++count;
+        }
+
+        if(count > 0) {
+            save();
+            log.info("Calculated " + count + " package checksums in " + (System.currentTimeMillis() - start) + "ms");
+        }
+
+        return count;
+    }
+
+    public synchronized void load() {
+        entries.clear();
+        if(!manifestFile.isFile())
+            return;
+
+        try {
+            JSONObject json = new JSONObject(new String(Files.readAllBytes(manifestFile.toPath()), StandardCharsets.UTF_8));
+            if(json.optInt("version") != MANIFEST_VERSION) {
+                log.info("Ignoring package checksum manifest " + manifestFile.getPath() + " from a different version");
+                return;
+            }
+
+            JSONArray packages = json.getJSONArray("packages");
+            for(int i = 0; i < packages.length(); ++i) {
+                JSONObject obj = packages.getJSONObject(i);
+                P3Package.P3PackageInfo info = new P3Package.P3PackageInfo();
+                info.setId(obj.getString("id"));
+                info.setVersion(obj.getString("version"));
+
+                Entry entry = new Entry(new File(obj.getString("file")), obj.getLong("size"), obj.getLong("modified"),
+                        obj.getString("checksum"));
+                if(entry.isCurrent())
+                    entries.put(info, entry);
+            }
+
+            log.info("Loaded package checksum manifest " + manifestFile.getPath() + " (" + entries.size() + " packages)");
+        }
+        catch(IOException | JSONException e) {
+            log.warn("Unable to read package checksum manifest " + manifestFile.getPath() + ", rebuilding it", e);
+            entries.clear();
+        }
+    }
+
+    private void record(P3Package.P3PackageInfo info, File file, String checksum) {
+        P3Package.P3PackageInfo key = new P3Package.P3PackageInfo();
+        key.setId(info.getId());
+        key.setVersion(info.getVersion());
+        entries.put(key, new Entry(file, file.length(), file.lastModified(), checksum));
+    }
+
+    private synchronized void save() {
+        JSONArray packages = new JSONArray();
+        for(Map.Entry<P3Package.P3PackageInfo, Entry> entry : entries.entrySet()) {
+            JSONObject obj = new JSONObject();
+            obj.put("id", entry.getKey().getId());
+            obj.put("version", entry.getKey().getVersion());
+            obj.put("file", entry.getValue().file.getPath());
+            obj.put("size", entry.getValue().size);
+            obj.put("modified", entry.getValue().modified);
+            obj.put("checksum", entry.getValue().checksum);
+            packages.put(obj);
+        }
+
+        JSONObject json = new JSONObject();
+        json.put("version", MANIFEST_VERSION);
+        json.put("packages", packages);
+
+        Path tmp = manifestFile.toPath().resolveSibling(manifestFile.getName() + ".tmp");
+        try {
+            Files.write(tmp, json.toString().getBytes(StandardCharsets.UTF_8));
+            Files.move(tmp, manifestFile.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        }
+        catch(IOException e) {
+            log.warn("Unable to save package checksum manifest " + manifestFile.getPath(), e);
+        }
+    }
+
+    private static class Entry {
+        private final File file;
+
+        private final long size;
+
+        private final long modified;
+
+        private final String checksum;
+
+        Entry(File file, long size, long modified, String checksum) {
+            this.file = file;
+            this.size = size;
+            this.modified = modified;
+            this.checksum = checksum;
+        }
+
+        /**
+         * True if the file hasn't changed and the checksum was made with the configured algorithm.
+         */
+        boolean isCurrent() {
+            return ChecksumAlgorithm.forChecksum(checksum) == AuthUtils.getPackageChecksumAlgorithm()
+                    && file.length() == size && file.lastModified() == modified;
+        }
+    }
+}
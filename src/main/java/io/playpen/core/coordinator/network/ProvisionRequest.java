@@ -0,0 +1,16 @@
+package io.playpen.core.coordinator.network;
+
+import lombok.Data;
+
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * One server of a batch provision (see Network.provisionBatch()).
+ */
+@Data
+public class ProvisionRequest {
+    private String serverName;
+
+    private Map<String, String> properties = new HashMap<>();
+}
@@ -0,0 +1,147 @@
+package io.playpen.core.coordinator.network;
+
+import io.playpen.core.utils.ChecksumAlgorithm;
+import io.playpen.core.utils.PackageChecksumBuilder;
+import lombok.Getter;
+import lombok.extern.log4j.Log4j2;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.BitSet;
+
+/**
+ * A package upload from a client. Chunks are written straight to their offset in a preallocated file and checksummed
+ * as they arrive, and the chunks received so far are tracked so an interrupted upload can be resumed later by sending
+ * only the missing chunks.
+ */
+@Log4j2
+public class UploadSession {
+    @Getter
+    private final String id;
+
+    @Getter
+    private final String version;
+
+    @Getter
+    private final String checksum;
+
+    @Getter
+    private final long fileSize;
+
+    @Getter
+    private final int chunkSize;
+
+    @Getter
+    private final int chunkCount;
+
+    @Getter
+    private final Path path;
+
+    private final FileChannel channel;
+
+    private final BitSet receivedChunks;
+
+    private final PackageChecksumBuilder checksumBuilder;
+
+    @Getter
+    private volatile long lastActivity = System.currentTimeMillis();
+
+    public UploadSession(String id, String version, String checksum, long fileSize, int chunkSize, Path path) throws IOException {
+        this.id = id;
+        this.version = version;
+        this.checksum = checksum;
+        this.fileSize = fileSize;
+        this.chunkSize = chunkSize;
+        this.path = path;
+
+        chunkCount = (int) ((fileSize + chunkSize - 1) / chunkSize);
+        receivedChunks = new BitSet(chunkCount);
+        checksumBuilder = new PackageChecksumBuilder(fileSize, chunkSize, ChecksumAlgorithm.forChecksum(checksum));
+
+        channel = FileChannel.open(path, StandardOpenOption.READ, StandardOpenOption.WRITE, StandardOpenOption.CREATE_NEW);
+        if (fileSize > 0) {
+            // reserve the whole file up front so chunks can be written straight to their offset
+            channel.write(ByteBuffer.allocate(1), fileSize - 1);
+        }
+    }
+
+    /**
+     * Returns true if this session is for the same upload, meaning it can be resumed.
+     */
+    public boolean matches(String checksum, long fileSize, int chunkSize) {
+        return this.checksum.equals(checksum) && this.fileSize == fileSize && this.chunkSize == chunkSize;
+    }
+
+    public synchronized boolean writeChunk(int chunkId, ByteBuffer data) {
+        lastActivity = System.currentTimeMillis();
+
+        long offset = (long) chunkId * chunkSize;
+        long expectedLength = Math.min(chunkSize, fileSize - offset);
+        if (chunkId < 0 || chunkId >= chunkCount || data.remaining() != expectedLength) {
+            log.error("Invalid chunk #" + chunkId + " (" + data.remaining() + " bytes) for upload of " + id + " at " + version);
+            return false;
+        }
+
+        if (receivedChunks.get(chunkId))
+            return true;
+
+        checksumBuilder.update(chunkId, data);
+
+        try {
+            ByteBuffer chunk = data.duplicate();
+            while (chunk.hasRemaining()) {
+                offset += channel.write(chunk, offset);
+            }
+        }
+        catch (IOException e) {
+            log.error("Unable to write chunk #" + chunkId + " to " + path, e);
+            return false;
+        }
+
+        receivedChunks.set(chunkId);
+        return true;
+    }
+
+    public synchronized boolean isComplete() {
+        return receivedChunks.cardinality() == chunkCount;
+    }
+
+    public synchronized int getMissingChunkCount() {
+        return chunkCount - receivedChunks.cardinality();
+    }
+
+    public synchronized byte[] getReceivedChunks() {
+        return receivedChunks.toByteArray();
+    }
+
+    /**
+     * Returns the checksum of the received data, or null if the upload is not complete.
+     */
+    public String getReceivedChecksum() {
+        return isComplete() ? checksumBuilder.getValue() : null;
+    }
+
+    public void close() {
+        try {
+            channel.close();
+        }
+        catch (IOException e) {
+            log.warn("Unable to close upload of " + id + " at " + version, e);
+        }
+    }
+
+    public void delete() {
+        close();
+
+        try {
+            Files.deleteIfExists(path);
+        }
+        catch (IOException e) {
+            log.warn("Unable to delete upload at " + path, e);
+        }
+    }
+}
@@ -0,0 +1,45 @@
+package io.playpen.core.coordinator.network.placement;
+
+import io.playpen.core.coordinator.network.LocalCoordinator;
+import io.playpen.core.coordinator.network.Server;
+import io.playpen.core.p3.P3Package;
+import org.json.JSONObject;
+
+import java.util.List;
+
+/**
+ * Picks the coordinator running the fewest servers of the same package, so instances of a package are spread over
+ * as many coordinators as possible. Ties go to the coordinator with the most free resources.
+ */
+public class AntiAffinityPlacementStrategy implements IPlacementStrategy {
+    @Override
+    public String getName() {
+        return "anti-affinity";
+    }
+
+    @Override
+    public LocalCoordinator select(P3Package p3, List<LocalCoordinator> coordinators, JSONObject config) {
+        LocalCoordinator best = null;
+        int bestCount = Integer.MAX_VALUE;
+        double bestNRU = Double.NEGATIVE_INFINITY;
+        for(LocalCoordinator coord : coordinators) {
+            int count = 0;
+            for(Server server : coord.getServers().values()) {
+                if(server.getP3() != null && p3.getId().equals(server.getP3().getId()))
+                    ++count;
+            }
+
+            double nru = coord.getNormalizedResourceUsage();
+            if(count > bestCount || (count == bestCount && nru <= bestNRU))
+                continue;
+
+            if(coord.canProvisionPackage(p3)) {
+                best = coord;
+                bestCount = count;
+                bestNRU = nru;
+            }
+        }
+
+        return best;
+    }
+}
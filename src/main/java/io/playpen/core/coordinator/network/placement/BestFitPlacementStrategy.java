@@ -0,0 +1,21 @@
+package io.playpen.core.coordinator.network.placement;
+
+import io.playpen.core.coordinator.network.LocalCoordinator;
+import io.playpen.core.p3.P3Package;
+import org.json.JSONObject;
+
+/**
+ * Bin packing: picks the coordinator with the least free resources that can still take the package, which keeps
+ * other coordinators free for large packages.
+ */
+public class BestFitPlacementStrategy extends ScoredPlacementStrategy {
+    @Override
+    public String getName() {
+        return "best-fit";
+    }
+
+    @Override
+    protected double score(LocalCoordinator coord, P3Package p3, JSONObject config) {
+        return -coord.getNormalizedResourceUsage();
+    }
+}
@@ -0,0 +1,24 @@
+package io.playpen.core.coordinator.network.placement;
+
+import io.playpen.core.coordinator.network.LocalCoordinator;
+import io.playpen.core.p3.P3Package;
+import org.json.JSONObject;
+
+import java.util.List;
+
+/**
+ * Chooses the coordinator a package is provisioned on. Strategies are registered with the network coordinator under
+ * their name and picked per package id or attribute in the "placement" section of network.json.
+ */
+public interface IPlacementStrategy {
+    String getName();
+
+    /**
+     * Returns the coordinator to provision the package on, or null if none of them can take it.
+     *
+     * @param coordinators every coordinator that is enabled and not restricted, not all of which can necessarily take
+     *                     the package (see LocalCoordinator.canProvisionPackage())
+     * @param config the placement rule that selected this strategy
+     */
+    LocalCoordinator select(P3Package p3, List<LocalCoordinator> coordinators, JSONObject config);
+}
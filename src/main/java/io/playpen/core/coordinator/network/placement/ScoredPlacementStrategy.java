@@ -0,0 +1,31 @@
+package io.playpen.core.coordinator.network.placement;
+
+import io.playpen.core.coordinator.network.LocalCoordinator;
+import io.playpen.core.p3.P3Package;
+import org.json.JSONObject;
+
+import java.util.List;
+
+/**
+ * Picks the coordinator with the highest score that can take the package. Scores are cheap to compute from the
+ * coordinator's resource ledger, so the (more expensive) provisioning check is only made for coordinators that would
+ * beat the best one found so far.
+ */
+public abstract class ScoredPlacementStrategy implements IPlacementStrategy {
+    protected abstract double score(LocalCoordinator coord, P3Package p3, JSONObject config);
+
+    @Override
+    public LocalCoordinator select(P3Package p3, List<LocalCoordinator> coordinators, JSONObject config) {
+        LocalCoordinator best = null;
+        double bestScore = Double.NEGATIVE_INFINITY;
+        for(LocalCoordinator coord : coordinators) {
+            double score = score(coord, p3, config);
+            if((best == null || score > bestScore) && coord.canProvisionPackage(p3)) {
+                best = coord;
+                bestScore = score;
+            }
+        }
+
+        return best;
+    }
+}
@@ -0,0 +1,21 @@
+package io.playpen.core.coordinator.network.placement;
+
+import io.playpen.core.coordinator.network.LocalCoordinator;
+import io.playpen.core.p3.P3Package;
+import org.json.JSONObject;
+
+/**
+ * Worst fit: picks the coordinator with the most free resources (the highest normalized resource usage). This is how
+ * coordinators have always been selected and is the default.
+ */
+public class SpreadPlacementStrategy extends ScoredPlacementStrategy {
+    @Override
+    public String getName() {
+        return "spread";
+    }
+
+    @Override
+    protected double score(LocalCoordinator coord, P3Package p3, JSONObject config) {
+        return coord.getNormalizedResourceUsage();
+    }
+}
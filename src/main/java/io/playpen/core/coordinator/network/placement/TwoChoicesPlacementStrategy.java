@@ -0,0 +1,54 @@
+package io.playpen.core.coordinator.network.placement;
+
+import io.playpen.core.coordinator.network.LocalCoordinator;
+import io.playpen.core.p3.P3Package;
+import org.json.JSONObject;
+
+import java.util.List;
+import java.util.concurrent.ThreadLocalRandom;
+
+/**
+ * Power of two choices: samples random coordinators until two that can take the package are found and picks the
+ * one with more free resources. The cost doesn't grow with the number of coordinators, while the load stays nearly
+ * as even as checking all of them. If sampling finds nothing, every coordinator is checked.
+ *
+ * <pre>
+ *   { "strategy": "two-choices", "choices": 2, "attempts": 8 }
+ * </pre>
+ */
+public class TwoChoicesPlacementStrategy implements IPlacementStrategy {
+    private final SpreadPlacementStrategy fallback = new SpreadPlacementStrategy();
+
+    @Override
+    public String getName() {
+        return "two-choices";
+    }
+
+    @Override
+    public LocalCoordinator select(P3Package p3, List<LocalCoordinator> coordinators, JSONObject config) {
+        if(coordinators.isEmpty())
+            return null;
+
+        int choices = Math.max(1, config.optInt("choices", 2));
+        int attempts = Math.max(choices, config.optInt("attempts", 8));
+
+        LocalCoordinator best = null;
+        double bestNRU = Double.NEGATIVE_INFINITY;
+        int found = 0;
+        ThreadLocalRandom random = ThreadLocalRandom.current();
+        for(int i = 0; i < attempts && found < choices; ++i) {
+            LocalCoordinator coord = coordinators.get(random.nextInt(coordinators.size()));
+            if(coord == best || !coord.canProvisionPackage(p3))
+                continue;
+
+            ++found;
+            double nru = coord.getNormalizedResourceUsage();
+            if(nru > bestNRU) {
+                best = coord;
+                bestNRU = nru;
+            }
+        }
+
+        return best != null ? best : fallback.select(p3, coordinators, config);
+    }
+}
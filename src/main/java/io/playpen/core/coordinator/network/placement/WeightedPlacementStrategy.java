@@ -0,0 +1,42 @@
+package io.playpen.core.coordinator.network.placement;
+
+import io.playpen.core.coordinator.ResourceLedger;
+import io.playpen.core.coordinator.network.LocalCoordinator;
+import io.playpen.core.p3.P3Package;
+import io.playpen.core.p3.ResourceIndex;
+import org.json.JSONObject;
+
+/**
+ * Scores coordinators by the free fraction of each resource, weighted per resource. Resources without a weight
+ * aren't considered. By default the coordinator with the highest score is picked, "pack": true picks the lowest.
+ *
+ * <pre>
+ *   { "strategy": "weighted", "weights": { "memory": 2.0, "slots": 1.0 }, "pack": false }
+ * </pre>
+ */
+public class WeightedPlacementStrategy extends ScoredPlacementStrategy {
+    @Override
+    public String getName() {
+        return "weighted";
+    }
+
+    @Override
+    protected double score(LocalCoordinator coord, P3Package p3, JSONObject config) {
+        JSONObject weights = config.optJSONObject("weights");
+        if(weights == null)
+            return 0.0;
+
+        ResourceLedger ledger = coord.getState().getLedger();
+        double score = 0.0;
+        for(String resource : weights.keySet()) {
+            int index = ResourceIndex.indexOf(resource);
+            int capacity = ledger.getCapacity(index);
+            if(capacity <= 0)
+                continue;
+
+            score += weights.optDouble(resource, 0.0) * ledger.getAvailable(index) / capacity;
+        }
+
+        return config.optBoolean("pack", false) ? -score : score;
+    }
+}
@@ -0,0 +1,124 @@
+package io.playpen.core.networking;
+
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import io.netty.channel.Channel;
+import lombok.extern.log4j.Log4j2;
+
+import java.util.Map;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Runs received messages on a bounded pool of worker threads instead of the netty event loop. Messages sharing a
+ * key (the sending coordinator's id) are always run one at a time and in the order they were received, while
+ * messages for different keys run in parallel.
+ *
+ * If more than queueLimit messages are waiting for a single key, reading from that key's channel is paused until
+ * the backlog has been worked down to half of the limit.
+ */
+@Log4j2
+public class MessageDispatcher {
+    /**
+     * Maximum number of messages to run for one key before giving other keys a turn on the worker thread.
+     */
+    private static final int BATCH_SIZE = 32;
+
+    private final ExecutorService executor;
+
+    private final int queueLimit;
+
+    private final Map<String, KeyQueue> queues = new ConcurrentHashMap<>();
+
+    public MessageDispatcher(String name, int threads, int queueLimit) {
+        this.queueLimit = queueLimit;
+
+        // each key is only ever queued once on the executor, so the executor's queue is bounded by the number of keys
+        executor = new ThreadPoolExecutor(threads, threads, 0L, TimeUnit.MILLISECONDS, new LinkedBlockingQueue<>(),
+                new ThreadFactoryBuilder().setNameFormat(name + "-dispatch-%d").setDaemon(true).build());
+    }
+
+    public void dispatch(String key, Channel channel, Runnable task) {
+        KeyQueue queue = queues.computeIfAbsent(key, k -> new KeyQueue(k));
+        queue.add(task, channel);
+    }
+
+    public void shutdown() {
+        executor.shutdownNow();
+        queues.clear();
+    }
+
+    private class KeyQueue implements Runnable {
+        private final String key;
+
+        private final Queue<Runnable> tasks = new ConcurrentLinkedQueue<>();
+
+        private final AtomicInteger size = new AtomicInteger();
+
+        private final AtomicBoolean scheduled = new AtomicBoolean(false);
+
+        private volatile Channel pausedChannel = null;
+
+        KeyQueue(String key) {
+            this.key = key;
+        }
+
+        void add(Runnable task, Channel channel) {
+            tasks.add(task);
+            if (size.incrementAndGet() > queueLimit && channel != null && channel.config().isAutoRead()) {
+                log.warn("Dispatch queue for " + key + " is over " + queueLimit + " messages, pausing reads");
+                pausedChannel = channel;
+                channel.config().setAutoRead(false);
+            }
+
+            schedule();
+        }
+
+        private void schedule() {
+            if (!scheduled.compareAndSet(false, true))
+                return;
+
+            try {
+                executor.execute(this);
+            }
+            catch (RejectedExecutionException e) {
+                // only happens on shutdown
+                scheduled.set(false);
+            }
+        }
+
+        @Override
+        public void run() {
+            Runnable task;
+            int count = 0;
+            while (count < BATCH_SIZE && (task = tasks.poll()) != null) {
+                size.decrementAndGet();
+                ++count;
+
+                try {
+                    task.run();
+                }
+                catch (Exception e) {
+                    log.error("Exception while dispatching message from " + key, e);
+                }
+            }
+
+            Channel channel = pausedChannel;
+            if (channel != null && size.get() <= queueLimit / 2) {
+                pausedChannel = null;
+                channel.config().setAutoRead(true);
+            }
+
+            scheduled.set(false);
+            if (!tasks.isEmpty())
+                schedule();
+        }
+    }
+}
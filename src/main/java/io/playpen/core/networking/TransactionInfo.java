@@ -1,13 +1,13 @@
 package io.playpen.core.networking;
 
+import io.netty.util.Timeout;
+import io.playpen.core.protocol.Commands;
 import io.playpen.core.protocol.Protocol;
 import lombok.Data;
 
-import java.util.concurrent.ScheduledFuture;
-
 @Data
 public class TransactionInfo {
-    private String id;
+    private long id;
 
     private String target = null;
 
@@ -15,7 +15,12 @@ public class TransactionInfo {
 
     private ITransactionListener handler = null;
 
-    private ScheduledFuture cancelTask = null;
+    /**
+     * Type of the command that started this transaction.
+     */
+    private Commands.BaseCommand.CommandType type = null;
+
+    private Timeout timeout = null;
 
     private boolean done = false;
 }
@@ -1,37 +1,136 @@
 package io.playpen.core.networking;
 
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import io.netty.util.HashedWheelTimer;
 import io.playpen.core.coordinator.PlayPen;
 import io.playpen.core.protocol.Commands;
 import io.playpen.core.protocol.Protocol;
 import lombok.extern.log4j.Log4j2;
+import org.json.JSONObject;
 
+import java.util.HashMap;
 import java.util.Map;
 import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
 
 @Log4j2
 public class TransactionManager {
     public static final long TRANSACTION_TIMEOUT = 340; // seconds
 
+    /**
+     * Id carried by messages sent with sendSingle(). Nothing can refer back to them, so they don't need a real id.
+     */
+    public static final long SINGLE_ID = 0;
+
     private static TransactionManager instance = new TransactionManager();
 
     public static TransactionManager get() {
         return instance;
     }
 
-    private Map<String, TransactionInfo> transactions = new ConcurrentHashMap<>();
+    private Map<Long, TransactionInfo> transactions = new ConcurrentHashMap<>();
+
+    /**
+     * Transaction timeouts only need to be roughly on time, so they all share one timer wheel with a one second tick
+     * instead of each scheduling a task on an executor.
+     */
+    private final HashedWheelTimer timer = new HashedWheelTimer(
+            new ThreadFactoryBuilder().setNameFormat("transaction-timeout-%d").setDaemon(true).build(),
+            1, TimeUnit.SECONDS);
+
+    private volatile long defaultTimeout = TRANSACTION_TIMEOUT;
+
+    /**
+     * Timeouts in seconds by the type of the command that starts a transaction. 0 means never.
+     */
+    private Map<Commands.BaseCommand.CommandType, Long> timeouts = new ConcurrentHashMap<>();
+
+    private final AtomicLong timeoutCount = new AtomicLong();
+
+    private Map<Commands.BaseCommand.CommandType, AtomicLong> timeoutCounts = new ConcurrentHashMap<>();
+
+    private TransactionManager() {
+        // package transfers can legitimately take much longer than everything else
+        timeouts.put(Commands.BaseCommand.CommandType.PACKAGE_REQUEST, 900L);
+        timeouts.put(Commands.BaseCommand.CommandType.C_UPLOAD_SPLIT_PACKAGE, 3600L);
+
+        // a provision may have to wait for a package transfer and in the provision queue before it is answered, and
+        // timing it out any earlier releases resources the server is about to use
+        timeouts.put(Commands.BaseCommand.CommandType.PROVISION, 1200L);
+        timeouts.put(Commands.BaseCommand.CommandType.PROVISION_BATCH, 1200L);
+    }
+
+    /**
+     * Reads timeouts (in seconds) from a coordinator's configuration. "default" applies to every command type
+     * without its own entry.
+     *
+     * <pre>
+     *   "transaction-timeouts": { "default": 340, "PACKAGE_REQUEST": 900 }
+     * </pre>
+     */
+    public void configureTimeouts(JSONObject config) {
+        if(config == null)
+            return;
+
+        for(String key : config.keySet()) {
+            if(key.startsWith("_"))
+                continue;
+
+            long seconds = config.optLong(key, -1);
+            if(seconds < 0) {
+                log.warn("Invalid transaction timeout for " + key + ", ignoring");
+                continue;
+            }
+
+            if(key.equals("default")) {
+                defaultTimeout = seconds;
+                continue;
+            }
+
+            try {
+                timeouts.put(Commands.BaseCommand.CommandType.valueOf(key), seconds);
+            }
+            catch(IllegalArgumentException e) {
+                log.warn("Unknown command type " + key + " in transaction timeouts, ignoring");
+            }
+        }
+    }
+
+    public long getTimeout(Commands.BaseCommand.CommandType type) {
+        Long timeout = type == null ? null : timeouts.get(type);
+        return timeout == null ? defaultTimeout : timeout;
+    }
+
+    /**
+     * Total number of transactions cancelled due to timeout.
+     */
+    public long getTimeoutCount() {
+        return timeoutCount.get();
+    }
 
-    private TransactionManager() {}
+    /**
+     * Number of transactions cancelled due to timeout, by the type of the command that started them.
+     */
+    public Map<Commands.BaseCommand.CommandType, Long> getTimeoutCounts() {
+        Map<Commands.BaseCommand.CommandType, Long> counts = new HashMap<>();
+        timeoutCounts.forEach((type, count) -> counts.put(type, count.get()));
+        return counts;
+    }
 
-    boolean isActive(String id) {
+    public int getActiveCount() {
+        return transactions.size();
+    }
+
+    boolean isActive(long id) {
         return transactions.containsKey(id);
     }
 
-    public TransactionInfo getTransaction(String id) {
+    public TransactionInfo getTransaction(long id) {
         return transactions.get(id);
     }
 
-    public Protocol.Transaction build(String id, Protocol.Transaction.Mode mode, Commands.BaseCommand command) {
+    public Protocol.Transaction build(long id, Protocol.Transaction.Mode mode, Commands.BaseCommand command) {
         TransactionInfo info = getTransaction(id);
         if(info == null) {
             log.error("Unable to build unknown transaction " + id);
@@ -49,30 +148,22 @@ public class TransactionManager {
         TransactionInfo info = new TransactionInfo();
 
         info.setId(PlayPen.get().generateId());
-        while(transactions.containsKey(info.getId()))
-            info.setId(PlayPen.get().generateId());
-
         transactions.put(info.getId(), info);
 
-        final String tid = info.getId();
-        if(PlayPen.get().getScheduler() != null) {
-            info.setCancelTask(PlayPen.get().getScheduler().schedule(() -> {
-                log.warn("Transaction " + tid + " has been cancelled due to timeout");
-                cancel(tid, true);
-            }, TRANSACTION_TIMEOUT, TimeUnit.SECONDS));
-        }
+        // rescheduled with the timeout of the command type once the first message is sent
+        scheduleTimeout(info, defaultTimeout);
 
         return info;
     }
 
-    public boolean send(String id, Protocol.Transaction message, String target) {
+    public boolean send(long id, Protocol.Transaction message, String target) {
         TransactionInfo info = getTransaction(id);
         if(info == null) {
             log.error("Cannot send unknown transaction " + id);
             return false;
         }
 
-        if(!info.getId().equals(message.getId())) {
+        if(info.getId() != message.getId()) {
             log.error("Message id does not match transaction id " + id);
             return false;
         }
@@ -80,6 +171,13 @@ public class TransactionManager {
         info.setTransaction(message);
         info.setTarget(target);
 
+        if(info.getType() == null) {
+            info.setType(message.getPayload().getType());
+            long timeout = getTimeout(info.getType());
+            if(timeout != defaultTimeout)
+                scheduleTimeout(info, timeout);
+        }
+
         if(info.getHandler() != null) {
             info.getHandler().onTransactionSend(this, info);
         }
@@ -91,11 +189,25 @@ public class TransactionManager {
         return PlayPen.get().send(message, info.getTarget());
     }
 
-    public boolean cancel(String id) {
+    /**
+     * Sends a one-way message. Unlike begin() and send(), this doesn't generate an id, track the message or schedule
+     * a timeout, so it is the cheap way to send anything that isn't part of a conversation.
+     */
+    public boolean sendSingle(Commands.BaseCommand command, String target) {
+        Protocol.Transaction message = Protocol.Transaction.newBuilder()
+                .setId(SINGLE_ID)
+                .setMode(Protocol.Transaction.Mode.SINGLE)
+                .setPayload(command)
+                .build();
+
+        return PlayPen.get().send(message, target);
+    }
+
+    public boolean cancel(long id) {
         return cancel(id, false);
     }
 
-    public boolean cancel(String id, boolean silentFail) {
+    public boolean cancel(long id, boolean silentFail) {
         TransactionInfo info = getTransaction(id);
         if(info == null) {
             if(!silentFail) log.error("Cannot cancel unknown transaction " + id);
@@ -106,8 +218,8 @@ public class TransactionManager {
             info.getHandler().onTransactionCancel(this, info);
         }
 
-        if(info.getCancelTask() != null && !info.getCancelTask().isDone()) {
-            info.getCancelTask().cancel(false);
+        if(info.getTimeout() != null) {
+            info.getTimeout().cancel();
         }
 
         info.setDone(true);
@@ -116,7 +228,7 @@ public class TransactionManager {
         return true;
     }
 
-    public boolean complete(String id) {
+    public boolean complete(long id) {
         TransactionInfo info = getTransaction(id);
         if(info == null) {
             log.error("Cannot complete unknown transaction " + id);
@@ -127,8 +239,8 @@ public class TransactionManager {
             info.getHandler().onTransactionComplete(this, info);
         }
 
-        if(info.getCancelTask() != null && !info.getCancelTask().isDone()) {
-            info.getCancelTask().cancel(false);
+        if(info.getTimeout() != null) {
+            info.getTimeout().cancel();
         }
 
         info.setDone(true);
@@ -149,11 +261,15 @@ public class TransactionManager {
                 info = new TransactionInfo();
                 info.setId(message.getId());
                 info.setTarget(from);
+                info.setType(message.getPayload().getType());
                 transactions.put(info.getId(), info);
+                scheduleTimeout(info, getTimeout(info.getType()));
                 break;
 
             case SINGLE:
                 info = new TransactionInfo();
+                info.setId(message.getId());
+                info.setTarget(from);
                 info.setDone(true);
                 break;
 
@@ -190,4 +306,31 @@ public class TransactionManager {
 
         PlayPen.get().process(message.getPayload(), info, from);
     }
+
+    private void scheduleTimeout(TransactionInfo info, long seconds) {
+        if(info.getTimeout() != null) {
+            info.getTimeout().cancel();
+            info.setTimeout(null);
+        }
+
+        if(seconds <= 0)
+            return;
+
+        final long tid = info.getId();
+        info.setTimeout(timer.newTimeout(timeout -> onTimeout(tid), seconds, TimeUnit.SECONDS));
+    }
+
+    private void onTimeout(long tid) {
+        TransactionInfo info = getTransaction(tid);
+        if(info == null)
+            return;
+
+        long count = timeoutCount.incrementAndGet();
+        if(info.getType() != null)
+            timeoutCounts.computeIfAbsent(info.getType(), k -> new AtomicLong()).incrementAndGet();
+
+        log.warn("Transaction " + tid + " (" + info.getType() + ") has been cancelled due to timeout, "
+                + count + " timeouts so far");
+        cancel(tid, true);
+    }
 }
@@ -0,0 +1,14 @@
+package io.playpen.core.networking.netty;
+
+import io.playpen.core.protocol.Protocol;
+import lombok.Data;
+
+/**
+ * A transaction along with the id of the coordinator whose key protects it on the wire.
+ */
+@Data
+public class AuthenticatedMessage {
+    private final String uuid;
+
+    private final Protocol.Transaction transaction;
+}
@@ -0,0 +1,320 @@
+package io.playpen.core.networking.netty;
+
+import com.google.protobuf.CodedInputStream;
+import com.google.protobuf.CodedOutputStream;
+import io.netty.buffer.ByteBuf;
+import io.netty.channel.ChannelHandlerContext;
+import io.netty.channel.ChannelPromise;
+import io.netty.handler.codec.EncoderException;
+import io.netty.handler.codec.MessageToMessageCodec;
+import io.playpen.core.Bootstrap;
+import io.playpen.core.coordinator.PlayPen;
+import io.playpen.core.protocol.Protocol;
+import io.playpen.core.utils.CryptoSession;
+import lombok.extern.log4j.Log4j2;
+
+import javax.crypto.AEADBadTagException;
+import javax.crypto.Cipher;
+import javax.crypto.spec.GCMParameterSpec;
+import javax.crypto.spec.SecretKeySpec;
+import java.nio.channels.ClosedChannelException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Queue;
+
+/**
+ * Encrypts and authenticates transactions with AES-GCM.
+ *
+ * When a connection opens, each side first sends a handshake frame with a random challenge:
+ * <pre>
+ *   byte    handshake magic
+ *   int     protocol version
+ *   byte[]  challenge ({@link CryptoSession#CHALLENGE_LENGTH} bytes)
+ * </pre>
+ * Transactions written before the other side's challenge has arrived are held back until it does. After that, every
+ * frame has this layout (after length framing):
+ * <pre>
+ *   byte    magic
+ *   int     protocol version
+ *   byte    uuid length, followed by the uuid
+ *   byte[]  connection salt ({@link CryptoSession#SALT_LENGTH} bytes)
+ *   long    nonce counter
+ *   byte[]  ciphertext of the serialized transaction, followed by the GCM tag
+ * </pre>
+ * Everything before the ciphertext is authenticated as additional data. Each side of a connection derives its key
+ * from its own random salt and the challenge of the other side, and counts its nonces up from zero, so nonces are
+ * never reused under the same key and frames recorded from one connection don't authenticate on another. The uuid and
+ * salt are pinned to the channel by the first frame that authenticates, and the connection is closed if either one
+ * changes after that. One instance of this codec exists per channel.
+ */
+@Log4j2
+public class AuthenticatedMessageCodec extends MessageToMessageCodec<ByteBuf, AuthenticatedMessage> {
+    private static final byte MAGIC = (byte) 0xA7;
+    private static final byte HANDSHAKE_MAGIC = (byte) 0xA8;
+    private static final String CIPHER_ALGORITHM = "AES/GCM/NoPadding";
+    private static final int TAG_LENGTH = 16;
+    private static final int NONCE_LENGTH = 12;
+
+    private byte[] challenge = null;
+    private byte[] peerChallenge = null;
+    private final Queue<PendingWrite> pendingWrites = new ArrayDeque<>();
+
+    private Cipher encryptCipher = null;
+    private String outboundUuid = null;
+    private byte[] outboundUuidBytes = null;
+    private byte[] outboundSalt = null;
+    private SecretKeySpec outboundKey = null;
+    private long outboundCounter = 0;
+
+    private Cipher decryptCipher = null;
+    private String inboundUuid = null;
+    private byte[] inboundSalt = null;
+    private SecretKeySpec inboundKey = null;
+    private long inboundCounter = -1;
+
+    @Override
+    public void channelActive(ChannelHandlerContext ctx) throws Exception {
+        challenge = CryptoSession.createChallenge();
+
+        ByteBuf handshake = ctx.alloc().buffer(1 + 4 + CryptoSession.CHALLENGE_LENGTH);
+        handshake.writeByte(HANDSHAKE_MAGIC);
+        handshake.writeInt(Bootstrap.getProtocolVersion());
+        handshake.writeBytes(challenge);
+        ctx.writeAndFlush(handshake);
+
+        super.channelActive(ctx);
+    }
+
+    @Override
+    public void channelInactive(ChannelHandlerContext ctx) throws Exception {
+        PendingWrite write;
+        while ((write = pendingWrites.poll()) != null) {
+            write.promise.tryFailure(new ClosedChannelException());
+        }
+
+        super.channelInactive(ctx);
+    }
+
+    @Override
+    public void write(ChannelHandlerContext ctx, Object msg, ChannelPromise promise) throws Exception {
+        if (peerChallenge == null && acceptOutboundMessage(msg)) {
+            pendingWrites.add(new PendingWrite(msg, promise));
+            return;
+        }
+
+        super.write(ctx, msg, promise);
+    }
+
+    @Override
+    protected void encode(ChannelHandlerContext ctx, AuthenticatedMessage msg, List<Object> out) throws Exception {
+        if (outboundKey == null || !msg.getUuid().equals(outboundUuid)) {
+            CryptoSession session = PlayPen.get().getCryptoSession(msg.getUuid());
+            if (session == null) {
+                log.error("No crypto session for coordinator " + msg.getUuid() + ", unable to send message");
+                throw new EncoderException("No crypto session for coordinator " + msg.getUuid());
+            }
+
+            outboundUuid = msg.getUuid();
+            outboundUuidBytes = outboundUuid.getBytes(StandardCharsets.UTF_8);
+            outboundSalt = session.createConnectionSalt();
+            outboundKey = session.deriveConnectionKey(outboundSalt, peerChallenge);
+            outboundCounter = 0;
+        }
+
+        if (encryptCipher == null)
+            encryptCipher = Cipher.getInstance(CIPHER_ALGORITHM);
+
+        Protocol.Transaction transaction = msg.getTransaction();
+        int plainLength = transaction.getSerializedSize();
+        int headerLength = 1 + 4 + 1 + outboundUuidBytes.length + CryptoSession.SALT_LENGTH + 8;
+
+        ByteBuf plain = ctx.alloc().heapBuffer(plainLength);
+        ByteBuf frame = null;
+        try {
+            CodedOutputStream output = CodedOutputStream.newInstance(plain.array(), plain.arrayOffset(), plainLength);
+            transaction.writeTo(output);
+            output.checkNoSpaceLeft();
+            plain.writerIndex(plainLength);
+
+            long counter = outboundCounter++;
+            frame = ctx.alloc().buffer(headerLength + plainLength + TAG_LENGTH);
+            frame.writeByte(MAGIC);
+            frame.writeInt(Bootstrap.getProtocolVersion());
+            frame.writeByte(outboundUuidBytes.length);
+            frame.writeBytes(outboundUuidBytes);
+            frame.writeBytes(outboundSalt);
+            frame.writeLong(counter);
+
+            encryptCipher.init(Cipher.ENCRYPT_MODE, outboundKey, createNonce(counter));
+            encryptCipher.updateAAD(frame.nioBuffer(0, headerLength));
+            int written = encryptCipher.doFinal(plain.nioBuffer(),
+                    frame.nioBuffer(frame.writerIndex(), frame.writableBytes()));
+            frame.writerIndex(frame.writerIndex() + written);
+
+            out.add(frame);
+            frame = null;
+        }
+        finally {
+            plain.release();
+            if (frame != null)
+                frame.release();
+        }
+    }
+
+    @Override
+    protected void decode(ChannelHandlerContext ctx, ByteBuf frame, List<Object> out) throws Exception {
+        int start = frame.readerIndex();
+        byte magic = frame.readableBytes() < 6 ? 0 : frame.readByte();
+        if (magic == HANDSHAKE_MAGIC) {
+            decodeHandshake(ctx, frame);
+            return;
+        }
+
+        if (magic != MAGIC) {
+            log.error("Received a frame in an unknown format, the remote end is likely running an older protocol version");
+            log.error("Disconnecting due to version mismatch.");
+            ctx.channel().close();
+            return;
+        }
+
+        int version = frame.readInt();
+        if (version != Bootstrap.getProtocolVersion()) {
+            log.error("Protocol version mismatch! Expected " + Bootstrap.getProtocolVersion() + ", got " + version);
+            log.error("Disconnecting due to version mismatch.");
+            ctx.channel().close();
+            return;
+        }
+
+        int uuidLength = frame.readUnsignedByte();
+        if (frame.readableBytes() < uuidLength + CryptoSession.SALT_LENGTH + 8 + TAG_LENGTH) {
+            log.error("Received a truncated frame from " + ctx.channel() + ", closing connection");
+            ctx.channel().close();
+            return;
+        }
+
+        String uuid = frame.toString(frame.readerIndex(), uuidLength, StandardCharsets.UTF_8);
+        frame.skipBytes(uuidLength);
+
+        byte[] salt = new byte[CryptoSession.SALT_LENGTH];
+        frame.readBytes(salt);
+        long counter = frame.readLong();
+
+        SecretKeySpec key = inboundKey;
+        if (key == null) {
+            CryptoSession session = PlayPen.get().getCryptoSession(uuid);
+            if (session == null) {
+                log.error("Unknown coordinator on receive (" + uuid + "), closing connection from " + ctx.channel());
+                ctx.channel().close();
+                return;
+            }
+
+            // nothing is pinned until this frame authenticates, so a forged first frame can't take over the channel
+            key = session.deriveConnectionKey(salt, challenge);
+        }
+        else if (!uuid.equals(inboundUuid) || !Arrays.equals(salt, inboundSalt)) {
+            log.error("Coordinator or salt changed on an established connection (" + uuid + "), closing connection from "
+                    + ctx.channel());
+            ctx.channel().close();
+            return;
+        }
+
+        if (counter <= inboundCounter) {
+            log.error("Replayed or reordered frame from " + uuid + " (counter " + counter + "), closing connection");
+            ctx.channel().close();
+            return;
+        }
+
+        if (decryptCipher == null)
+            decryptCipher = Cipher.getInstance(CIPHER_ALGORITHM);
+
+        int headerLength = frame.readerIndex() - start;
+        int cipherLength = frame.readableBytes();
+
+        ByteBuf plain = ctx.alloc().heapBuffer(cipherLength);
+        try {
+            decryptCipher.init(Cipher.DECRYPT_MODE, key, createNonce(counter));
+            decryptCipher.updateAAD(frame.nioBuffer(start, headerLength));
+            int read = decryptCipher.doFinal(frame.nioBuffer(frame.readerIndex(), cipherLength),
+                    plain.nioBuffer(0, plain.capacity()));
+            plain.writerIndex(read);
+            frame.skipBytes(cipherLength);
+            if (inboundKey == null) {
+                inboundUuid = uuid;
+                inboundSalt = salt;
+                inboundKey = key;
+            }
+
+            inboundCounter = counter;
+
+            Protocol.Transaction transaction = Protocol.Transaction.parseFrom(
+                    CodedInputStream.newInstance(plain.array(), plain.arrayOffset(), read));
+            out.add(new AuthenticatedMessage(uuid, transaction));
+        }
+        catch (AEADBadTagException e) {
+            log.error("Unable to authenticate message from " + uuid + ", closing connection from " + ctx.channel());
+            ctx.channel().close();
+        }
+        finally {
+            plain.release();
+        }
+    }
+
+    private void decodeHandshake(ChannelHandlerContext ctx, ByteBuf frame) throws Exception {
+        if (frame.readableBytes() < 4 + CryptoSession.CHALLENGE_LENGTH) {
+            log.error("Received a truncated handshake from " + ctx.channel() + ", closing connection");
+            ctx.channel().close();
+            return;
+        }
+
+        int version = frame.readInt();
+        if (version != Bootstrap.getProtocolVersion()) {
+            log.error("Protocol version mismatch! Expected " + Bootstrap.getProtocolVersion() + ", got " + version);
+            log.error("Disconnecting due to version mismatch.");
+            ctx.channel().close();
+            return;
+        }
+
+        if (peerChallenge != null) {
+            log.error("Received a second handshake from " + ctx.channel() + ", closing connection");
+            ctx.channel().close();
+            return;
+        }
+
+        peerChallenge = new byte[CryptoSession.CHALLENGE_LENGTH];
+        frame.readBytes(peerChallenge);
+        frame.skipBytes(frame.readableBytes());
+
+        PendingWrite write;
+        while ((write = pendingWrites.poll()) != null) {
+            try {
+                super.write(ctx, write.msg, write.promise);
+            }
+            catch (Throwable e) {
+                write.promise.tryFailure(e);
+            }
+        }
+
+        ctx.flush();
+    }
+
+    private static GCMParameterSpec createNonce(long counter) {
+        byte[] nonce = new byte[NONCE_LENGTH];
+        for (int i = 0; i < 8; ++i) {
+            nonce[NONCE_LENGTH - 1 - i] = (byte) (counter >>> (8 * i));
+        }
+
+        return new GCMParameterSpec(TAG_LENGTH * 8, nonce);
+    }
+
+    private static class PendingWrite {
+        private final Object msg;
+        private final ChannelPromise promise;
+
+        PendingWrite(Object msg, ChannelPromise promise) {
+            this.msg = msg;
+            this.promise = promise;
+        }
+    }
+}
@@ -1,27 +1,29 @@
 package io.playpen.core.networking.netty;
 
+import io.netty.channel.Channel;
 import io.netty.channel.ChannelHandlerContext;
 import io.netty.channel.SimpleChannelInboundHandler;
-import io.playpen.core.Bootstrap;
 import io.playpen.core.coordinator.PlayPen;
-import io.playpen.core.protocol.Protocol;
+import io.playpen.core.networking.MessageDispatcher;
 import lombok.extern.log4j.Log4j2;
 
 @Log4j2
-public class AuthenticatedMessageHandler extends SimpleChannelInboundHandler<Protocol.AuthenticatedMessage> {
+public class AuthenticatedMessageHandler extends SimpleChannelInboundHandler<AuthenticatedMessage> {
     @Override
-    protected void channelRead0(ChannelHandlerContext ctx, Protocol.AuthenticatedMessage msg) throws Exception {
-        if (msg.getVersion() != Bootstrap.getProtocolVersion()) {
-            log.error("Protocol version mismatch! Expected " + Bootstrap.getProtocolVersion() + ", got "
-                    + msg.getVersion());
-            log.error("Disconnecting due to version mismatch.");
-            ctx.channel().close();
+    protected void channelRead0(ChannelHandlerContext ctx, AuthenticatedMessage msg) throws Exception {
+        Channel channel = ctx.channel();
+        MessageDispatcher dispatcher = PlayPen.get().getDispatcher();
+        if (dispatcher == null) {
+            receive(msg, channel);
             return;
         }
 
-        if(!PlayPen.get().receive(msg, ctx.channel())) {
+        dispatcher.dispatch(msg.getUuid(), channel, () -> receive(msg, channel));
+    }
+
+    private void receive(AuthenticatedMessage msg, Channel channel) {
+        if(!PlayPen.get().receive(msg, channel)) {
             log.error("Message failed");
-            return;
         }
     }
 
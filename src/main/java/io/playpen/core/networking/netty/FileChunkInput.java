@@ -0,0 +1,120 @@
+package io.playpen.core.networking.netty;
+
+import com.google.protobuf.ByteString;
+import io.netty.channel.ChannelHandlerContext;
+import io.netty.handler.stream.ChunkedInput;
+import io.playpen.core.protocol.Protocol;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.BitSet;
+
+/**
+ * Streams a file as a series of transactions, one per chunk. This is written to a channel and pulled by netty's
+ * ChunkedWriteHandler only while the channel is writable, so at most a couple of chunks of the file are ever held in
+ * memory regardless of the size of the file.
+ */
+public class FileChunkInput implements ChunkedInput<AuthenticatedMessage> {
+    public static final int DEFAULT_CHUNK_SIZE = 1024 * 1024;
+
+    /**
+     * Builds the transaction that carries a single chunk of the file.
+     */
+    @FunctionalInterface
+    public interface ChunkEncoder {
+        Protocol.Transaction encode(int chunkId, long offset, long fileSize, ByteString data);
+    }
+
+    private final String uuid;
+
+    private final ChunkEncoder encoder;
+
+    private final FileChannel channel;
+
+    private final long fileSize;
+
+    private final int chunkSize;
+
+    private final int chunkCount;
+
+    private final BitSet chunks;
+
+    private final ByteBuffer buffer;
+
+    private int nextChunk;
+
+    public FileChunkInput(String uuid, Path file, int chunkSize, ChunkEncoder encoder) throws IOException {
+        this(uuid, file, chunkSize, null, encoder);
+    }
+
+    /**
+     * @param chunks the chunks of the file to send, or null to send the entire file
+     */
+    public FileChunkInput(String uuid, Path file, int chunkSize, BitSet chunks, ChunkEncoder encoder) throws IOException {
+        this.uuid = uuid;
+        this.encoder = encoder;
+        this.chunkSize = chunkSize;
+
+        channel = FileChannel.open(file, StandardOpenOption.READ);
+        fileSize = channel.size();
+        chunkCount = getChunkCount(fileSize, chunkSize);
+
+        if (chunks == null) {
+            chunks = new BitSet(chunkCount);
+            chunks.set(0, chunkCount);
+        }
+
+        this.chunks = chunks;
+        buffer = ByteBuffer.allocate(chunkSize);
+        nextChunk = chunks.nextSetBit(0);
+    }
+
+    public static int getChunkCount(long fileSize, int chunkSize) {
+        return (int) ((fileSize + chunkSize - 1) / chunkSize);
+    }
+
+    public long getFileSize() {
+        return fileSize;
+    }
+
+    public int getChunkCount() {
+        return chunkCount;
+    }
+
+    @Override
+    public boolean isEndOfInput() throws Exception {
+        return nextChunk < 0 || nextChunk >= chunkCount;
+    }
+
+    @Override
+    public void close() throws Exception {
+        channel.close();
+    }
+
+    @Override
+    public AuthenticatedMessage readChunk(ChannelHandlerContext ctx) throws Exception {
+        if (isEndOfInput())
+            return null;
+
+        int chunkId = nextChunk;
+        long offset = (long) chunkId * chunkSize;
+        int length = (int) Math.min(chunkSize, fileSize - offset);
+
+        buffer.clear();
+        buffer.limit(length);
+        while (buffer.hasRemaining()) {
+            if (channel.read(buffer, offset + buffer.position()) < 0)
+                throw new EOFException("File ended before chunk " + chunkId + " could be read");
+        }
+
+        buffer.flip();
+        Protocol.Transaction message = encoder.encode(chunkId, offset, fileSize, ByteString.copyFrom(buffer));
+
+        nextChunk = chunks.nextSetBit(chunkId + 1);
+        return new AuthenticatedMessage(uuid, message);
+    }
+}
@@ -1,8 +1,15 @@
 package io.playpen.core.p3;
 
+import java.io.File;
 import java.util.Collection;
 
 public interface IPackageResolver {
     P3Package resolvePackage(PackageManager pm, String id, String version);
     Collection<P3Package.P3PackageInfo> getPackageList(PackageManager pm);
+
+    /**
+     * Called with the checksum of a package file that was just verified, so resolvers that keep checksums don't have
+     * to calculate it again.
+     */
+    default void recordChecksum(PackageManager pm, File file, String checksum) {}
 }
@@ -6,4 +6,12 @@ public interface IPackageStep {
     String getStepId();
 
     boolean runStep(P3Package p3, PackageContext ctx, JSONObject config);
+
+    /**
+     * Whether this step mostly reads or writes the disk (e.g. expanding or copying files). The package manager can
+     * limit how many of these run at once, see PackageManager.setIOStepLimit().
+     */
+    default boolean isIOIntensive() {
+        return false;
+    }
 }
@@ -1,7 +1,11 @@
 package io.playpen.core.p3;
 
 import io.playpen.core.utils.AuthUtils;
+import io.playpen.core.utils.ChecksumAlgorithm;
+import lombok.AccessLevel;
 import lombok.Data;
+import lombok.Getter;
+import lombok.Setter;
 import lombok.extern.log4j.Log4j2;
 import org.json.JSONObject;
 
@@ -54,6 +58,14 @@ public class P3Package {
 
     private Map<String, Integer> resources = new HashMap<>();
 
+    /**
+     * The resources as a vector, built on first use. Resources are only filled in while reading the package, so this
+     * never goes stale.
+     */
+    @Getter(AccessLevel.NONE)
+    @Setter(AccessLevel.NONE)
+    private transient ResourceVector resourceVector = null;
+
     private Set<String> attributes = new HashSet<>();
 
     private Map<String, String> strings = new HashMap<>();
@@ -64,6 +76,18 @@ public class P3Package {
 
     private List<PackageStepConfig> shutdownSteps = new ArrayList<>();
 
+    public ResourceVector getResourceVector() {
+        if(resourceVector == null)
+            resourceVector = ResourceVector.of(resources);
+
+        return resourceVector;
+    }
+
+    public void setResources(Map<String, Integer> resources) {
+        this.resources = resources;
+        resourceVector = null;
+    }
+
     /**
      * Checks to make sure required fields are filled. Does not check resolution status!
      */
@@ -88,6 +112,20 @@ public class P3Package {
         if (!force && checksum != null)
             return;
 
+        calculateChecksum(AuthUtils.getPackageChecksumAlgorithm(), true);
+    }
+
+    /**
+     * Makes sure the checksum was made with the given algorithm, e.g. to compare it with a checksum made elsewhere.
+     */
+    public void calculateChecksum(ChecksumAlgorithm algorithm) throws PackageException {
+        calculateChecksum(algorithm, false);
+    }
+
+    private synchronized void calculateChecksum(ChecksumAlgorithm algorithm, boolean force) throws PackageException {
+        if (!force && checksum != null && ChecksumAlgorithm.forChecksum(checksum) == algorithm)
+            return;
+
         if (!resolved)
             throw new PackageException("Cannot calculate checksum on unresolved package");
 
@@ -97,7 +135,7 @@ public class P3Package {
         log.debug("Recalculating checksum on " + id + " (" + version + ")");
 
         try {
-            checksum = AuthUtils.createPackageChecksum(localPath);
+            checksum = AuthUtils.createPackageChecksum(localPath, algorithm);
         } catch (IOException e) {
             throw new PackageException("Unable to calculate checksum from package file", e);
         }
@@ -0,0 +1,197 @@
+package io.playpen.core.p3;
+
+import io.playpen.core.utils.ZipExtractor;
+import lombok.extern.log4j.Log4j2;
+import org.apache.commons.io.FileUtils;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.file.*;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * Extracted copies ("images") of packages, keyed by package checksum. A package is only ever decompressed once into
+ * its image, and server directories are then populated from the image by copying or hard linking its files.
+ *
+ * Hard linked files are shared with the image and every other server provisioned from it, so linking must only be
+ * used for packages whose files are replaced rather than modified in place.
+ */
+@Log4j2
+public class PackageImageCache {
+    /**
+     * Written into an image once it has been completely extracted.
+     */
+    private static final String COMPLETE_MARKER = ".playpen-image";
+
+    public enum Mode {
+        COPY,
+        LINK
+    }
+
+    private final File imageDir;
+
+    private final Map<String, Object> imageLocks = new ConcurrentHashMap<>();
+
+    private final AtomicBoolean linkUnsupported = new AtomicBoolean(false);
+
+    public PackageImageCache(File imageDir) {
+        this.imageDir = imageDir;
+    }
+
+    /**
+     * Returns the image of a package, extracting the package first if there is no image of it yet.
+     *
+     * @param parallel whether to extract the package with the parallel engine, see {@link ZipExtractor}
+     */
+    public File getImage(P3Package p3, boolean parallel) throws PackageException {
+        p3.calculateChecksum();
+        String name = getImageName(p3.getChecksum());
+        File image = new File(imageDir, name);
+        if(new File(image, COMPLETE_MARKER).isFile())
+            return image;
+
+        synchronized(imageLocks.computeIfAbsent(name, k -> new Object())) {
+            if(new File(image, COMPLETE_MARKER).isFile())
+                return image;
+
+            log.info("Creating image of " + p3.getId() + " (" + p3.getVersion() + ") at " + image.getPath());
+            File tmp = new File(imageDir, name + "-" + UUID.randomUUID() + ".tmp");
+            try {
+                ZipExtractor.extract(new File(p3.getLocalPath()), tmp, parallel);
+                Files.createFile(new File(tmp, COMPLETE_MARKER).toPath());
+
+                if(image.exists())
+                    FileUtils.deleteDirectory(image);
+
+                Files.move(tmp.toPath(), image.toPath(), StandardCopyOption.ATOMIC_MOVE);
+            }
+            catch(IOException e) {
+                FileUtils.deleteQuietly(tmp);
+                throw new PackageException("Unable to create image of " + p3.getId() + " (" + p3.getVersion() + ")", e);
+            }
+        }
+
+        return image;
+    }
+
+    /**
+     * Deletes the image of the package with the given checksum, if there is one.
+     */
+    public void removeImage(String checksum) {
+        String name = getImageName(checksum);
+        synchronized(imageLocks.computeIfAbsent(name, k -> new Object())) {
+            File image = new File(imageDir, name);
+            if(!image.exists())
+                return;
+
+            log.info("Removing image " + image.getPath());
+            try {
+                FileUtils.deleteDirectory(image);
+            }
+            catch(IOException e) {
+                log.warn("Unable to remove image " + image.getPath(), e);
+            }
+        }
+    }
+
+    /**
+     * Deletes every image except those of packages with the given checksums, along with anything left over from an
+     * extraction that didn't finish.
+     */
+    public void retainImages(Set<String> checksums) {
+        Set<String> names = new HashSet<>();
+        checksums.forEach(checksum -> names.add(getImageName(checksum)));
+
+        File[] images = imageDir.listFiles();
+        if(images == null)
+            return;
+
+        for(File image : images) {
+            if(names.contains(image.getName()) && new File(image, COMPLETE_MARKER).isFile())
+                continue;
+
+            log.info("Removing unused image " + image.getPath());
+            FileUtils.deleteQuietly(image);
+        }
+    }
+
+    private static String getImageName(String checksum) {
+        return checksum.replaceAll("[^A-Za-z0-9._-]", "_");
+    }
+
+    /**
+     * Fills a directory with the contents of an image. Files are copied or linked in parallel. If hard links aren't
+     * supported (e.g. the image is on another file system), files are copied instead.
+     */
+    public void populate(File image, File destination, Mode mode) throws IOException {
+        long start = System.currentTimeMillis();
+        Path source = image.toPath();
+        Path target = destination.toPath();
+        List<Path> files = new ArrayList<>();
+
+        Files.walkFileTree(source, new SimpleFileVisitor<Path>() {
+            @Override
+            public FileVisitResult preVisitDirectory(Path dir, BasicFileAttributes attrs) throws IOException {
+                Files.createDirectories(target.resolve(source.relativize(dir)));
+                return FileVisitResult.CONTINUE;
+            }
+
+            @Override
+            public FileVisitResult visitFile(Path file, BasicFileAttributes attrs) throws IOException {
+                files.add(source.relativize(file));
+                return FileVisitResult.CONTINUE;
+            }
+        });
+
+        files.remove(Paths.get(COMPLETE_MARKER));
+
+        try {
+            files.parallelStream().forEach(file -> {
+                try {
+                    populateFile(source.resolve(file), target.resolve(file), mode);
+                }
+                catch(IOException e) {
+                    throw new UncheckedIOException(e);
+                }
+            });
+        }
+        catch(UncheckedIOException e) {
+            throw e.getCause();
+        }
+
+        log.info("Populated " + destination.getPath() + " with " + files.size() + " files from image ("
+                + mode.name().toLowerCase() + ") in " + (System.currentTimeMillis() - start) + "ms");
+    }
+
+    /**
+     * Packages of a dependency chain are expanded into the same directory, so a file from an earlier package is
+     * replaced. A linked file is unlinked first rather than overwritten, which would change the image it belongs to.
+     */
+    private void populateFile(Path source, Path target, Mode mode) throws IOException {
+        if(mode == Mode.LINK && !linkUnsupported.get()) {
+            try {
+                Files.deleteIfExists(target);
+                Files.createLink(target, source);
+                return;
+            }
+            catch(FileAlreadyExistsException e) {
+                throw e;
+            }
+            catch(UnsupportedOperationException | IOException e) {
+                if(linkUnsupported.compareAndSet(false, true))
+                    log.warn("Unable to hard link package images, falling back to copying", e);
+            }
+        }
+
+        Files.copy(source, target, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.COPY_ATTRIBUTES);
+    }
+}
@@ -1,7 +1,7 @@
 package io.playpen.core.p3;
 
-import com.google.common.collect.Lists;
 import io.playpen.core.Bootstrap;
+import lombok.Data;
 import lombok.Getter;
 import lombok.Setter;
 import lombok.extern.log4j.Log4j2;
@@ -17,9 +17,22 @@ import java.nio.file.Files;
 import java.nio.file.Paths;
 import java.util.*;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Semaphore;
 
 @Log4j2
 public class PackageManager {
+    /**
+     * Maximum number of parsed package files kept in the schema cache.
+     */
+    private static final int SCHEMA_CACHE_SIZE = 1024;
+
+    @Data
+    private static class SchemaCacheKey {
+        private final String path;
+        private final long size;
+        private final long modified;
+    }
+
     private List<IPackageResolver> resolvers = new ArrayList<>();
 
     private Map<String, IPackageStep> packageSteps = new ConcurrentHashMap<>();
@@ -27,12 +40,41 @@ public class PackageManager {
     @Getter
     private Map<P3Package.P3PackageInfo, P3Package> packageCache = new ConcurrentHashMap<>();
 
+    /**
+     * Resolved dependency chains by package. Cleared whenever a package is promoted or replaced, since either can
+     * change what a chain resolves to.
+     */
+    private Map<P3Package.P3PackageInfo, List<P3Package>> dependencyChains = new ConcurrentHashMap<>();
+
     private Map<String, String> promoted = new ConcurrentHashMap<>();
 
+    /**
+     * Parsed packages by file identity, so reading the same unchanged package file again doesn't unzip and parse its
+     * schema. A package that is rewritten gets a new size or modification time and so misses the cache.
+     */
+    private final Map<SchemaCacheKey, P3Package> schemaCache = new LinkedHashMap<SchemaCacheKey, P3Package>(16, 0.75f, true) {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<SchemaCacheKey, P3Package> eldest) {
+            return size() > SCHEMA_CACHE_SIZE;
+        }
+    };
+
     @Getter
     @Setter
     private IPackageResolver fallbackResolver = null;
 
+    /**
+     * Extracted package images used by the expand step, or null to always expand packages directly.
+     */
+    @Getter
+    @Setter
+    private PackageImageCache imageCache = null;
+
+    /**
+     * Limits how many IO intensive steps run at once across all executions, or null for no limit.
+     */
+    private volatile Semaphore ioStepPermits = null;
+
     public PackageManager() {
         try {
             File packagesFile = Paths.get(Bootstrap.getHomeDir().getPath(), "packages.json").toFile();
@@ -69,6 +111,7 @@ public class PackageManager {
 
         log.info("Promoted " + p3.getId() + " at " + p3.getVersion());
         promoted.put(p3.getId(), p3.getVersion());
+        dependencyChains.clear();
 
         try {
             File packagesFile = Paths.get(Bootstrap.getHomeDir().getPath(), "packages.json").toFile();
@@ -91,6 +134,14 @@ public class PackageManager {
         return true;
     }
 
+    /**
+     * Forgets everything cached about a package. Must be called when a package is replaced.
+     */
+    public void expirePackage(P3Package.P3PackageInfo info) {
+        packageCache.remove(info);
+        dependencyChains.clear();
+    }
+
     public void addPackageResolver(IPackageResolver resolver) {
         resolvers.add(resolver);
     }
@@ -147,6 +198,15 @@ public class PackageManager {
         return null;
     }
 
+    /**
+     * Passes the checksum of a package file that was just verified on to the resolvers.
+     */
+    public void recordChecksum(File file, String checksum) {
+        for(IPackageResolver resolver : resolvers) {
+            resolver.recordChecksum(this, file, checksum);
+        }
+    }
+
     public Set<P3Package.P3PackageInfo> getPackageList() {
         Set<P3Package.P3PackageInfo> packages = new HashSet<>();
         for(IPackageResolver resolver : resolvers) {
@@ -281,6 +341,13 @@ public class PackageManager {
     }
 
     public P3Package readPackage(File file) throws PackageException {
+        SchemaCacheKey key = new SchemaCacheKey(file.getAbsolutePath(), file.length(), file.lastModified());
+        synchronized(schemaCache) {
+            P3Package cached = schemaCache.get(key);
+            if(cached != null)
+                return cached;
+        }
+
         try {
             if (!ZipUtil.containsEntry(file, "package.json")) {
                 throw new PackageException("No package schema found");
@@ -293,6 +360,10 @@ public class PackageManager {
             P3Package p3 = readSchema(schema);
             p3.setLocalPath(file.getPath());
 
+            synchronized(schemaCache) {
+                schemaCache.put(key, p3);
+            }
+
             return p3;
         }
         catch(JSONException e) {
@@ -350,7 +421,7 @@ public class PackageManager {
 
             for(P3Package.PackageStepConfig config : steps) {
                 log.info("package step - " + config.getStep().getStepId());
-                if(!config.getStep().runStep(p3, ctx, config.getConfig())) {
+                if(!runStep(config, p3, ctx)) {
                     log.error("Step failed!");
                     return false;
                 }
@@ -360,39 +431,138 @@ public class PackageManager {
         return true;
     }
 
-    private List<P3Package> resolveDependencyChain(P3Package initialP3)
-    {
+    private boolean runStep(P3Package.PackageStepConfig config, P3Package p3, PackageContext ctx) {
+        Semaphore permits = ioStepPermits;
+        if(permits == null || !config.getStep().isIOIntensive())
+            return config.getStep().runStep(p3, ctx, config.getConfig());
+
+        try {
+            permits.acquire();
+        }
+        catch(InterruptedException e) {
+            log.warn("Interrupted while waiting to run step " + config.getStep().getStepId());
+            Thread.currentThread().interrupt();
+            return false;
+        }
+
+        try {
+            return config.getStep().runStep(p3, ctx, config.getConfig());
+        }
+        finally {
+            permits.release();
+        }
+    }
+
+    /**
+     * Sets how many IO intensive steps (see IPackageStep.isIOIntensive()) may run at once, 0 for no limit.
+     */
+    public void setIOStepLimit(int limit) {
+        ioStepPermits = limit > 0 ? new Semaphore(limit, true) : null;
+    }
+
+    /**
+     * Returns the given package and everything it depends on, ordered so that every package comes after all of its
+     * dependencies. Dependencies shared by several packages appear once. Returns null if a dependency can't be
+     * resolved or the dependencies form a cycle.
+     */
+    public List<P3Package> resolveDependencyChain(P3Package initialP3) {
         log.info("Building dependency chain for " + initialP3.getId() + " (" + initialP3.getVersion() + ")");
-        List<P3Package> chain = new LinkedList<>();
-        Queue<P3Package> toResolve = new LinkedList<>();
-        Set<P3Package.P3PackageInfo> resolved = new HashSet<>();
-
-        toResolve.add(initialP3);
-        while(!toResolve.isEmpty()) {
-            P3Package p3 = toResolve.remove();
-            P3Package.P3PackageInfo info = new P3Package.P3PackageInfo();
-            info.setId(p3.getId());
-            info.setVersion(p3.getVersion());
-            if(resolved.contains(info)) {
-                log.error("Multiple dependency found with " + info.getId() + " (" + info.getVersion() + ")");
-                return null; // TODO: Figure out if there's actually a circular dependency
+
+        // the initial package is never taken from the cache since it may not be the packaged schema (e.g. the one in
+        // a provisioned server's directory), but its dependencies are
+        Map<P3Package.P3PackageInfo, P3Package> chain = new LinkedHashMap<>();
+        Deque<P3Package.P3PackageInfo> path = new ArrayDeque<>();
+        path.push(getInfo(initialP3));
+        for(P3Package dep : initialP3.getDependencies()) {
+            List<P3Package> depChain = resolveCachedChain(dep, path);
+            if(depChain == null)
+                return null;
+
+            for(P3Package p3 : depChain) {
+                chain.putIfAbsent(getInfo(p3), p3);
             }
+        }
 
-            if(!p3.isResolved())
-                p3 = resolve(p3.getId(), p3.getVersion());
+        List<P3Package> result = new ArrayList<>(chain.values());
+        result.add(initialP3);
 
-            if(p3 == null) {
-                log.error("Unable to resolve " + info.getId() + " (" + info.getVersion() + ")");
-                return null;
+        log.info("Dependency chain resolution complete: " + result.size() + " packages");
+        return result;
+    }
+
+    /**
+     * Returns the dependency chain of a dependency, from the cache if possible. path holds the packages currently being
+     * resolved and is used to detect cycles.
+     */
+    private List<P3Package> resolveCachedChain(P3Package dependency, Deque<P3Package.P3PackageInfo> path) {
+        P3Package.P3PackageInfo info = getInfo(dependency);
+        if(path.contains(info)) {
+            StringBuilder cycle = new StringBuilder();
+            Iterator<P3Package.P3PackageInfo> itr = path.descendingIterator();
+            while(itr.hasNext()) {
+                P3Package.P3PackageInfo node = itr.next();
+                cycle.append(node.getId()).append(" (").append(node.getVersion()).append(") -> ");
+            }
+
+            cycle.append(info.getId()).append(" (").append(info.getVersion()).append(")");
+            log.error("Circular dependency: " + cycle);
+            return null;
+        }
+
+        List<P3Package> cached = dependencyChains.get(info);
+        if(cached != null) {
+            if(isChainValid(cached))
+                return cached;
+
+            dependencyChains.remove(info, cached);
+        }
+
+        P3Package p3 = dependency;
+        if(!p3.isResolved())
+            p3 = resolve(p3.getId(), p3.getVersion());
+
+        if(p3 == null) {
+            log.error("Unable to resolve " + info.getId() + " (" + info.getVersion() + ")");
+            return null;
+        }
+
+        Map<P3Package.P3PackageInfo, P3Package> chain = new LinkedHashMap<>();
+        path.push(info);
+        try {
+            for(P3Package dep : p3.getDependencies()) {
+                List<P3Package> depChain = resolveCachedChain(dep, path);
+                if(depChain == null)
+                    return null;
+
+                for(P3Package depP3 : depChain) {
+                    chain.putIfAbsent(getInfo(depP3), depP3);
+                }
             }
+        }
+        finally {
+            path.pop();
+        }
 
-            chain.add(p3);
-            resolved.add(info);
-            toResolve.addAll(p3.getDependencies());
+        chain.put(info, p3);
+
+        List<P3Package> result = Collections.unmodifiableList(new ArrayList<>(chain.values()));
+        dependencyChains.put(info, result);
+        return result;
+    }
+
+    private boolean isChainValid(List<P3Package> chain) {
+        for(P3Package p3 : chain) {
+            if(p3.getLocalPath() != null && !new File(p3.getLocalPath()).isFile())
+                return false;
         }
 
-        log.info("Dependency chain resolution complete: " + chain.size() + " packages");
+        return true;
+    }
 
-        return Lists.reverse(chain);
+    private static P3Package.P3PackageInfo getInfo(P3Package p3) {
+        P3Package.P3PackageInfo info = new P3Package.P3PackageInfo();
+        info.setId(p3.getId());
+        info.setVersion(p3.getVersion());
+        return info;
     }
 }
@@ -0,0 +1,37 @@
+package io.playpen.core.p3;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Interns resource names to small, dense indices so resource amounts can be kept in arrays instead of maps. Indices
+ * are assigned the first time a name is seen and never change or get reused.
+ */
+public final class ResourceIndex {
+    private static final Map<String, Integer> indices = new ConcurrentHashMap<>();
+
+    private static final List<String> names = new ArrayList<>();
+
+    public static int indexOf(String name) {
+        Integer index = indices.get(name);
+        if(index != null)
+            return index;
+
+        synchronized(names) {
+            return indices.computeIfAbsent(name, k -> {
+                names.add(k);
+                return names.size() - 1;
+            });
+        }
+    }
+
+    public static String nameOf(int index) {
+        synchronized(names) {
+            return names.get(index);
+        }
+    }
+
+    private ResourceIndex() {}
+}
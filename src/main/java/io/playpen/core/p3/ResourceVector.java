@@ -0,0 +1,66 @@
+package io.playpen.core.p3;
+
+import java.util.Map;
+
+/**
+ * An immutable set of resource amounts keyed by {@link ResourceIndex}, e.g. the resources a package needs.
+ */
+public final class ResourceVector {
+    public static final ResourceVector EMPTY = new ResourceVector(new int[0], new int[0]);
+
+    private final int[] indices;
+
+    private final int[] amounts;
+
+    private ResourceVector(int[] indices, int[] amounts) {
+        this.indices = indices;
+        this.amounts = amounts;
+    }
+
+    public static ResourceVector of(Map<String, Integer> resources) {
+        if(resources.isEmpty())
+            return EMPTY;
+
+        int[] indices = new int[resources.size()];
+        int[] amounts = new int[resources.size()];
+        int i = 0;
+        for(Map.Entry<String, Integer> entry : resources.entrySet()) {
+            indices[i] = ResourceIndex.indexOf(entry.getKey());
+            amounts[i] = entry.getValue();
+            ++i;
+        }
+
+        return new ResourceVector(indices, amounts);
+    }
+
+    public int size() {
+        return indices.length;
+    }
+
+    /**
+     * Returns the resource index of the i-th entry.
+     */
+    public int getIndex(int i) {
+        return indices[i];
+    }
+
+    /**
+     * Returns the amount of the i-th entry.
+     */
+    public int getAmount(int i) {
+        return amounts[i];
+    }
+
+    @Override
+    public String toString() {
+        StringBuilder builder = new StringBuilder("{");
+        for(int i = 0; i < indices.length; ++i) {
+            if(i > 0)
+                builder.append(", ");
+
+            builder.append(ResourceIndex.nameOf(indices[i])).append('=').append(amounts[i]);
+        }
+
+        return builder.append('}').toString();
+    }
+}
@@ -22,7 +22,7 @@ public class InMemoryCacheResolver implements IPackageResolver {
 
         File p3File = new File(p3.getLocalPath());
         if(!p3File.exists() || !p3File.isFile()) {
-            pm.getPackageCache().remove(info);
+            pm.expirePackage(info);
             log.warn("In-memory package " + id + " at " + version + " is invalid, removing from cache");
             return null;
         }
@@ -5,19 +5,62 @@ import io.playpen.core.p3.P3Package;
 import io.playpen.core.p3.PackageException;
 import io.playpen.core.p3.PackageManager;
 import lombok.extern.log4j.Log4j2;
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
 
 import java.io.File;
-import java.util.ArrayList;
-import java.util.Collection;
-import java.util.LinkedList;
-import java.util.List;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.*;
 
+/**
+ * Resolves packages from a directory of .p3 files.
+ *
+ * The id and version of every package in the directory are kept in an index, so resolving a package is a map lookup
+ * instead of opening every package in the directory. The index is refreshed when the directory changes, and only
+ * files whose size or modification time changed are read again. If an index file is given, the index is saved there
+ * so a restart doesn't have to read every package either.
+ *
+ * The index also keeps the checksum of each package once it has been calculated, so a package is only hashed again
+ * after its size or modification time changes.
+ */
 @Log4j2
 public class LocalRepositoryResolver implements IPackageResolver {
+    private static final int INDEX_VERSION = 1;
+
+    /**
+     * Directory timestamps can be coarse, so a directory that was modified this recently is always rescanned.
+     */
+    private static final long MODIFIED_GRACE_PERIOD = 2000;
+
     private File localRepoDir = null;
 
+    private File indexFile = null;
+
+    private final Map<String, IndexEntry> entries = new HashMap<>();
+
+    private volatile Map<P3Package.P3PackageInfo, IndexEntry> index = Collections.emptyMap();
+
+    private boolean indexLoaded = false;
+
+    private long lastDirModified = -1;
+
+    private long lastScan = -1;
+
     public LocalRepositoryResolver(File dir) {
+        this(dir, null);
+    }
+
+    /**
+     * @param indexFile where to persist the index, or null to only keep it in memory
+     */
+    public LocalRepositoryResolver(File dir, File indexFile) {
         localRepoDir = dir;
+        this.indexFile = indexFile;
     }
 
     @Override
@@ -27,30 +70,50 @@ public class LocalRepositoryResolver implements IPackageResolver {
             return null;
         }
 
-        File[] packageFiles = localRepoDir.listFiles((dir, name) -> {
-            return name.endsWith(".p3");
-        });
+        P3Package.P3PackageInfo info = new P3Package.P3PackageInfo();
+        info.setId(id);
+        info.setVersion(version);
 
-        for(File p3File : packageFiles) {
-            if(!p3File.isFile())
-                continue;
+        refresh(pm, false);
+        IndexEntry entry = index.get(info);
+        if(entry != null && !entry.isCurrent()) {
+            // the file changed without the directory changing (written in place), so the index can't be trusted
+            refresh(pm, true);
+            entry = index.get(info);
+        }
 
-            P3Package p3 = null;
+        if(entry == null)
+            return null;
+
+        P3Package p3 = null;
+        try {
+            p3 = pm.readPackage(entry.file);
+        }
+        catch(PackageException e) {
+            log.warn("Unable to read file " + entry.file.getPath());
+            return null;
+        }
+
+        if(!id.equals(p3.getId()) || !version.equals(p3.getVersion()))
+            return null;
+
+        // a checksum made with another algorithm is still used as is, callers that need a specific algorithm ask for it
+        String checksum = entry.checksum;
+        if(checksum != null) {
+            p3.setChecksum(checksum);
+        }
+        else {
             try {
-                p3 = pm.readPackage(p3File);
+                p3.calculateChecksum();
+                recordChecksum(entry, p3.getChecksum());
             }
             catch(PackageException e) {
-                log.warn("Unable to read file " + p3File.getPath());
-                continue;
-            }
-
-            if(id.equals(p3.getId()) && version.equals(p3.getVersion())) {
-                log.info("Found matching package at " + p3File.getPath());
-                return p3;
+                log.warn("Unable to calculate checksum of " + entry.file.getPath(), e);
             }
         }
 
-        return null;
+        log.info("Found matching package at " + entry.file.getPath());
+        return p3;
     }
 
     @Override
@@ -60,28 +123,203 @@ public class LocalRepositoryResolver implements IPackageResolver {
             return null;
         }
 
+        refresh(pm, false);
+        return new ArrayList<>(index.keySet());
+    }
+
+    /**
+     * Brings the index up to date with the directory. Unless forced, nothing is done if the directory hasn't been
+     * modified since the last scan.
+     */
+    private synchronized void refresh(PackageManager pm, boolean force) {
+        if(!indexLoaded) {
+            loadIndex();
+            indexLoaded = true;
+        }
+
+        long dirModified = localRepoDir.lastModified();
+        if(!force && lastScan >= 0 && dirModified == lastDirModified
+                && lastScan - dirModified > MODIFIED_GRACE_PERIOD) {
+            return;
+        }
+
+        // record the time before listing so changes made during the scan are picked up next time
+        long scanTime = System.currentTimeMillis();
+
         File[] packageFiles = localRepoDir.listFiles((dir, name) -> name.endsWith(".p3"));
+        if(packageFiles == null) {
+            log.error("Unable to list package repository at " + localRepoDir.getPath());
+            return;
+        }
 
-        List<P3Package.P3PackageInfo> packages = new ArrayList<>();
+        boolean changed = false;
+        Set<String> seen = new HashSet<>();
         for(File p3File : packageFiles) {
             if(!p3File.isFile())
                 continue;
 
+            seen.add(p3File.getName());
+            IndexEntry entry = entries.get(p3File.getName());
+            if(entry != null && entry.isCurrent())
+                continue;
+
             P3Package p3 = null;
             try {
                 p3 = pm.readPackage(p3File);
             }
             catch(PackageException e) {
                 log.warn("Unable to read file " + p3File.getPath());
+                if(entries.remove(p3File.getName()) != null)
+                    changed = true;
+
                 continue;
             }
 
+            entry = new IndexEntry(p3File, p3File.length(), p3File.lastModified(), p3.getId(), p3.getVersion());
+            entries.put(p3File.getName(), entry);
+            changed = true;
+        }
+
+        if(entries.keySet().retainAll(seen))
+            changed = true;
+
+        Map<P3Package.P3PackageInfo, IndexEntry> newIndex = new HashMap<>();
+        for(IndexEntry entry : entries.values()) {
+            IndexEntry previous = newIndex.put(entry.getInfo(), entry);
+            if(previous != null) {
+                log.warn("Package " + entry.id + " at " + entry.version + " exists in both " + previous.file.getName()
+                        + " and " + entry.file.getName() + " in " + localRepoDir.getPath());
+            }
+        }
+
+        index = newIndex;
+        lastDirModified = dirModified;
+        lastScan = scanTime;
+
+        if(changed) {
+            log.info("Indexed " + entries.size() + " packages in " + localRepoDir.getPath());
+            saveIndex();
+        }
+    }
+
+    @Override
+    public void recordChecksum(PackageManager pm, File file, String checksum) {
+        if(!localRepoDir.getAbsoluteFile().equals(file.getAbsoluteFile().getParentFile()))
+            return;
+
+        synchronized(this) {
+            IndexEntry entry = entries.get(file.getName());
+            if(entry == null || !entry.isCurrent()) {
+                refresh(pm, true);
+                entry = entries.get(file.getName());
+            }
+
+            if(entry != null)
+                recordChecksum(entry, checksum);
+        }
+    }
+
+    private synchronized void recordChecksum(IndexEntry entry, String checksum) {
+        entry.checksum = checksum;
+        if(entries.get(entry.file.getName()) == entry)
+            saveIndex();
+    }
+
+    private void loadIndex() {
+        if(indexFile == null || !indexFile.isFile())
+            return;
+
+        try {
+            JSONObject json = new JSONObject(new String(Files.readAllBytes(indexFile.toPath()), StandardCharsets.UTF_8));
+            if(json.optInt("version") != INDEX_VERSION) {
+                log.info("Ignoring package index " + indexFile.getPath() + " from a different version");
+                return;
+            }
+
+            JSONArray packages = json.getJSONArray("packages");
+            for(int i = 0; i < packages.length(); ++i) {
+                JSONObject obj = packages.getJSONObject(i);
+                String name = obj.getString("file");
+                IndexEntry entry = new IndexEntry(new File(localRepoDir, name), obj.getLong("size"),
+                        obj.getLong("modified"), obj.getString("id"), obj.getString("version"));
+                entry.checksum = obj.optString("checksum", null);
+                entries.put(name, entry);
+            }
+
+            log.info("Loaded package index " + indexFile.getPath() + " (" + entries.size() + " packages)");
+        }
+        catch(IOException | JSONException e) {
+            log.warn("Unable to read package index " + indexFile.getPath() + ", rebuilding it", e);
+            entries.clear();
+        }
+    }
+
+    private void saveIndex() {
+        if(indexFile == null)
+            return;
+
+        JSONArray packages = new JSONArray();
+        for(Map.Entry<String, IndexEntry> entry : entries.entrySet()) {
+            JSONObject obj = new JSONObject();
+            obj.put("file", entry.getKey());
+            obj.put("size", entry.getValue().size);
+            obj.put("modified", entry.getValue().modified);
+            obj.put("id", entry.getValue().id);
+            obj.put("version", entry.getValue().version);
+            String checksum = entry.getValue().checksum;
+            if(checksum != null)
+                obj.put("checksum", checksum);
+
+            packages.put(obj);
+        }
+
+        JSONObject json = new JSONObject();
+        json.put("version", INDEX_VERSION);
+        json.put("packages", packages);
+
+        Path tmp = indexFile.toPath().resolveSibling(indexFile.getName() + ".tmp");
+        try {
+            Files.write(tmp, json.toString().getBytes(StandardCharsets.UTF_8));
+            Files.move(tmp, indexFile.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        }
+        catch(IOException e) {
+            log.warn("Unable to save package index " + indexFile.getPath(), e);
+        }
+    }
+
+    private static class IndexEntry {
+        private final File file;
+
+        private final long size;
+
+        private final long modified;
+
+        private final String id;
+
+        private final String version;
+
+        /**
+         * Checksum of the file at this size and modification time, or null if it hasn't been calculated yet.
+         */
+        private volatile String checksum = null;
+
+        IndexEntry(File file, long size, long modified, String id, String version) {
+            this.file = file;
+            this.size = size;
+            this.modified = modified;
+            this.id = id;
+            this.version = version;
+        }
+
+        P3Package.P3PackageInfo getInfo() {
             P3Package.P3PackageInfo info = new P3Package.P3PackageInfo();
-            info.setId(p3.getId());
-            info.setVersion(p3.getVersion());
-            packages.add(info);
+            info.setId(id);
+            info.setVersion(version);
+            return info;
         }
 
-        return packages;
+        boolean isCurrent() {
+            return file.isFile() && file.length() == size && file.lastModified() == modified;
+        }
     }
 }
@@ -19,6 +19,11 @@ public class CopyStep implements IPackageStep {
         return "copy-directory";
     }
 
+    @Override
+    public boolean isIOIntensive() {
+        return true;
+    }
+
     @Override
     public boolean runStep(P3Package p3, PackageContext ctx, JSONObject config) {
         String from = config.optString("from");
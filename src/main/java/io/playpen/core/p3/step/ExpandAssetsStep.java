@@ -4,38 +4,87 @@ import io.playpen.core.Bootstrap;
 import io.playpen.core.p3.IPackageStep;
 import io.playpen.core.p3.P3Package;
 import io.playpen.core.p3.PackageContext;
+import io.playpen.core.p3.PackageException;
+import io.playpen.core.utils.ZipExtractor;
 import lombok.extern.log4j.Log4j2;
+import org.apache.commons.io.FileUtils;
 import org.json.JSONObject;
-import org.zeroturnaround.zip.ZipException;
-import org.zeroturnaround.zip.ZipUtil;
 
 import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
 import java.nio.file.Paths;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
 
 @Log4j2
 public class ExpandAssetsStep implements IPackageStep {
+    /**
+     * Written into an expansion once it is complete, holding the checksum of the package it was expanded from.
+     */
+    private static final String MARKER = ".playpen-assets";
+
+    private final Map<String, Object> locks = new ConcurrentHashMap<>();
+
     @Override
     public String getStepId() {
         return "expand-assets";
     }
 
+    @Override
+    public boolean isIOIntensive() {
+        return true;
+    }
+
     @Override
     public boolean runStep(P3Package p3, PackageContext ctx, JSONObject config) {
         File path = Paths.get(Bootstrap.getHomeDir().getPath(), "assets", p3.getId(), p3.getVersion()).toFile();
-        if(path.exists() && path.isDirectory()) {
-            log.info("Not expanding asset package (already exists)");
-            return true;
-        }
-
-        log.info("Expanding asset package to " + path.getPath());
+        String checksum;
         try {
-            ZipUtil.unpack(new File(p3.getLocalPath()), path);
+            p3.calculateChecksum();
+            checksum = p3.getChecksum();
         }
-        catch(ZipException e) {
-            log.error("Unable to expand package", e);
+        catch(PackageException e) {
+            log.error("Unable to calculate checksum of asset package", e);
             return false;
         }
 
+        synchronized(locks.computeIfAbsent(path.getPath(), k -> new Object())) {
+            if(isExpanded(path, checksum)) {
+                log.info("Not expanding asset package (already exists)");
+                return true;
+            }
+
+            log.info("Expanding asset package to " + path.getPath());
+            boolean parallel = !config.optString("extractor", "parallel").equalsIgnoreCase("serial");
+            try {
+                // assets are kept across restarts, so never leave a partial expansion or one of another package behind
+                FileUtils.deleteDirectory(path);
+                ZipExtractor.extract(new File(p3.getLocalPath()), path, parallel);
+                Files.write(new File(path, MARKER).toPath(), checksum.getBytes(StandardCharsets.UTF_8));
+            }
+            catch(IOException e) {
+                log.error("Unable to expand package", e);
+                FileUtils.deleteQuietly(path);
+                return false;
+            }
+        }
+
         return true;
     }
-}
\ No newline at end of file
+
+    private boolean isExpanded(File path, String checksum) {
+        File marker = new File(path, MARKER);
+        if(!marker.isFile())
+            return false;
+
+        try {
+            return checksum.equals(new String(Files.readAllBytes(marker.toPath()), StandardCharsets.UTF_8));
+        }
+        catch(IOException e) {
+            log.warn("Unable to read " + marker.getPath(), e);
+            return false;
+        }
+    }
+}
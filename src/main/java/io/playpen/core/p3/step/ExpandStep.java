@@ -3,13 +3,24 @@ package io.playpen.core.p3.step;
 import io.playpen.core.p3.IPackageStep;
 import io.playpen.core.p3.P3Package;
 import io.playpen.core.p3.PackageContext;
+import io.playpen.core.p3.PackageException;
+import io.playpen.core.p3.PackageImageCache;
+import io.playpen.core.utils.ZipExtractor;
 import lombok.extern.log4j.Log4j2;
 import org.json.JSONObject;
-import org.zeroturnaround.zip.ZipException;
-import org.zeroturnaround.zip.ZipUtil;
 
 import java.io.File;
+import java.io.IOException;
 
+/**
+ * Expands a package into the destination directory.
+ *
+ * If the package manager has an image cache, the package is extracted into the cache once and the destination is
+ * populated from there. The "image" option selects how: "copy" (default) copies the files, "link" hard links them
+ * and "none" skips the cache. Only use "link" for packages whose files are never modified in place.
+ *
+ * The "extractor" option selects the zip engine: "parallel" (default) or "serial".
+ */
 @Log4j2
 public class ExpandStep implements IPackageStep {
     @Override
@@ -17,13 +28,35 @@ public class ExpandStep implements IPackageStep {
         return "expand";
     }
 
+    @Override
+    public boolean isIOIntensive() {
+        return true;
+    }
+
     @Override
     public boolean runStep(P3Package p3, PackageContext ctx, JSONObject config) {
+        boolean parallel = !config.optString("extractor", "parallel").equalsIgnoreCase("serial");
+        PackageImageCache imageCache = ctx.getPackageManager().getImageCache();
+        String imageMode = config.optString("image", "copy");
+        if(imageCache != null && !imageMode.equalsIgnoreCase("none")) {
+            PackageImageCache.Mode mode = imageMode.equalsIgnoreCase("link") ? PackageImageCache.Mode.LINK : PackageImageCache.Mode.COPY;
+            log.info("Expanding package image to " + ctx.getDestination().getPath());
+            try {
+                File image = imageCache.getImage(p3, parallel);
+                imageCache.populate(image, ctx.getDestination(), mode);
+                return true;
+            }
+            catch(PackageException | IOException e) {
+                log.error("Unable to expand package image", e);
+                return false;
+            }
+        }
+
         log.info("Expanding package to " + ctx.getDestination().getPath());
         try {
-            ZipUtil.unpack(new File(p3.getLocalPath()), ctx.getDestination());
+            ZipExtractor.extract(new File(p3.getLocalPath()), ctx.getDestination(), parallel);
         }
-        catch(ZipException e) {
+        catch(IOException e) {
             log.error("Unable to expand package", e);
             return false;
         }
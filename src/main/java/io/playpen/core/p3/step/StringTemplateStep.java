@@ -14,7 +14,9 @@ import java.io.BufferedWriter;
 import java.io.File;
 import java.io.IOException;
 import java.nio.file.Files;
+import java.nio.file.Path;
 import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
 import java.nio.file.StandardOpenOption;
 import java.util.Locale;
 
@@ -66,11 +68,31 @@ public class StringTemplateStep implements IPackageStep {
 
             STUtils.buildSTProperties(p3, ctx, template);
 
-            try (BufferedWriter writer = Files.newBufferedWriter(file.toPath(), StandardOpenOption.TRUNCATE_EXISTING)) {
-                template.write(new AutoIndentWriter(writer), Locale.US);
+            // render into a new file and swap it in, so a file hard linked from a package image is replaced
+            // instead of being modified for every server sharing it
+            Path tmp = file.toPath().resolveSibling(file.getName() + ".st-tmp");
+            try {
+                try (BufferedWriter writer = Files.newBufferedWriter(tmp, StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING)) {
+                    template.write(new AutoIndentWriter(writer), Locale.US);
+                }
+
+                try {
+                    Files.setPosixFilePermissions(tmp, Files.getPosixFilePermissions(file.toPath()));
+                }
+                catch(UnsupportedOperationException e) {
+                    // not a posix file system, nothing to keep
+                }
+
+                Files.move(tmp, file.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
             }
             catch(IOException e) {
                 log.error("Unable to write file " + file.getPath(), e);
+                try {
+                    Files.deleteIfExists(tmp);
+                }
+                catch(IOException ignored) {
+                }
+
                 return false;
             }
         }
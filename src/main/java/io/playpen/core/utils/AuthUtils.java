@@ -1,48 +1,25 @@
 package io.playpen.core.utils;
 
 import io.netty.buffer.ByteBuf;
-import io.playpen.core.protocol.Protocol;
+import lombok.Getter;
+import lombok.Setter;
 import org.apache.commons.codec.binary.Hex;
-import org.jasypt.encryption.pbe.StandardPBEByteEncryptor;
 
 import java.io.File;
 import java.io.IOException;
 import java.io.InputStream;
 import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
 import java.nio.charset.StandardCharsets;
-import java.nio.file.Files;
-import java.nio.file.Path;
 import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
 import java.security.MessageDigest;
 import java.security.NoSuchAlgorithmException;
-import java.util.zip.Adler32;
-import java.util.zip.CRC32;
-import java.util.zip.CheckedInputStream;
-import java.util.zip.Checksum;
+import java.util.stream.IntStream;
 
 public class AuthUtils {
 
-    private static StandardPBEByteEncryptor getEncryptor(String key)
-    {
-        StandardPBEByteEncryptor encryptor = new StandardPBEByteEncryptor();
-        encryptor.setPassword(key);
-        encryptor.setAlgorithm("PBEWithSHA1AndRC4_128");
-        encryptor.setKeyObtentionIterations(4000);
-        return encryptor;
-    }
-
-    public static byte[] encrypt(byte[] bytes, String key)
-    {
-        StandardPBEByteEncryptor encryptor = getEncryptor(key);
-        return encryptor.encrypt(bytes);
-    }
-
-    public static byte[] decrypt(byte[] bytes, String key)
-    {
-        StandardPBEByteEncryptor encryptor = getEncryptor(key);
-        return encryptor.decrypt(bytes);
-    }
-
     public static String createHash(String key, byte[] message) {
         MessageDigest digest;
 
@@ -58,24 +35,74 @@ public class AuthUtils {
         return Hex.encodeHexString(digest.digest());
     }
 
+    /**
+     * Packages are hashed in leaves of this size, which are hashed in parallel. The package checksum is the hash of all
+     * leaf hashes followed by the package size, so it covers the whole file.
+     */
+    public static final int PACKAGE_CHECKSUM_LEAF_SIZE = 1024 * 1024;
+
+    /**
+     * Packages are memory mapped in regions of this size. Must be a multiple of the leaf size.
+     */
+    private static final long PACKAGE_MAP_REGION_SIZE = 1024L * PACKAGE_CHECKSUM_LEAF_SIZE;
+
+    /**
+     * Algorithm used for new package checksums.
+     */
+    @Getter
+    @Setter
+    private static volatile ChecksumAlgorithm packageChecksumAlgorithm = ChecksumAlgorithm.XXH64;
+
     public static String createPackageChecksum(String fp) throws IOException {
-        Path path = Paths.get(fp);
-        try (CheckedInputStream is = new CheckedInputStream(Files.newInputStream(path), new Adler32())) {
-            byte[] buf = new byte[1024*1024];
-            int total = 0;
-            int c = 0;
-            while (total < 100*1024*1024 && (c = is.read(buf)) >= 0) {
-                total += c;
+        return createPackageChecksum(fp, packageChecksumAlgorithm);
+    }
+
+    public static String createPackageChecksum(String fp, ChecksumAlgorithm algorithm) throws IOException {
+        try (FileChannel channel = FileChannel.open(Paths.get(fp), StandardOpenOption.READ)) {
+            long size = channel.size();
+            MappedByteBuffer[] regions = new MappedByteBuffer[(int) ((size + PACKAGE_MAP_REGION_SIZE - 1) / PACKAGE_MAP_REGION_SIZE)];
+            for (int i = 0; i < regions.length; ++i) {
+                long offset = i * PACKAGE_MAP_REGION_SIZE;
+                regions[i] = channel.map(FileChannel.MapMode.READ_ONLY, offset, Math.min(PACKAGE_MAP_REGION_SIZE, size - offset));
             }
 
-            ByteBuffer bb = ByteBuffer.allocate(Long.BYTES);
-            bb.putLong(path.toFile().length());
-            buf = bb.array();
-            is.getChecksum().update(buf, 0, buf.length);
-            return Long.toHexString(is.getChecksum().getValue());
+            byte[][] leaves = new byte[getPackageChecksumLeafCount(size)][];
+            IntStream.range(0, leaves.length).parallel().forEach(i -> {
+                long offset = (long) i * PACKAGE_CHECKSUM_LEAF_SIZE;
+                int start = (int) (offset % PACKAGE_MAP_REGION_SIZE);
+                ByteBuffer leaf = regions[(int) (offset / PACKAGE_MAP_REGION_SIZE)].duplicate();
+                leaf.position(start);
+                leaf.limit(start + (int) Math.min(PACKAGE_CHECKSUM_LEAF_SIZE, size - offset));
+                leaves[i] = algorithm.digest(leaf);
+            });
+
+            return combinePackageChecksum(algorithm, leaves, size);
         }
     }
 
+    public static int getPackageChecksumLeafCount(long size) {
+        return (int) ((size + PACKAGE_CHECKSUM_LEAF_SIZE - 1) / PACKAGE_CHECKSUM_LEAF_SIZE);
+    }
+
+    /**
+     * Builds a package checksum from the hashes of its leaves, in order.
+     */
+    public static String combinePackageChecksum(ChecksumAlgorithm algorithm, byte[][] leaves, long size) {
+        int length = Long.BYTES;
+        for (byte[] leaf : leaves) {
+            length += leaf.length;
+        }
+
+        ByteBuffer root = ByteBuffer.allocate(length);
+        for (byte[] leaf : leaves) {
+            root.put(leaf);
+        }
+
+        root.putLong(size);
+        root.flip();
+        return algorithm.getName() + ":" + Hex.encodeHexString(algorithm.digest(root));
+    }
+
     public static boolean validateHash(String hash, String key, String message) {
         return validateHash(hash, key, message.getBytes(StandardCharsets.UTF_8));
     }
@@ -84,9 +111,5 @@ public class AuthUtils {
         return hash.equals(createHash(key, message));
     }
 
-    public static boolean validateHash(Protocol.AuthenticatedMessage payload, String key) {
-        return validateHash(payload.getHash(), key, payload.getPayload().toByteArray());
-    }
-
     private AuthUtils() {}
 }
@@ -0,0 +1,75 @@
+package io.playpen.core.utils;
+
+import lombok.Getter;
+
+import java.nio.ByteBuffer;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+
+/**
+ * Hash functions that package checksums can be built from. A package checksum names the algorithm it was made with
+ * (e.g. "xxh64:1f2e..."), so it can always be verified with the same algorithm no matter which one is configured.
+ */
+public enum ChecksumAlgorithm {
+    /**
+     * Fast, for detecting corruption and changed packages.
+     */
+    XXH64("xxh64") {
+        @Override
+        public byte[] digest(ByteBuffer data) {
+            return ByteBuffer.allocate(Long.BYTES).putLong(0, XXHash64.hash(data, 0)).array();
+        }
+    },
+
+    /**
+     * Slower, but also protects against deliberately crafted collisions.
+     */
+    SHA256("sha256") {
+        @Override
+        public byte[] digest(ByteBuffer data) {
+            MessageDigest digest;
+            try {
+                digest = MessageDigest.getInstance("SHA-256");
+            } catch (NoSuchAlgorithmException e) {
+                throw new AssertionError(e);
+            }
+
+            digest.update(data.duplicate());
+            return digest.digest();
+        }
+    };
+
+    @Getter
+    private final String name;
+
+    ChecksumAlgorithm(String name) {
+        this.name = name;
+    }
+
+    /**
+     * Hashes the remaining bytes of the buffer without changing its position. Safe to call from several threads.
+     */
+    public abstract byte[] digest(ByteBuffer data);
+
+    /**
+     * Returns the algorithm with the given name, or null if there is none.
+     */
+    public static ChecksumAlgorithm forName(String name) {
+        for (ChecksumAlgorithm algorithm : values()) {
+            if (algorithm.name.equalsIgnoreCase(name))
+                return algorithm;
+        }
+
+        return null;
+    }
+
+    /**
+     * Returns the algorithm a checksum was made with. Checksums from an unknown algorithm (e.g. the old unprefixed
+     * Adler-32 ones) give the default algorithm, which will then simply not match them.
+     */
+    public static ChecksumAlgorithm forChecksum(String checksum) {
+        int separator = checksum == null ? -1 : checksum.indexOf(':');
+        ChecksumAlgorithm algorithm = separator < 0 ? null : forName(checksum.substring(0, separator));
+        return algorithm == null ? AuthUtils.getPackageChecksumAlgorithm() : algorithm;
+    }
+}
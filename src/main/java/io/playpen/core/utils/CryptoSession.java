@@ -0,0 +1,81 @@
+package io.playpen.core.utils;
+
+import lombok.Getter;
+
+import javax.crypto.Mac;
+import javax.crypto.SecretKeyFactory;
+import javax.crypto.spec.PBEKeySpec;
+import javax.crypto.spec.SecretKeySpec;
+import java.nio.charset.StandardCharsets;
+import java.security.GeneralSecurityException;
+import java.security.SecureRandom;
+import java.util.Arrays;
+
+/**
+ * Holds the master key for a single coordinator. The expensive key derivation is done once when the session is
+ * created. Every connection then derives its own cipher key from the master key and a random salt, which is cheap.
+ */
+public class CryptoSession {
+    public static final int SALT_LENGTH = 16;
+    public static final int CHALLENGE_LENGTH = 16;
+
+    private static final String KEY_ALGORITHM = "PBKDF2WithHmacSHA1";
+    private static final String MAC_ALGORITHM = "HmacSHA256";
+    private static final int KEY_ITERATIONS = 4000;
+    private static final int KEY_LENGTH = 256;
+    private static final int CONNECTION_KEY_LENGTH = 16;
+
+    private static final byte[] CONNECTION_KEY_LABEL = "playpen-connection".getBytes(StandardCharsets.UTF_8);
+
+    private static final SecureRandom random = new SecureRandom();
+
+    @Getter
+    private final String uuid;
+
+    private final SecretKeySpec masterKey;
+
+    public CryptoSession(String uuid, String key) {
+        this.uuid = uuid;
+
+        // The salt only has to be stable for both ends of the session, so it is derived from the coordinator id.
+        byte[] salt = ("playpen:" + uuid).getBytes(StandardCharsets.UTF_8);
+        try {
+            SecretKeyFactory factory = SecretKeyFactory.getInstance(KEY_ALGORITHM);
+            byte[] derived = factory.generateSecret(
+                    new PBEKeySpec(key.toCharArray(), salt, KEY_ITERATIONS, KEY_LENGTH)).getEncoded();
+            masterKey = new SecretKeySpec(derived, MAC_ALGORITHM);
+        } catch (GeneralSecurityException e) {
+            throw new AssertionError(e);
+        }
+    }
+
+    public byte[] createConnectionSalt() {
+        byte[] salt = new byte[SALT_LENGTH];
+        random.nextBytes(salt);
+        return salt;
+    }
+
+    public static byte[] createChallenge() {
+        byte[] challenge = new byte[CHALLENGE_LENGTH];
+        random.nextBytes(challenge);
+        return challenge;
+    }
+
+    /**
+     * Derives the AES key used by one side of a connection. Each side picks its own salt per connection, so a key
+     * (and therefore a nonce sequence) is never reused across connections. The challenge is picked by the receiving
+     * side, so traffic recorded from one connection can't be replayed into another.
+     */
+    public SecretKeySpec deriveConnectionKey(byte[] salt, byte[] challenge) {
+        try {
+            Mac mac = Mac.getInstance(MAC_ALGORITHM);
+            mac.init(masterKey);
+            mac.update(CONNECTION_KEY_LABEL);
+            mac.update(salt);
+            mac.update(challenge);
+            return new SecretKeySpec(Arrays.copyOf(mac.doFinal(), CONNECTION_KEY_LENGTH), "AES");
+        } catch (GeneralSecurityException e) {
+            throw new AssertionError(e);
+        }
+    }
+}
@@ -0,0 +1,74 @@
+package io.playpen.core.utils;
+
+import java.nio.ByteBuffer;
+import java.util.BitSet;
+
+/**
+ * Builds the same checksum as {@link AuthUtils#createPackageChecksum(String, ChecksumAlgorithm)} from the chunks of a
+ * package, in any order, as they arrive. This lets a received package be verified without reading it back from disk.
+ * The chunk size must be a multiple of {@link AuthUtils#PACKAGE_CHECKSUM_LEAF_SIZE}, so every chunk holds whole leaves.
+ */
+public class PackageChecksumBuilder {
+    private final long fileSize;
+
+    private final int chunkSize;
+
+    private final ChecksumAlgorithm algorithm;
+
+    private final int chunkCount;
+
+    private final byte[][] leaves;
+
+    private final BitSet chunks;
+
+    public PackageChecksumBuilder(long fileSize, int chunkSize, ChecksumAlgorithm algorithm) {
+        if (chunkSize <= 0 || chunkSize % AuthUtils.PACKAGE_CHECKSUM_LEAF_SIZE != 0)
+            throw new IllegalArgumentException("Chunk size must be a multiple of " + AuthUtils.PACKAGE_CHECKSUM_LEAF_SIZE);
+
+        this.fileSize = fileSize;
+        this.chunkSize = chunkSize;
+        this.algorithm = algorithm;
+
+        chunkCount = (int) ((fileSize + chunkSize - 1) / chunkSize);
+        leaves = new byte[AuthUtils.getPackageChecksumLeafCount(fileSize)][];
+        chunks = new BitSet(chunkCount);
+    }
+
+    /**
+     * Adds a whole chunk of the package.
+     */
+    public void update(int chunkId, ByteBuffer data) {
+        if (chunkId < 0 || chunkId >= chunkCount)
+            return;
+
+        // hash outside the lock so chunks arriving together are hashed in parallel
+        int firstLeaf = chunkId * (chunkSize / AuthUtils.PACKAGE_CHECKSUM_LEAF_SIZE);
+        int leafCount = AuthUtils.getPackageChecksumLeafCount(data.remaining());
+        byte[][] chunkLeaves = new byte[leafCount][];
+        for (int i = 0; i < leafCount; ++i) {
+            ByteBuffer leaf = data.duplicate();
+            leaf.position(data.position() + i * AuthUtils.PACKAGE_CHECKSUM_LEAF_SIZE);
+            leaf.limit(Math.min(leaf.position() + AuthUtils.PACKAGE_CHECKSUM_LEAF_SIZE, data.limit()));
+            chunkLeaves[i] = algorithm.digest(leaf);
+        }
+
+        synchronized (this) {
+            System.arraycopy(chunkLeaves, 0, leaves, firstLeaf, Math.min(leafCount, leaves.length - firstLeaf));
+            chunks.set(chunkId);
+        }
+    }
+
+    public synchronized boolean isComplete() {
+        return chunks.cardinality() == chunkCount;
+    }
+
+    /**
+     * Returns the checksum of the package, or null if a chunk is still missing.
+     */
+    public synchronized String getValue() {
+        if (!isComplete())
+            return null;
+
+        return AuthUtils.combinePackageChecksum(algorithm, leaves, fileSize);
+    }
+}
@@ -0,0 +1,199 @@
+package io.playpen.core.utils;
+
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import lombok.extern.log4j.Log4j2;
+import org.zeroturnaround.zip.ZipException;
+import org.zeroturnaround.zip.ZipUtil;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.*;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipFile;
+
+/**
+ * Extracts zip files (packages). The parallel engine reads the central directory once, creates every directory up
+ * front and then inflates the entries on a shared, bounded pool of threads. Entries are spread across the threads by
+ * size and each thread reads through its own ZipFile, so a few very large entries and thousands of small ones are
+ * inflated side by side. The serial engine is zt-zip's unpack.
+ */
+@Log4j2
+public class ZipExtractor {
+    private static final int BUFFER_SIZE = 64 * 1024;
+
+    /**
+     * Entries larger than this have their file allocated to full size before any data is written.
+     */
+    private static final long PREALLOCATE_THRESHOLD = 1024 * 1024;
+
+    private static final int THREADS = Math.max(2, Runtime.getRuntime().availableProcessors());
+
+    private static final ExecutorService executor = Executors.newFixedThreadPool(THREADS,
+            new ThreadFactoryBuilder().setNameFormat("zip-extract-%d").setDaemon(true).build());
+
+    public static void extract(File zip, File destination, boolean parallel) throws IOException {
+        long start = System.nanoTime();
+        long bytes;
+        if(parallel) {
+            bytes = extractParallel(zip, destination);
+        }
+        else {
+            try {
+                ZipUtil.unpack(zip, destination);
+            }
+            catch(ZipException e) {
+                throw new IOException("Unable to extract " + zip.getPath(), e);
+            }
+
+            bytes = getUncompressedSize(zip);
+        }
+
+        long millis = Math.max(1, (System.nanoTime() - start) / 1000000);
+        log.info(String.format("Extracted %s (%d bytes) in %dms, %.1f MB/s (%s)", zip.getName(), bytes, millis,
+                bytes / 1024.0 / 1024.0 / (millis / 1000.0), parallel ? "parallel" : "serial"));
+    }
+
+    /**
+     * Returns the total uncompressed size of the extracted entries.
+     */
+    private static long extractParallel(File zip, File destination) throws IOException {
+        Path root = destination.toPath().toAbsolutePath().normalize();
+        List<ZipEntry> entries = new ArrayList<>();
+        Set<Path> dirs = new TreeSet<>();
+        long total = 0;
+
+        try (ZipFile zipFile = new ZipFile(zip)) {
+            Enumeration<? extends ZipEntry> itr = zipFile.entries();
+            while(itr.hasMoreElements()) {
+                ZipEntry entry = itr.nextElement();
+                Path target = resolve(root, entry.getName());
+                if(entry.isDirectory()) {
+                    dirs.add(target);
+                }
+                else {
+                    dirs.add(target.getParent());
+                    entries.add(entry);
+                    total += Math.max(0, entry.getSize());
+                }
+            }
+        }
+
+        Files.createDirectories(root);
+        for(Path dir : dirs) {
+            Files.createDirectories(dir);
+        }
+
+        if(entries.isEmpty())
+            return total;
+
+        // largest first onto the least loaded thread keeps the threads finishing at about the same time
+        int workers = Math.min(THREADS, entries.size());
+        entries.sort((a, b) -> Long.compare(b.getSize(), a.getSize()));
+        List<List<ZipEntry>> buckets = new ArrayList<>(workers);
+        long[] load = new long[workers];
+        for(int i = 0; i < workers; ++i) {
+            buckets.add(new ArrayList<>());
+        }
+
+        for(ZipEntry entry : entries) {
+            int min = 0;
+            for(int i = 1; i < workers; ++i) {
+                if(load[i] < load[min])
+                    min = i;
+            }
+
+            buckets.get(min).add(entry);
+            load[min] += Math.max(1, entry.getSize());
+        }
+
+        List<Future<?>> futures = new ArrayList<>(workers);
+        for(List<ZipEntry> bucket : buckets) {
+            futures.add(executor.submit(() -> {
+                byte[] buffer = new byte[BUFFER_SIZE];
+                try (ZipFile zipFile = new ZipFile(zip)) {
+                    for(ZipEntry entry : bucket) {
+                        writeEntry(zipFile, entry, resolve(root, entry.getName()), buffer);
+                    }
+                }
+
+                return null;
+            }));
+        }
+
+        try {
+            for(Future<?> future : futures) {
+                future.get();
+            }
+        }
+        catch(ExecutionException e) {
+            futures.forEach(f -> f.cancel(true));
+            if(e.getCause() instanceof IOException)
+                throw (IOException) e.getCause();
+
+            throw new IOException("Unable to extract " + zip.getPath(), e.getCause());
+        }
+        catch(InterruptedException e) {
+            futures.forEach(f -> f.cancel(true));
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while extracting " + zip.getPath());
+        }
+
+        return total;
+    }
+
+    private static void writeEntry(ZipFile zipFile, ZipEntry entry, Path target, byte[] buffer) throws IOException {
+        try (InputStream in = zipFile.getInputStream(entry);
+             FileChannel out = FileChannel.open(target, StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+                     StandardOpenOption.TRUNCATE_EXISTING)) {
+            if(entry.getSize() > PREALLOCATE_THRESHOLD)
+                out.write(ByteBuffer.allocate(1), entry.getSize() - 1);
+
+            ByteBuffer wrapped = ByteBuffer.wrap(buffer);
+            long position = 0;
+            int read;
+            while((read = in.read(buffer)) != -1) {
+                wrapped.clear();
+                wrapped.limit(read);
+                while(wrapped.hasRemaining()) {
+                    position += out.write(wrapped, position);
+                }
+            }
+
+            if(out.size() != position)
+                out.truncate(position);
+        }
+    }
+
+    private static Path resolve(Path root, String name) throws IOException {
+        Path target = root.resolve(name).normalize();
+        if(!target.startsWith(root))
+            throw new IOException("Zip entry " + name + " is outside of the destination directory");
+
+        return target;
+    }
+
+    private static long getUncompressedSize(File zip) throws IOException {
+        long total = 0;
+        try (ZipFile zipFile = new ZipFile(zip)) {
+            Enumeration<? extends ZipEntry> itr = zipFile.entries();
+            while(itr.hasMoreElements()) {
+                total += Math.max(0, itr.nextElement().getSize());
+            }
+        }
+
+        return total;
+    }
+
+    private ZipExtractor() {}
+}
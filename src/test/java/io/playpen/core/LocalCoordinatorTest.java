@@ -0,0 +1,82 @@
+package io.playpen.core;
+
+import io.playpen.core.coordinator.network.CoordinatorState;
+import io.playpen.core.coordinator.network.LocalCoordinator;
+import io.playpen.core.coordinator.network.Server;
+import io.playpen.core.p3.P3Package;
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+
+public class LocalCoordinatorTest {
+    private static LocalCoordinator createCoordinator() {
+        LocalCoordinator coord = new LocalCoordinator();
+        coord.setUuid("local");
+        coord.compareAndSetState(coord.getState(), new CoordinatorState(
+                Collections.singletonMap("memory", 1024), Collections.emptySet(), Collections.emptyMap()));
+        return coord;
+    }
+
+    private static P3Package createPackage() {
+        P3Package p3 = new P3Package();
+        p3.setId("server");
+        p3.setVersion("1");
+        p3.setResolved(true);
+        p3.setResources(Collections.singletonMap("memory", 512));
+        return p3;
+    }
+
+    /**
+     * Applies a full SYNC the same way Network.processSync() does.
+     */
+    private static void sync(LocalCoordinator coord, Map<String, Server> servers) {
+        CoordinatorState oldState;
+        CoordinatorState state;
+        do {
+            oldState = coord.getState();
+            state = oldState.withSync(Collections.singletonMap("memory", 1024), Collections.emptySet(), servers,
+                    coord::isPendingServer);
+        } while (!coord.compareAndSetState(oldState, state));
+    }
+
+    @Test
+    public void testSyncKeepsPendingReservations() {
+        LocalCoordinator coord = createCoordinator();
+        P3Package p3 = createPackage();
+
+        // one reservation made before the SYNC arrived, one while it was being read, neither of them in the SYNC
+        Server before = coord.createServer(p3, null, Collections.emptyMap());
+        Map<String, Server> syncServers = new HashMap<>(coord.getServers());
+        syncServers.remove(before.getUuid());
+        Server during = coord.createServer(p3, null, Collections.emptyMap());
+
+        sync(coord, syncServers);
+
+        Assert.assertSame(before, coord.getServers().get(before.getUuid()));
+        Assert.assertSame(during, coord.getServers().get(during.getUuid()));
+        Assert.assertEquals(0, (int) coord.getAvailableResources().get("memory"));
+        Assert.assertNull(coord.createServer(p3, null, Collections.emptyMap()));
+    }
+
+    @Test
+    public void testSyncDropsAnsweredServers() {
+        LocalCoordinator coord = createCoordinator();
+        P3Package p3 = createPackage();
+
+        Server activated = coord.createServer(p3, null, Collections.emptyMap());
+        coord.activateServer(activated);
+        Server released = coord.createServer(p3, null, Collections.emptyMap());
+        Assert.assertSame(released, coord.releaseServer(released.getUuid()));
+        Assert.assertFalse(coord.isPendingServer(activated.getUuid()));
+        Assert.assertFalse(coord.isPendingServer(released.getUuid()));
+
+        // the local coordinator is authoritative for servers it has already answered for
+        sync(coord, Collections.emptyMap());
+
+        Assert.assertTrue(coord.getServers().isEmpty());
+        Assert.assertEquals(1024, (int) coord.getAvailableResources().get("memory"));
+    }
+}
@@ -0,0 +1,144 @@
+package io.playpen.core;
+
+import io.playpen.core.coordinator.local.PackageCache;
+import io.playpen.core.p3.P3Package;
+import io.playpen.core.utils.AuthUtils;
+import org.apache.commons.io.FileUtils;
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.Collections;
+import java.util.List;
+
+public class PackageCacheTest {
+    private static File createPackage(File dir, String name, int size) throws IOException {
+        File file = new File(dir, name);
+        byte[] data = new byte[size];
+        for (int i = 0; i < size; ++i) {
+            data[i] = (byte) (i * 31 + name.hashCode());
+        }
+
+        Files.write(file.toPath(), data);
+        return file;
+    }
+
+    private static void add(PackageCache cache, File file, String id) throws IOException {
+        cache.add(file, id, "1", AuthUtils.createPackageChecksum(file.getPath()));
+    }
+
+    @Test
+    public void testLoadRemovesUnknownAndCorrupt() throws Exception {
+        File dir = Files.createTempDirectory("playpen-cache").toFile();
+        try {
+            File packages = new File(dir, "packages");
+            packages.mkdirs();
+            File manifest = new File(dir, "packages.manifest.json");
+
+            PackageCache cache = new PackageCache(packages, manifest);
+            File good = createPackage(packages, "good_1.p3", 1000);
+            File corrupt = createPackage(packages, "corrupt_1.p3", 1000);
+            add(cache, good, "good");
+            add(cache, corrupt, "corrupt");
+
+            // same size and modification time, different contents
+            long modified = corrupt.lastModified();
+            byte[] data = Files.readAllBytes(corrupt.toPath());
+            data[0] ^= 1;
+            Files.write(corrupt.toPath(), data);
+            corrupt.setLastModified(modified);
+
+            File unknown = createPackage(packages, "unknown_1.p3", 100);
+
+            PackageCache reloaded = new PackageCache(packages, manifest);
+            reloaded.load(null);
+
+            Assert.assertTrue(good.isFile());
+            Assert.assertFalse(corrupt.exists());
+            Assert.assertFalse(unknown.exists());
+            Assert.assertEquals(1000, reloaded.getSize());
+        }
+        finally {
+            FileUtils.deleteDirectory(dir);
+        }
+    }
+
+    @Test
+    public void testEvictLeastRecentlyUsed() throws Exception {
+        File dir = Files.createTempDirectory("playpen-cache").toFile();
+        try {
+            File packages = new File(dir, "packages");
+            packages.mkdirs();
+
+            PackageCache cache = new PackageCache(packages, new File(dir, "packages.manifest.json"));
+            File a = createPackage(packages, "a_1.p3", 1000);
+            File b = createPackage(packages, "b_1.p3", 1000);
+            File c = createPackage(packages, "c_1.p3", 1000);
+            add(cache, a, "a");
+            Thread.sleep(5);
+            add(cache, b, "b");
+            Thread.sleep(5);
+            add(cache, c, "c");
+            Thread.sleep(5);
+
+            P3Package.P3PackageInfo info = new P3Package.P3PackageInfo();
+            info.setId("a");
+            info.setVersion("1");
+            cache.touch(Collections.singleton(info));
+
+            cache.setQuota(2000);
+            List<P3Package.P3PackageInfo> evicted = cache.evict(null, null);
+
+            Assert.assertEquals(1, evicted.size());
+            Assert.assertEquals("b", evicted.get(0).getId());
+            Assert.assertTrue(a.isFile());
+            Assert.assertFalse(b.exists());
+            Assert.assertTrue(c.isFile());
+            Assert.assertEquals(2000, cache.getSize());
+        }
+        finally {
+            FileUtils.deleteDirectory(dir);
+        }
+    }
+
+    @Test
+    public void testEvictKeepsPinnedPackages() throws Exception {
+        File dir = Files.createTempDirectory("playpen-cache").toFile();
+        try {
+            File packages = new File(dir, "packages");
+            packages.mkdirs();
+
+            PackageCache cache = new PackageCache(packages, new File(dir, "packages.manifest.json"));
+            File a = createPackage(packages, "a_1.p3", 1000);
+            File b = createPackage(packages, "b_1.p3", 3000);
+            add(cache, a, "a");
+            Thread.sleep(5);
+            add(cache, b, "b");
+
+            P3Package.P3PackageInfo infoA = new P3Package.P3PackageInfo();
+            infoA.setId("a");
+            infoA.setVersion("1");
+            P3Package.P3PackageInfo infoB = new P3Package.P3PackageInfo();
+            infoB.setId("b");
+            infoB.setVersion("1");
+
+            // b alone is larger than the quota, but it was just downloaded and a is in use
+            cache.setQuota(2000);
+            cache.pin(infoA);
+            Assert.assertTrue(cache.evict(null, infoB).isEmpty());
+            Assert.assertTrue(a.isFile());
+            Assert.assertTrue(b.isFile());
+
+            cache.unpin(Collections.singleton(infoA));
+            List<P3Package.P3PackageInfo> evicted = cache.evict(null, infoB);
+            Assert.assertEquals(Collections.singletonList(infoA), evicted);
+            Assert.assertFalse(a.exists());
+            Assert.assertTrue(b.isFile());
+        }
+        finally {
+            FileUtils.deleteDirectory(dir);
+        }
+    }
+}
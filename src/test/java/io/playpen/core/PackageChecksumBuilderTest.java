@@ -0,0 +1,100 @@
+package io.playpen.core;
+
+import io.playpen.core.utils.AuthUtils;
+import io.playpen.core.utils.ChecksumAlgorithm;
+import io.playpen.core.utils.PackageChecksumBuilder;
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+
+public class PackageChecksumBuilderTest {
+    private static final int CHUNK_SIZE = 1024 * 1024;
+
+    private static void verify(int size, int chunkSize, ChecksumAlgorithm algorithm) throws IOException {
+        byte[] bytes = new byte[size];
+        Random random = new Random(size);
+        random.nextBytes(bytes);
+
+        File file = File.createTempFile("playpen-checksum", ".p3");
+        try {
+            Files.write(file.toPath(), bytes);
+
+            List<Integer> chunkIds = new ArrayList<>();
+            for (int i = 0; i * (long) chunkSize < size; ++i) {
+                chunkIds.add(i);
+            }
+
+            // chunks may arrive in any order
+            Collections.shuffle(chunkIds, random);
+
+            PackageChecksumBuilder builder = new PackageChecksumBuilder(size, chunkSize, algorithm);
+            for (int chunkId : chunkIds) {
+                int offset = chunkId * chunkSize;
+                builder.update(chunkId, ByteBuffer.wrap(bytes, offset, Math.min(chunkSize, size - offset)));
+            }
+
+            Assert.assertTrue(builder.isComplete());
+            Assert.assertEquals(AuthUtils.createPackageChecksum(file.getPath(), algorithm), builder.getValue());
+        }
+        finally {
+            file.delete();
+        }
+    }
+
+    @Test
+    public void verifySingleChunk() throws IOException {
+        verify(1000, CHUNK_SIZE, ChecksumAlgorithm.XXH64);
+    }
+
+    @Test
+    public void verifyPartialLastChunk() throws IOException {
+        verify(5 * CHUNK_SIZE + 12345, CHUNK_SIZE, ChecksumAlgorithm.XXH64);
+    }
+
+    @Test
+    public void verifyMultiLeafChunks() throws IOException {
+        verify(9 * CHUNK_SIZE + 7, 4 * CHUNK_SIZE, ChecksumAlgorithm.XXH64);
+    }
+
+    @Test
+    public void verifySha256() throws IOException {
+        verify(3 * CHUNK_SIZE + 12345, CHUNK_SIZE, ChecksumAlgorithm.SHA256);
+    }
+
+    @Test
+    public void verifyWholeFileCovered() throws IOException {
+        byte[] bytes = new byte[3 * CHUNK_SIZE];
+        File file = File.createTempFile("playpen-checksum", ".p3");
+        try {
+            Files.write(file.toPath(), bytes);
+            String checksum = AuthUtils.createPackageChecksum(file.getPath(), ChecksumAlgorithm.XXH64);
+            Assert.assertTrue(checksum.startsWith("xxh64:"));
+            Assert.assertSame(ChecksumAlgorithm.XXH64, ChecksumAlgorithm.forChecksum(checksum));
+
+            bytes[bytes.length - 1] = 1;
+            Files.write(file.toPath(), bytes);
+            Assert.assertNotEquals(checksum, AuthUtils.createPackageChecksum(file.getPath(), ChecksumAlgorithm.XXH64));
+        }
+        finally {
+            file.delete();
+        }
+    }
+
+    @Test
+    public void verifyIncomplete() {
+        PackageChecksumBuilder builder = new PackageChecksumBuilder(3 * CHUNK_SIZE, CHUNK_SIZE, ChecksumAlgorithm.XXH64);
+        builder.update(0, ByteBuffer.allocate(CHUNK_SIZE));
+        builder.update(2, ByteBuffer.allocate(CHUNK_SIZE));
+
+        Assert.assertFalse(builder.isComplete());
+        Assert.assertNull(builder.getValue());
+    }
+}
@@ -0,0 +1,59 @@
+package io.playpen.core;
+
+import io.playpen.core.p3.PackageImageCache;
+import org.apache.commons.io.FileUtils;
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+
+public class PackageImageCacheTest {
+    private static File createImage(File dir, String name, String packageJson, String file) throws IOException {
+        File image = new File(dir, name);
+        new File(image, "lib").mkdirs();
+        Files.write(new File(image, "package.json").toPath(), packageJson.getBytes(StandardCharsets.UTF_8));
+        Files.write(new File(image, "lib/" + file).toPath(), file.getBytes(StandardCharsets.UTF_8));
+        return image;
+    }
+
+    private static String read(File file) throws IOException {
+        return new String(Files.readAllBytes(file.toPath()), StandardCharsets.UTF_8);
+    }
+
+    private static void verifyDependencyChain(PackageImageCache.Mode mode) throws IOException {
+        File dir = Files.createTempDirectory("playpen-images").toFile();
+        try {
+            PackageImageCache cache = new PackageImageCache(dir);
+            File dependency = createImage(dir, "dependency", "{\"id\": \"dependency\"}", "a.txt");
+            File server = createImage(dir, "server", "{\"id\": \"server\"}", "b.txt");
+            File destination = new File(dir, "destination");
+
+            // every package in a chain is expanded into the same directory, and they all have a package.json
+            cache.populate(dependency, destination, mode);
+            cache.populate(server, destination, mode);
+
+            Assert.assertEquals("{\"id\": \"server\"}", read(new File(destination, "package.json")));
+            Assert.assertEquals("a.txt", read(new File(destination, "lib/a.txt")));
+            Assert.assertEquals("b.txt", read(new File(destination, "lib/b.txt")));
+
+            // replacing the file must not have written through to the dependency's image
+            Assert.assertEquals("{\"id\": \"dependency\"}", read(new File(dependency, "package.json")));
+        }
+        finally {
+            FileUtils.deleteQuietly(dir);
+        }
+    }
+
+    @Test
+    public void testPopulateCopyOverwrites() throws IOException {
+        verifyDependencyChain(PackageImageCache.Mode.COPY);
+    }
+
+    @Test
+    public void testPopulateLinkOverwrites() throws IOException {
+        verifyDependencyChain(PackageImageCache.Mode.LINK);
+    }
+}
@@ -0,0 +1,79 @@
+package io.playpen.core;
+
+import io.playpen.core.coordinator.local.ProvisionExecutor;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class ProvisionExecutorTest {
+    @Test
+    public void testPriorityOrder() throws Exception {
+        ProvisionExecutor executor = new ProvisionExecutor(1, 0, null);
+        CountDownLatch blocker = new CountDownLatch(1);
+        CountDownLatch done = new CountDownLatch(4);
+        List<String> order = Collections.synchronizedList(new ArrayList<>());
+
+        // occupies the only worker so everything else has to wait in the queue
+        executor.submit("blocker", 0, () -> {
+            try {
+                blocker.await();
+            }
+            catch(InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        });
+
+        Thread.sleep(100);
+
+        executor.submit("low", 0, () -> { order.add("low"); done.countDown(); });
+        executor.submit("high", 10, () -> { order.add("high"); done.countDown(); });
+        executor.submit("low2", 0, () -> { order.add("low2"); done.countDown(); });
+        executor.submit("mid", 5, () -> { order.add("mid"); done.countDown(); });
+
+        blocker.countDown();
+        assertTrue(done.await(5, TimeUnit.SECONDS));
+        assertEquals("[high, mid, low, low2]", order.toString());
+        executor.shutdown();
+    }
+
+    @Test
+    public void testRejectionAndSaturation() throws Exception {
+        AtomicInteger changes = new AtomicInteger();
+        ProvisionExecutor executor = new ProvisionExecutor(1, 2, changes::incrementAndGet);
+        CountDownLatch blocker = new CountDownLatch(1);
+        CountDownLatch done = new CountDownLatch(2);
+
+        assertTrue(executor.submit("blocker", 0, () -> {
+            try {
+                blocker.await();
+            }
+            catch(InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }));
+
+        Thread.sleep(100);
+
+        assertTrue(executor.submit("a", 0, done::countDown));
+        assertFalse(executor.isSaturated());
+        assertTrue(executor.submit("b", 0, done::countDown));
+        assertTrue(executor.isSaturated());
+        assertFalse(executor.submit("c", 0, done::countDown));
+        assertEquals(2, executor.getQueued());
+
+        blocker.countDown();
+        assertTrue(done.await(5, TimeUnit.SECONDS));
+        assertFalse(executor.isSaturated());
+        assertEquals(2, changes.get());
+        executor.shutdown();
+    }
+}
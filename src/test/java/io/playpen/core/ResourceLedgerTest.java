@@ -0,0 +1,64 @@
+package io.playpen.core;
+
+import io.playpen.core.coordinator.ResourceLedger;
+import io.playpen.core.p3.ResourceIndex;
+import io.playpen.core.p3.ResourceVector;
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.util.HashMap;
+import java.util.Map;
+
+public class ResourceLedgerTest {
+    private static Map<String, Integer> resources(Object... pairs) {
+        Map<String, Integer> result = new HashMap<>();
+        for (int i = 0; i < pairs.length; i += 2) {
+            result.put((String) pairs[i], (Integer) pairs[i + 1]);
+        }
+
+        return result;
+    }
+
+    @Test
+    public void testAllocateAndRelease() {
+        ResourceLedger ledger = ResourceLedger.of(resources("memory", 4096, "slots", 4));
+        ResourceVector server = ResourceVector.of(resources("memory", 1024, "slots", 1));
+
+        ResourceLedger allocated = ledger.allocate(server).allocate(server);
+        Assert.assertEquals(2048, allocated.getAvailable(ResourceIndex.indexOf("memory")));
+        Assert.assertEquals(2, allocated.getAvailable(ResourceIndex.indexOf("slots")));
+
+        // ledgers are immutable
+        Assert.assertEquals(4096, ledger.getAvailable(ResourceIndex.indexOf("memory")));
+
+        ResourceLedger released = allocated.release(server);
+        Assert.assertEquals(3072, released.getAvailable(ResourceIndex.indexOf("memory")));
+        Assert.assertEquals(resources("memory", 3072, "slots", 3), released.getAvailableResources());
+    }
+
+    @Test
+    public void testShortfall() {
+        ResourceLedger ledger = ResourceLedger.of(resources("memory", 2048, "slots", 1));
+
+        Assert.assertTrue(ledger.fits(ResourceVector.of(resources("memory", 2048, "slots", 1))));
+        Assert.assertEquals(ResourceIndex.indexOf("slots"),
+                ledger.findShortfall(ResourceVector.of(resources("slots", 2))));
+
+        int gpu = ResourceIndex.indexOf("gpu");
+        Assert.assertEquals(gpu, ledger.findShortfall(ResourceVector.of(resources("gpu", 0))));
+        Assert.assertFalse(ledger.hasResource(gpu));
+
+        // resources the ledger doesn't have are ignored when allocating
+        ResourceLedger allocated = ledger.allocate(ResourceVector.of(resources("gpu", 1, "slots", 1)));
+        Assert.assertFalse(allocated.fits(ResourceVector.of(resources("slots", 1))));
+    }
+
+    @Test
+    public void testNormalizedUsage() {
+        ResourceLedger ledger = ResourceLedger.of(resources("memory", 1000, "slots", 4, "none", 0));
+        Assert.assertEquals(2.0, ledger.getNormalizedUsage(), 0.0001);
+
+        ledger = ledger.allocate(ResourceVector.of(resources("memory", 500, "slots", 1)));
+        Assert.assertEquals(0.5 + 0.75, ledger.getNormalizedUsage(), 0.0001);
+    }
+}
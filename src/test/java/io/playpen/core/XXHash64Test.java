@@ -0,0 +1,30 @@
+package io.playpen.core;
+
+import io.playpen.core.utils.XXHash64;
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+
+public class XXHash64Test {
+    private static long hash(String value) {
+        return XXHash64.hash(ByteBuffer.wrap(value.getBytes(StandardCharsets.UTF_8)), 0);
+    }
+
+    @Test
+    public void verifyReferenceValues() {
+        Assert.assertEquals(0xEF46DB3751D8E999L, hash(""));
+        Assert.assertEquals(0xD24EC4F1A98C6E5BL, hash("a"));
+        Assert.assertEquals(0x44BC2CF5AD770999L, hash("abc"));
+        Assert.assertEquals(0xFBCEA83C8A378BF1L, hash("Nobody inspects the spammish repetition"));
+    }
+
+    @Test
+    public void verifyBufferPosition() {
+        ByteBuffer buffer = ByteBuffer.wrap("xxabc".getBytes(StandardCharsets.UTF_8));
+        buffer.position(2);
+        Assert.assertEquals(hash("abc"), XXHash64.hash(buffer, 0));
+        Assert.assertEquals(2, buffer.position());
+    }
+}
@@ -0,0 +1,96 @@
+package io.playpen.core;
+
+import io.playpen.core.utils.ZipExtractor;
+import org.apache.commons.io.FileUtils;
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Random;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipOutputStream;
+
+public class ZipExtractorTest {
+    private static Map<String, byte[]> createZip(File zip) throws IOException {
+        Map<String, byte[]> contents = new HashMap<>();
+        Random random = new Random(42);
+        try (ZipOutputStream out = new ZipOutputStream(new FileOutputStream(zip))) {
+            out.putNextEntry(new ZipEntry("empty/"));
+            out.closeEntry();
+
+            for (int i = 0; i < 200; ++i) {
+                byte[] data = new byte[random.nextInt(4096)];
+                random.nextBytes(data);
+                contents.put("small/dir" + (i % 7) + "/file" + i + ".txt", data);
+            }
+
+            // larger than the preallocation threshold
+            byte[] large = new byte[3 * 1024 * 1024 + 17];
+            random.nextBytes(large);
+            contents.put("region/r.0.0.mca", large);
+            contents.put("package.json", "{}".getBytes());
+
+            for (Map.Entry<String, byte[]> entry : contents.entrySet()) {
+                out.putNextEntry(new ZipEntry(entry.getKey()));
+                out.write(entry.getValue());
+                out.closeEntry();
+            }
+        }
+
+        return contents;
+    }
+
+    private static void verify(boolean parallel) throws IOException {
+        File zip = File.createTempFile("playpen-extract", ".p3");
+        File dest = Files.createTempDirectory("playpen-extract").toFile();
+        try {
+            Map<String, byte[]> contents = createZip(zip);
+            ZipExtractor.extract(zip, dest, parallel);
+
+            Assert.assertTrue(new File(dest, "empty").isDirectory());
+            for (Map.Entry<String, byte[]> entry : contents.entrySet()) {
+                File file = new File(dest, entry.getKey());
+                Assert.assertTrue(file.isFile());
+                Assert.assertArrayEquals(entry.getValue(), Files.readAllBytes(file.toPath()));
+            }
+        }
+        finally {
+            zip.delete();
+            FileUtils.deleteDirectory(dest);
+        }
+    }
+
+    @Test
+    public void testParallel() throws IOException {
+        verify(true);
+    }
+
+    @Test
+    public void testSerial() throws IOException {
+        verify(false);
+    }
+
+    @Test(expected = IOException.class)
+    public void testEntryOutsideDestination() throws IOException {
+        File zip = File.createTempFile("playpen-extract", ".p3");
+        File dest = Files.createTempDirectory("playpen-extract").toFile();
+        try {
+            try (ZipOutputStream out = new ZipOutputStream(new FileOutputStream(zip))) {
+                out.putNextEntry(new ZipEntry("../evil.txt"));
+                out.write(1);
+                out.closeEntry();
+            }
+
+            ZipExtractor.extract(zip, dest, true);
+        }
+        finally {
+            zip.delete();
+            FileUtils.deleteDirectory(dest);
+        }
+    }
+}